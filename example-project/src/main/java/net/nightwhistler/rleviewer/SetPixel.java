@@ -46,6 +46,17 @@ public class SetPixel {
     }
 
 
+    /**
+     * The plot subroutine, and the adhadl subroutine it uses.
+     *
+     * Plot sets the pixel at xpos ($FD/$FE) and ypos ($FF) in the
+     * hires bitmap at $A000. It uses $02 and $FB/$FC as scratch space,
+     * and doesn't preserve any registers.
+     */
+    public static ProgramBuilder plotRoutines() {
+        return calculateAdhAdlForPixel(plot(new ProgramBuilder()));
+    }
+
     private static ProgramBuilder plot(ProgramBuilder builder) {
         return builder
             .label("plot")
@@ -92,6 +103,7 @@ public class SetPixel {
                 .and(xpos)
                 .sta(temp)
                 .lda(ypos)
+                .and(value(7)) //Keep the row within the character
                 .ora(temp)
                 .tay()
 
@@ -0,0 +1,42 @@
+package net.nightwhistler.rleviewer;
+
+import net.nightwhistler.tddasm.mos65xx.Processor;
+import net.nightwhistler.tddasm.mos65xx.Program;
+import net.nightwhistler.tddasm.mos65xx.ProgramBuilder;
+import org.junit.jupiter.api.Test;
+
+import static net.nightwhistler.tddasm.mos65xx.Operand.value;
+import static net.nightwhistler.tddasm.mos65xx.Operand.zeroPage;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class SetPixelTest {
+
+    @Test
+    public void testPlotBelowTheFirstCharacterRow() {
+        //y = 13 is row 5 of the second character row, so only its low 3 bits go in the Y index
+        Program program = new ProgramBuilder()
+                .lda(value(2))
+                .sta(zeroPage(0xFD))
+                .lda(value(0))
+                .sta(zeroPage(0xFE))
+                .lda(value(13))
+                .sta(zeroPage(0xFF))
+                .jsr("plot")
+                .brk()
+                .include(SetPixel.plotRoutines())
+                .buildProgram();
+
+        Processor processor = new Processor();
+        processor.load(program);
+        processor.run(program.startAddress());
+
+        //$A000 + 1 * 320 for the character row, + 5 for the row within the character
+        int address = 0xA000 + 320 + 5;
+        assertEquals((byte) 0x20, processor.peekValue(address)); //x = 2 is bit 5
+        for (int other = 0xA000; other < 0xBF40; other++) {
+            if (other != address) {
+                assertEquals(0, processor.peekValue(other), "Byte at " + Integer.toHexString(other));
+            }
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package net.nightwhistler.tddasm.benchmarks;
+
+import net.nightwhistler.ByteUtils;
+import net.nightwhistler.tddasm.mos65xx.Label;
+import net.nightwhistler.tddasm.mos65xx.Program;
+import net.nightwhistler.tddasm.mos65xx.ProgramBuilder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+import static net.nightwhistler.tddasm.mos65xx.Operand.address;
+import static net.nightwhistler.tddasm.mos65xx.Operand.value;
+
+/**
+ * Building, compiling and disassembling programs of different sizes.
+ *
+ * Comparing the scores for the element counts shows how each step scales.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "--enable-preview")
+public class AssemblerBenchmark {
+
+    @Param({"100", "1000", "4000"})
+    public int elements;
+
+    private Program program;
+    private Program unlabelled;
+    private byte[] binary;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        program = build(elements);
+
+        byte[] compiled = program.compile();
+        binary = new byte[compiled.length + 2];
+        binary[0] = ByteUtils.lowByte(program.startAddress().toInt());
+        binary[1] = ByteUtils.highByte(program.startAddress().toInt());
+        System.arraycopy(compiled, 0, binary, 2, compiled.length);
+
+        unlabelled = new Program(program.startAddress(), Program.fromBinary(binary).elements()
+                .filter(element -> !(element instanceof Label)));
+    }
+
+    @Benchmark
+    public Program build() {
+        return build(elements);
+    }
+
+    @Benchmark
+    public byte[] compile() {
+        return program.compile();
+    }
+
+    @Benchmark
+    public Program fromBinary() {
+        return Program.fromBinary(binary);
+    }
+
+    @Benchmark
+    public Program generateLabels() {
+        return unlabelled.generateLabels();
+    }
+
+    /**
+     * Builds a program of about the given number of elements, made of
+     * small loops that each call a shared subroutine.
+     */
+    static Program build(int elements) {
+        var builder = new ProgramBuilder();
+        for (int block = 0; block < elements / 6; block++) {
+            builder = builder
+                    .label("block_" + block)
+                    .lda(value(block & 0xFF))
+                    .sta(address(0x2000).xIndexed())
+                    .jsr("subroutine")
+                    .inx()
+                    .bne("block_" + block);
+        }
+        return builder
+                .brk()
+                .label("subroutine")
+                .rts()
+                .buildProgram();
+    }
+}
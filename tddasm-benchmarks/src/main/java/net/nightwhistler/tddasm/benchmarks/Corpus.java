@@ -0,0 +1,824 @@
+package net.nightwhistler.tddasm.benchmarks;
+
+import net.nightwhistler.rleviewer.SetPixel;
+import net.nightwhistler.tddasm.mos65xx.Operand;
+import net.nightwhistler.tddasm.mos65xx.Program;
+import net.nightwhistler.tddasm.mos65xx.ProgramBuilder;
+
+import static net.nightwhistler.tddasm.c64.kernal.ChrOut.CHROUT_ADDRESS;
+import static net.nightwhistler.tddasm.mos65xx.Operand.address;
+import static net.nightwhistler.tddasm.mos65xx.Operand.label;
+import static net.nightwhistler.tddasm.mos65xx.Operand.value;
+import static net.nightwhistler.tddasm.mos65xx.Operand.zeroPage;
+
+/**
+ * The programs behind the larger Workloads.
+ */
+final class Corpus {
+
+    //Pointers for (indirect),Y addressing
+    private static final Operand.OneByteAddress pointer = zeroPage(0xFB);
+    private static final Operand.OneByteAddress destination = zeroPage(0xFD);
+
+    //Scratch variables
+    private static final Operand.OneByteAddress counter = zeroPage(0x02);
+    private static final Operand.OneByteAddress temp = zeroPage(0x03);
+
+    static final int SIEVE_FLAGS = 0x4000;
+    static final int SIEVE_SIZE = 0x1000;
+    static final int SIEVE_COUNT = 0x06;
+
+    static final int PATTERN = 0x6000;
+    static final int COPY = 0x8000;
+    static final int HALF_COPY = 0x9000;
+    static final int FILL = 0xA000;
+    static final int MEMORY_ROUNDS = 4;
+
+    static final int BUBBLE_SORT_ARRAY = 0x3000;
+    static final int QUICK_SORT_ARRAY = 0x3100;
+    static final int BUBBLE_SORT_SEED = 0x2A;
+    static final int QUICK_SORT_SEED = 0x99;
+
+    static final int PRODUCTS = 0x5000;
+    static final int QUOTIENTS = 0x5400;
+
+    static final int CRC_DATA = 0x3000;
+    static final int CRC_PAGES = 16;
+    static final int CRC_SEED = 0x5A;
+    static final int CRC_RESULT = 0x02;
+
+    static final String SCROLLER_MESSAGE = "the quick brown fox jumps over the lazy dog - tddasm text scroller - ";
+    static final int SCROLLER_FRAMES = 100;
+
+    private Corpus() {}
+
+    /**
+     * Sieve of Eratosthenes for the numbers below 4096, with a byte per number.
+     *
+     * Composite numbers get a 1 at $4000 + number. The number of primes
+     * is counted into $06/$07.
+     */
+    static Program sieve() {
+        var prime = zeroPage(0x04);
+        var multiple = zeroPage(0x08);
+        var count = zeroPage(SIEVE_COUNT);
+
+        return new ProgramBuilder()
+                .lda(value(0x00))
+                .sta(pointer)
+                .lda(value(SIEVE_FLAGS >> 8))
+                .sta(pointer.plus(1))
+                .lda(value(0x00))
+                .tay()
+                .ldx(value(SIEVE_SIZE >> 8))
+            .label("clear")
+                .sta(pointer.indirectIndexedY())
+                .iny()
+                .bne("clear")
+                .inc(pointer.plus(1))
+                .dex()
+                .bne("clear")
+
+                //0 and 1 aren't primes
+                .lda(value(0x01))
+                .sta(address(SIEVE_FLAGS))
+                .sta(address(SIEVE_FLAGS + 1))
+
+                //Cross off the multiples of every prime up to 63, as 64 * 64 is 4096
+                .ldx(value(0x02))
+            .label("next_number")
+                .lda(address(SIEVE_FLAGS).xIndexed())
+                .bne("composite")
+                .stx(prime)
+                .txa()
+                .asl()
+                .sta(multiple)
+                .lda(value(0x00))
+                .sta(multiple.plus(1))
+            .label("cross_off")
+                .lda(multiple.plus(1))
+                .and(value(0xF0)) //Stop at 4096
+                .bne("composite")
+                .lda(multiple)
+                .sta(pointer)
+                .lda(multiple.plus(1))
+                .clc()
+                .adc(value(SIEVE_FLAGS >> 8))
+                .sta(pointer.plus(1))
+                .lda(value(0x01))
+                .ldy(value(0x00))
+                .sta(pointer.indirectIndexedY())
+                .clc()
+                .lda(multiple)
+                .adc(prime)
+                .sta(multiple)
+                .lda(multiple.plus(1))
+                .adc(value(0x00))
+                .sta(multiple.plus(1))
+                .jmp("cross_off")
+            .label("composite")
+                .inx()
+                .cpx(value(64))
+                .bne("next_number")
+
+                //Count the numbers that weren't crossed off
+                .lda(value(0x00))
+                .sta(pointer)
+                .sta(count)
+                .sta(count.plus(1))
+                .lda(value(SIEVE_FLAGS >> 8))
+                .sta(pointer.plus(1))
+                .ldx(value(SIEVE_SIZE >> 8))
+                .ldy(value(0x00))
+            .label("count")
+                .lda(pointer.indirectIndexedY())
+                .bne("not_prime")
+                .inc(count)
+                .bne("not_prime")
+                .inc(count.plus(1))
+            .label("not_prime")
+                .iny()
+                .bne("count")
+                .inc(pointer.plus(1))
+                .dex()
+                .bne("count")
+                .brk()
+                .buildProgram();
+    }
+
+    /**
+     * Fills, generates and copies whole pages with memset and memcpy subroutines, 4 times over.
+     *
+     * Every round fills $A000-$BFFF with the round number, writes
+     * page ^ offset ^ round to $6000-$6FFF, copies that to $8000 and
+     * copies the first half of the copy to $9000. Rounds count down to 1.
+     */
+    static Program memory() {
+        return new ProgramBuilder()
+                .lda(value(MEMORY_ROUNDS))
+                .sta(counter)
+            .label("round")
+                .lda(value(FILL & 0xFF))
+                .sta(pointer)
+                .lda(value(FILL >> 8))
+                .sta(pointer.plus(1))
+                .ldx(value(0x20))
+                .lda(counter)
+                .jsr("memset")
+
+                .lda(value(PATTERN & 0xFF))
+                .sta(pointer)
+                .lda(value(PATTERN >> 8))
+                .sta(pointer.plus(1))
+                .ldx(value(0x10))
+                .jsr("pattern")
+
+                .lda(value(PATTERN & 0xFF))
+                .sta(pointer)
+                .lda(value(PATTERN >> 8))
+                .sta(pointer.plus(1))
+                .lda(value(COPY & 0xFF))
+                .sta(destination)
+                .lda(value(COPY >> 8))
+                .sta(destination.plus(1))
+                .ldx(value(0x10))
+                .jsr("memcpy")
+
+                .lda(value(COPY & 0xFF))
+                .sta(pointer)
+                .lda(value(COPY >> 8))
+                .sta(pointer.plus(1))
+                .lda(value(HALF_COPY & 0xFF))
+                .sta(destination)
+                .lda(value(HALF_COPY >> 8))
+                .sta(destination.plus(1))
+                .ldx(value(0x08))
+                .jsr("memcpy")
+
+                .dec(counter)
+                .bne("round")
+                .brk()
+
+            //Fills X pages from the pointer with the accumulator
+            .label("memset")
+                .ldy(value(0x00))
+            .label("memset_loop")
+                .sta(pointer.indirectIndexedY())
+                .iny()
+                .bne("memset_loop")
+                .inc(pointer.plus(1))
+                .dex()
+                .bne("memset_loop")
+                .rts()
+
+            //Copies X pages from the pointer to the destination
+            .label("memcpy")
+                .ldy(value(0x00))
+            .label("memcpy_loop")
+                .lda(pointer.indirectIndexedY())
+                .sta(destination.indirectIndexedY())
+                .iny()
+                .bne("memcpy_loop")
+                .inc(pointer.plus(1))
+                .inc(destination.plus(1))
+                .dex()
+                .bne("memcpy_loop")
+                .rts()
+
+            //Writes page ^ offset ^ round to X pages from the pointer
+            .label("pattern")
+                .ldy(value(0x00))
+            .label("pattern_loop")
+                .tya()
+                .eor(pointer.plus(1))
+                .eor(counter)
+                .sta(pointer.indirectIndexedY())
+                .iny()
+                .bne("pattern_loop")
+                .inc(pointer.plus(1))
+                .dex()
+                .bne("pattern_loop")
+                .rts()
+                .buildProgram();
+    }
+
+    /**
+     * Bubble sort of the 256 bytes at $3000, which start as a permutation of 0-255.
+     */
+    static Program bubbleSort() {
+        var array = address(BUBBLE_SORT_ARRAY);
+        var next = array.plus(1);
+
+        return new ProgramBuilder()
+                .include(fill(BUBBLE_SORT_ARRAY, 1, BUBBLE_SORT_SEED))
+                .lda(value(0xFF))
+                .sta(counter)
+            .label("pass")
+                .ldx(value(0x00))
+            .label("compare")
+                //Carry is set when the next element is at least as large
+                .lda(next.xIndexed())
+                .cmp(array.xIndexed())
+                .bcs("in_order")
+                .lda(array.xIndexed())
+                .tay()
+                .lda(next.xIndexed())
+                .sta(array.xIndexed())
+                .tya()
+                .sta(next.xIndexed())
+            .label("in_order")
+                .inx()
+                .cpx(value(0xFF))
+                .bne("compare")
+                .dec(counter)
+                .bne("pass")
+                .brk()
+                .buildProgram();
+    }
+
+    /**
+     * Recursive quicksort of the 256 bytes at $3100, which start as a permutation of 0-255.
+     *
+     * Uses the Lomuto partition scheme, with the last element as the
+     * pivot. The bounds of the right half are kept on the stack while the
+     * left half is sorted, and the right half is a tail call.
+     */
+    static Program quickSort() {
+        var array = address(QUICK_SORT_ARRAY);
+        var low = zeroPage(0x04);
+        var high = zeroPage(0x05);
+        var store = zeroPage(0x06);
+        var pivot = zeroPage(0x07);
+
+        return new ProgramBuilder()
+                .include(fill(QUICK_SORT_ARRAY, 1, QUICK_SORT_SEED))
+                .lda(value(0x00))
+                .sta(low)
+                .lda(value(0xFF))
+                .sta(high)
+                .jsr("quicksort")
+                .brk()
+
+            .label("quicksort")
+                //Nothing to do unless low < high
+                .lda(low)
+                .cmp(high)
+                .bcc("partition")
+                .rts()
+            .label("partition")
+                .ldx(high)
+                .lda(array.xIndexed())
+                .sta(pivot)
+                .lda(low)
+                .sta(store)
+                .ldy(low)
+            .label("scan")
+                .cpy(high)
+                .beq("place_pivot")
+                //Carry is clear when the element is smaller than the pivot
+                .lda(array.yIndexed())
+                .cmp(pivot)
+                .bcs("scan_next")
+                .ldx(store)
+                .lda(array.xIndexed())
+                .sta(temp)
+                .lda(array.yIndexed())
+                .sta(array.xIndexed())
+                .lda(temp)
+                .sta(array.yIndexed())
+                .inc(store)
+            .label("scan_next")
+                .iny()
+                .jmp("scan")
+            .label("place_pivot")
+                .ldx(store)
+                .lda(array.xIndexed())
+                .sta(temp)
+                .lda(array.yIndexed())
+                .sta(array.xIndexed())
+                .lda(temp)
+                .sta(array.yIndexed())
+
+                .lda(high)
+                .pha()
+                .lda(store)
+                .pha()
+                .cmp(low)
+                .beq("sort_right")
+                .ldx(store)
+                .dex()
+                .stx(high)
+                .jsr("quicksort")
+            .label("sort_right")
+                .pla()
+                .sta(store)
+                .pla()
+                .sta(high)
+                .lda(store)
+                .cmp(high)
+                .beq("done")
+                .ldx(store)
+                .inx()
+                .stx(low)
+                .jmp("quicksort")
+            .label("done")
+                .rts()
+                .buildProgram();
+    }
+
+    /**
+     * 256 unsigned 16 x 16 bit multiplications and 16 / 16 bit divisions.
+     *
+     * Iteration i multiplies 3 + 257i by 7 + 31i, and divides 3 + 257i by
+     * 1 + 13i, all modulo 65536. The 32 bit products go to $5000, the 16
+     * bit quotient and remainder pairs to $5400, low bytes first.
+     */
+    static Program multiplyDivide() {
+        var multiplicand = zeroPage(0x04);
+        var multiplier = zeroPage(0x06);
+        var divisor = zeroPage(0x08);
+        var product = zeroPage(0x0A);
+        var quotient = zeroPage(0x0E);
+        var remainder = zeroPage(0x10);
+        var divisorComplement = zeroPage(0x12);
+
+        return new ProgramBuilder()
+                .lda(value(0x03))
+                .sta(multiplicand)
+                .lda(value(0x07))
+                .sta(multiplier)
+                .lda(value(0x01))
+                .sta(divisor)
+                .lda(value(0x00))
+                .sta(multiplicand.plus(1))
+                .sta(multiplier.plus(1))
+                .sta(divisor.plus(1))
+                .sta(counter)
+                .sta(pointer)
+                .sta(destination)
+                .lda(value(PRODUCTS >> 8))
+                .sta(pointer.plus(1))
+                .lda(value(QUOTIENTS >> 8))
+                .sta(destination.plus(1))
+
+            .label("loop")
+                .jsr("multiply")
+                .ldy(value(0x00))
+                .lda(product)
+                .sta(pointer.indirectIndexedY())
+                .iny()
+                .lda(product.plus(1))
+                .sta(pointer.indirectIndexedY())
+                .iny()
+                .lda(product.plus(2))
+                .sta(pointer.indirectIndexedY())
+                .iny()
+                .lda(product.plus(3))
+                .sta(pointer.indirectIndexedY())
+                .clc()
+                .lda(pointer)
+                .adc(value(0x04))
+                .sta(pointer)
+                .lda(pointer.plus(1))
+                .adc(value(0x00))
+                .sta(pointer.plus(1))
+
+                .lda(multiplicand)
+                .sta(quotient)
+                .lda(multiplicand.plus(1))
+                .sta(quotient.plus(1))
+                .jsr("divide")
+                .ldy(value(0x00))
+                .lda(quotient)
+                .sta(destination.indirectIndexedY())
+                .iny()
+                .lda(quotient.plus(1))
+                .sta(destination.indirectIndexedY())
+                .iny()
+                .lda(remainder)
+                .sta(destination.indirectIndexedY())
+                .iny()
+                .lda(remainder.plus(1))
+                .sta(destination.indirectIndexedY())
+                .clc()
+                .lda(destination)
+                .adc(value(0x04))
+                .sta(destination)
+                .lda(destination.plus(1))
+                .adc(value(0x00))
+                .sta(destination.plus(1))
+
+                .clc()
+                .lda(multiplicand)
+                .adc(value(0x01))
+                .sta(multiplicand)
+                .lda(multiplicand.plus(1))
+                .adc(value(0x01))
+                .sta(multiplicand.plus(1))
+                .clc()
+                .lda(multiplier)
+                .adc(value(31))
+                .sta(multiplier)
+                .lda(multiplier.plus(1))
+                .adc(value(0x00))
+                .sta(multiplier.plus(1))
+                .clc()
+                .lda(divisor)
+                .adc(value(13))
+                .sta(divisor)
+                .lda(divisor.plus(1))
+                .adc(value(0x00))
+                .sta(divisor.plus(1))
+
+                .inc(counter)
+                .beq("finished")
+                .jmp("loop")
+            .label("finished")
+                .brk()
+
+            //Shift and add: the multiplier goes into the low half of the product and is shifted out bit by bit
+            .label("multiply")
+                .lda(value(0x00))
+                .sta(product.plus(2))
+                .sta(product.plus(3))
+                .lda(multiplier)
+                .sta(product)
+                .lda(multiplier.plus(1))
+                .sta(product.plus(1))
+                .ldx(value(16))
+                .lsr(product.plus(1))
+                .ror(product)
+            .label("multiply_bit")
+                .bcc("multiply_shift")
+                .clc()
+                .lda(product.plus(2))
+                .adc(multiplicand)
+                .sta(product.plus(2))
+                .lda(product.plus(3))
+                .adc(multiplicand.plus(1))
+                .sta(product.plus(3))
+            .label("multiply_shift")
+                .ror(product.plus(3))
+                .ror(product.plus(2))
+                .ror(product.plus(1))
+                .ror(product)
+                .dex()
+                .bne("multiply_bit")
+                .rts()
+
+            //Shift and subtract: the dividend is shifted into the remainder, and replaced by the quotient
+            .label("divide")
+                .lda(divisor)
+                .eor(value(0xFF))
+                .sta(divisorComplement)
+                .lda(divisor.plus(1))
+                .eor(value(0xFF))
+                .sta(divisorComplement.plus(1))
+                .lda(value(0x00))
+                .sta(remainder)
+                .sta(remainder.plus(1))
+                .ldx(value(16))
+            .label("divide_bit")
+                .asl(quotient)
+                .rol(quotient.plus(1))
+                .rol(remainder)
+                .rol(remainder.plus(1))
+                //remainder - divisor, carry is set when it fits
+                .lda(remainder)
+                .sec()
+                .adc(divisorComplement)
+                .tay()
+                .lda(remainder.plus(1))
+                .adc(divisorComplement.plus(1))
+                .bcc("divide_next")
+                .sta(remainder.plus(1))
+                .sty(remainder)
+                .inc(quotient)
+            .label("divide_next")
+                .dex()
+                .bne("divide_bit")
+                .rts()
+                .buildProgram();
+    }
+
+    /**
+     * Bit by bit CRC32 of the 4096 bytes at $3000, which are filled with 16 rounds of the sort permutation.
+     *
+     * The result is stored at $02-$05, low byte first.
+     */
+    static Program crc32() {
+        var crc = zeroPage(CRC_RESULT);
+        var pages = zeroPage(0x06);
+
+        return new ProgramBuilder()
+                .include(fill(CRC_DATA, CRC_PAGES, CRC_SEED))
+                .lda(value(0xFF))
+                .sta(crc)
+                .sta(crc.plus(1))
+                .sta(crc.plus(2))
+                .sta(crc.plus(3))
+                .lda(value(CRC_DATA & 0xFF))
+                .sta(pointer)
+                .lda(value(CRC_DATA >> 8))
+                .sta(pointer.plus(1))
+                .lda(value(CRC_PAGES))
+                .sta(pages)
+                .ldy(value(0x00))
+            .label("next_byte")
+                .lda(pointer.indirectIndexedY())
+                .jsr("crc_byte")
+                .iny()
+                .bne("next_byte")
+                .inc(pointer.plus(1))
+                .dec(pages)
+                .bne("next_byte")
+
+                .ldx(value(0x04))
+            .label("complement")
+                .lda(zeroPage(CRC_RESULT - 1).xIndexed())
+                .eor(value(0xFF))
+                .sta(zeroPage(CRC_RESULT - 1).xIndexed())
+                .dex()
+                .bne("complement")
+                .brk()
+
+            //Adds the accumulator to the CRC, using the reversed polynomial $EDB88320
+            .label("crc_byte")
+                .eor(crc)
+                .sta(crc)
+                .ldx(value(8))
+            .label("crc_bit")
+                .lsr(crc.plus(3))
+                .ror(crc.plus(2))
+                .ror(crc.plus(1))
+                .ror(crc)
+                .bcc("crc_next")
+                .lda(crc.plus(3))
+                .eor(value(0xED))
+                .sta(crc.plus(3))
+                .lda(crc.plus(2))
+                .eor(value(0xB8))
+                .sta(crc.plus(2))
+                .lda(crc.plus(1))
+                .eor(value(0x83))
+                .sta(crc.plus(1))
+                .lda(crc)
+                .eor(value(0x20))
+                .sta(crc)
+            .label("crc_next")
+                .dex()
+                .bne("crc_bit")
+                .rts()
+                .buildProgram();
+    }
+
+    /**
+     * Prints a screen full of a message with ChrOut, each line starting a character later,
+     * and then scrolls the screen up a line at a time for 100 frames.
+     *
+     * Scrolling copies the bottom 24 lines up a line, and writes the next
+     * line of the message into the bottom line.
+     */
+    static Program textScroller() {
+        var start = zeroPage(0x04);
+        var screen = 0x0400;
+        var bottomLine = address(screen + 24 * 40);
+        int length = SCROLLER_MESSAGE.length();
+
+        return new ProgramBuilder()
+                .lda(value(0x00))
+                .sta(start)
+                .lda(value(25))
+                .sta(counter)
+            .label("print_line")
+                .ldx(start)
+                .ldy(value(40))
+            .label("print_char")
+                .lda(label("message").xIndexed())
+                .jsr(CHROUT_ADDRESS)
+                .inx()
+                .cpx(value(length))
+                .bne("print_next")
+                .ldx(value(0x00))
+            .label("print_next")
+                .dey()
+                .bne("print_char")
+                .jsr("next_start")
+                .dec(counter)
+                .bne("print_line")
+
+                .lda(value(SCROLLER_FRAMES))
+                .sta(counter)
+            .label("frame")
+                //960 bytes from $0428 to $0400: 3 pages, and 192 bytes
+                .lda(value((screen + 40) & 0xFF))
+                .sta(pointer)
+                .lda(value((screen + 40) >> 8))
+                .sta(pointer.plus(1))
+                .lda(value(screen & 0xFF))
+                .sta(destination)
+                .lda(value(screen >> 8))
+                .sta(destination.plus(1))
+                .ldx(value(0x03))
+                .ldy(value(0x00))
+            .label("scroll_page")
+                .lda(pointer.indirectIndexedY())
+                .sta(destination.indirectIndexedY())
+                .iny()
+                .bne("scroll_page")
+                .inc(pointer.plus(1))
+                .inc(destination.plus(1))
+                .dex()
+                .bne("scroll_page")
+            .label("scroll_rest")
+                .lda(pointer.indirectIndexedY())
+                .sta(destination.indirectIndexedY())
+                .iny()
+                .cpy(value(192))
+                .bne("scroll_rest")
+
+                .ldx(start)
+                .ldy(value(0x00))
+            .label("bottom_char")
+                .lda(label("screen_codes").xIndexed())
+                .sta(bottomLine.yIndexed())
+                .inx()
+                .cpx(value(length))
+                .bne("bottom_next")
+                .ldx(value(0x00))
+            .label("bottom_next")
+                .iny()
+                .cpy(value(40))
+                .bne("bottom_char")
+                .jsr("next_start")
+                .dec(counter)
+                .bne("frame")
+                .brk()
+
+            //The next line starts a character later in the message
+            .label("next_start")
+                .inc(start)
+                .lda(start)
+                .cmp(value(length))
+                .bne("next_start_done")
+                .lda(value(0x00))
+                .sta(start)
+            .label("next_start_done")
+                .rts()
+
+            .label("message")
+                .text(SCROLLER_MESSAGE)
+            .label("screen_codes")
+                .screenCodes(SCROLLER_MESSAGE)
+                .buildProgram();
+    }
+
+    /**
+     * Plots a diagonal line, a horizontal line, a vertical line and a filled box with the plot routine from SetPixel.
+     */
+    static Program bitmapPlotter() {
+        var xpos = zeroPage(0xFD);
+        var ypos = zeroPage(0xFF);
+        var row = zeroPage(0x03);
+
+        return new ProgramBuilder()
+                //Diagonal from 0,0 to 199,199
+                .lda(value(0x00))
+                .sta(xpos.plus(1))
+                .sta(row)
+            .label("diagonal")
+                .lda(row)
+                .sta(xpos)
+                .sta(ypos)
+                .jsr("plot")
+                .inc(row)
+                .lda(row)
+                .cmp(value(200))
+                .bne("diagonal")
+
+                //Horizontal at y = 100, from 0 to 319
+                .lda(value(100))
+                .sta(ypos)
+                .lda(value(0x00))
+                .sta(xpos)
+                .sta(xpos.plus(1))
+            .label("horizontal")
+                .jsr("plot")
+                .inc(xpos)
+                .bne("horizontal_check")
+                .inc(xpos.plus(1))
+            .label("horizontal_check")
+                .lda(xpos)
+                .cmp(value(320 & 0xFF))
+                .bne("horizontal")
+                .lda(xpos.plus(1))
+                .cmp(value(320 >> 8))
+                .bne("horizontal")
+
+                //Vertical at x = 300, from 0 to 199
+                .lda(value(0x00))
+                .sta(row)
+            .label("vertical")
+                .lda(value(300 & 0xFF))
+                .sta(xpos)
+                .lda(value(300 >> 8))
+                .sta(xpos.plus(1))
+                .lda(row)
+                .sta(ypos)
+                .jsr("plot")
+                .inc(row)
+                .lda(row)
+                .cmp(value(200))
+                .bne("vertical")
+
+                //Box from 20,20 to 99,59
+                .lda(value(20))
+                .sta(row)
+            .label("box_row")
+                .lda(value(20))
+                .sta(xpos)
+                .lda(value(0x00))
+                .sta(xpos.plus(1))
+            .label("box_pixel")
+                .lda(row)
+                .sta(ypos)
+                .jsr("plot")
+                .inc(xpos)
+                .lda(xpos)
+                .cmp(value(100))
+                .bne("box_pixel")
+                .inc(row)
+                .lda(row)
+                .cmp(value(60))
+                .bne("box_row")
+                .brk()
+                .include(SetPixel.plotRoutines())
+                .buildProgram();
+    }
+
+    /**
+     * Fills whole pages with x = 5x + 1, starting from a seed. Every 256 bytes visit every value from 0 to 255 once.
+     */
+    private static ProgramBuilder fill(int start, int pages, int seed) {
+        return new ProgramBuilder()
+                .lda(value(start & 0xFF))
+                .sta(pointer)
+                .lda(value(start >> 8))
+                .sta(pointer.plus(1))
+                .ldx(value(pages))
+                .ldy(value(0x00))
+                .lda(value(seed))
+            .label("fill")
+                .sta(pointer.indirectIndexedY())
+                .sta(temp)
+                .asl()
+                .asl()
+                .sec()
+                .adc(temp)
+                .iny()
+                .bne("fill")
+                .inc(pointer.plus(1))
+                .dex()
+                .bne("fill");
+    }
+}
@@ -0,0 +1,77 @@
+package net.nightwhistler.tddasm.benchmarks;
+
+import net.nightwhistler.tddasm.mos65xx.Processor;
+import net.nightwhistler.tddasm.mos65xx.ProcessorEvent;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs each Workload from the same starting state, with and without an event listener.
+ *
+ * Next to runs per second, the instructions counter gives instructions
+ * per second. With the GC profiler, gc.alloc.rate.norm divided by the
+ * instructions per run gives the allocation per instruction.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "--enable-preview")
+public class ProcessorBenchmark {
+
+    /**
+     * Counts the instructions executed, reported by JMH as a rate next to the score.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Counters {
+        public long instructions;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            instructions = 0;
+        }
+    }
+
+    @Param
+    public Workload workload;
+
+    @Param({"false", "true"})
+    public boolean listeners;
+
+    private Processor processor;
+    private Processor.Snapshot start;
+    private long listened;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        processor = workload.load();
+        if (listeners) {
+            processor.registerEventListener(ProcessorEvent.OperationPerformed.class, event -> listened++);
+        }
+        start = processor.snapshot();
+    }
+
+    @Benchmark
+    public Processor run(Counters counters) {
+        workload.restart(processor, start);
+        long before = processor.getOperationCount();
+        processor.run();
+        counters.instructions += processor.getOperationCount() - before;
+        return processor;
+    }
+}
@@ -0,0 +1,239 @@
+package net.nightwhistler.tddasm.benchmarks;
+
+import net.nightwhistler.rleviewer.ClearBitmapMemory;
+import net.nightwhistler.tddasm.c64.kernal.ChrOut;
+import net.nightwhistler.tddasm.mos65xx.OpCode;
+import net.nightwhistler.tddasm.mos65xx.Operation;
+import net.nightwhistler.tddasm.mos65xx.Processor;
+import net.nightwhistler.tddasm.mos65xx.Program;
+import net.nightwhistler.tddasm.mos65xx.ProgramBuilder;
+
+import java.util.zip.CRC32;
+
+import static net.nightwhistler.tddasm.mos65xx.Operand.address;
+import static net.nightwhistler.tddasm.mos65xx.Operand.value;
+import static net.nightwhistler.tddasm.mos65xx.Operand.zeroPage;
+
+/**
+ * Programs that each stress one part of the emulator.
+ *
+ * Every Workload knows exactly how many instructions it executes, and a
+ * checksum of the whole memory when it's done, so a faster emulator can
+ * be checked to still do the same work.
+ */
+public enum Workload {
+
+    /**
+     * Nested DEX/DEY loops, 65536 iterations of nothing but registers and branches.
+     */
+    TIGHT_LOOP(131_588, 0xBC28E4C9L) {
+        @Override
+        Processor load() {
+            return load(new ProgramBuilder()
+                    .ldy(value(0x00))
+                    .ldx(value(0x00))
+                    .label("loop")
+                    .dex()
+                    .bne("loop")
+                    .dey()
+                    .bne("loop")
+                    .buildProgram());
+        }
+    },
+
+    /**
+     * Clears the 8000 bytes of bitmap memory with ClearBitmapMemory.
+     */
+    CLEAR_BITMAP(24_195, 0xD3D01F02L) {
+        @Override
+        Processor load() {
+            Program program = ClearBitmapMemory.clrBitMapTest();
+            var processor = new Processor();
+            processor.load(program);
+
+            //The routine ends with an RTS, so call it from a JSR followed by a BRK
+            var entry = address(0xC000);
+            processor.storeOperationAt(entry,
+                    new Operation(OpCode.JSR, program.resolveLabelAbsolute("fill_memory").get()));
+            processor.setProgramCounter(entry);
+            return processor;
+        }
+    },
+
+    /**
+     * Calls a short subroutine 256 times, which calls another one, so most of the time goes to JSR and RTS.
+     */
+    SUBROUTINES(2_307, 0x57330DF9L) {
+        @Override
+        Processor load() {
+            return load(new ProgramBuilder()
+                    .ldx(value(0x00))
+                    .label("loop")
+                    .jsr("outer")
+                    .inx()
+                    .bne("loop")
+                    .brk()
+                    .label("outer")
+                    .txa()
+                    .jsr("inner")
+                    .rts()
+                    .label("inner")
+                    .sta(address(0x2000).xIndexed())
+                    .inc(zeroPage(0xFB))
+                    .rts()
+                    .buildProgram());
+        }
+    },
+
+    /**
+     * Sieve of Eratosthenes for the numbers below 4096: indexed loads and 16 bit additions.
+     */
+    SIEVE(170_291, 0x3AB1C1B2L) {
+        @Override
+        Processor load() {
+            return load(Corpus.sieve());
+        }
+    },
+
+    /**
+     * Page sized memset and memcpy loops, which are mostly (indirect),Y loads and stores.
+     */
+    MEMORY(296_048, 0x9CB57965L) {
+        @Override
+        Processor load() {
+            return load(Corpus.memory());
+        }
+    },
+
+    /**
+     * Bubble sort of 256 bytes: compares and swaps with absolute indexed addressing.
+     */
+    BUBBLE_SORT(483_553, 0xC3D8DE49L) {
+        @Override
+        Processor load() {
+            return load(Corpus.bubbleSort());
+        }
+    },
+
+    /**
+     * Recursive quicksort of 256 bytes, which keeps its bounds on the stack.
+     */
+    QUICK_SORT(34_958, 0x7FD65FDDL) {
+        @Override
+        Processor load() {
+            return load(Corpus.quickSort());
+        }
+    },
+
+    /**
+     * 16 bit multiplications and divisions by shifting, so lots of ASL, ROL, LSR and ROR on zero page.
+     */
+    MULTIPLY_DIVIDE(118_719, 0x39DBB37AL) {
+        @Override
+        Processor load() {
+            return load(Corpus.multiplyDivide());
+        }
+    },
+
+    /**
+     * Bit by bit CRC32 of 4 KB.
+     */
+    CRC32(490_842, 0x3F352FA2L) {
+        @Override
+        Processor load() {
+            return load(Corpus.crc32());
+        }
+    },
+
+    /**
+     * Prints a screen of text through ChrOut and scrolls it up, with a JavaRoutine call for every character printed.
+     */
+    TEXT_SCROLLER(447_727, 0x2E4570B4L) {
+        @Override
+        Processor load() {
+            return load(Corpus.textScroller());
+        }
+
+        @Override
+        void restart(Processor processor, Processor.Snapshot start) {
+            super.restart(processor, start);
+            //ChrOut keeps its cursor in Java, so it needs a new one
+            processor.registerJavaRoutine(new ChrOut());
+        }
+    },
+
+    /**
+     * Lines and a filled box on the hires bitmap, using the plot routine from SetPixel.
+     */
+    BITMAP_PLOTTER(262_001, 0xC53BC6ADL) {
+        @Override
+        Processor load() {
+            return load(Corpus.bitmapPlotter());
+        }
+    };
+
+    private final long instructions;
+    private final long checksum;
+
+    Workload(long instructions, long checksum) {
+        this.instructions = instructions;
+        this.checksum = checksum;
+    }
+
+    /**
+     * Creates a Processor with the workload loaded, and the program counter at its start.
+     */
+    abstract Processor load();
+
+    /**
+     * Puts a Processor back to a snapshot taken right after load, so the workload can run again.
+     */
+    void restart(Processor processor, Processor.Snapshot start) {
+        processor.restore(start);
+    }
+
+    /**
+     * @return the number of instructions a run executes, including the final BRK
+     */
+    public long instructions() {
+        return instructions;
+    }
+
+    /**
+     * @return the CRC32 of the 64 KB of memory after a run
+     */
+    public long checksum() {
+        return checksum;
+    }
+
+    /**
+     * Checks a Processor that was loaded with this workload and ran it to the end.
+     *
+     * @throws IllegalStateException if it didn't execute exactly the expected
+     *                               instructions, or memory isn't as expected
+     */
+    public void verify(Processor processor) {
+        if (processor.getOperationCount() != instructions) {
+            throw new IllegalStateException(String.format("%s executed %d instructions instead of %d",
+                    this, processor.getOperationCount(), instructions));
+        }
+        long actual = checksum(processor);
+        if (actual != checksum) {
+            throw new IllegalStateException(String.format("%s ended with memory checksum %08x instead of %08x",
+                    this, actual, checksum));
+        }
+    }
+
+    static long checksum(Processor processor) {
+        var crc = new CRC32();
+        crc.update(processor.readMemory(0x0000, 0xFFFF));
+        crc.update(processor.peekValue(0xFFFF));
+        return crc.getValue();
+    }
+
+    static Processor load(Program program) {
+        var processor = new Processor();
+        processor.load(program);
+        return processor;
+    }
+}
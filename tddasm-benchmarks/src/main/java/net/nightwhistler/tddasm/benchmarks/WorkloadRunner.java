@@ -0,0 +1,141 @@
+package net.nightwhistler.tddasm.benchmarks;
+
+import io.vavr.collection.List;
+import net.nightwhistler.tddasm.mos65xx.Processor;
+
+import java.io.PrintStream;
+
+/**
+ * Runs Workloads outside of JMH, and reports instructions and cycles per second.
+ *
+ * Every run gets a freshly loaded Processor, and is verified against the
+ * instruction count and memory checksum of its Workload, so a wrong
+ * answer fails the run instead of showing up as a speedup. Loading isn't
+ * part of the measured time.
+ *
+ * <pre>
+ * java --enable-preview -cp tddasm-benchmarks/target/benchmarks.jar \
+ *     net.nightwhistler.tddasm.benchmarks.WorkloadRunner [-runs 20] [-warmup 20] [WORKLOAD...]
+ * </pre>
+ */
+public final class WorkloadRunner {
+
+    public static final int DEFAULT_RUNS = 20;
+    public static final int DEFAULT_WARMUP = 20;
+
+    //Runs that vary more than this are marked in the report
+    private static final double NOISY = 0.05;
+
+    /**
+     * Mean, standard deviation and range of a set of measurements.
+     */
+    public record Statistics(double mean, double standardDeviation, double min, double max) {
+
+        static Statistics of(double[] samples) {
+            double sum = 0;
+            double min = Double.MAX_VALUE;
+            double max = 0;
+            for (double sample : samples) {
+                sum += sample;
+                min = Math.min(min, sample);
+                max = Math.max(max, sample);
+            }
+            double mean = sum / samples.length;
+
+            double squares = 0;
+            for (double sample : samples) {
+                squares += (sample - mean) * (sample - mean);
+            }
+            double deviation = samples.length > 1 ? Math.sqrt(squares / (samples.length - 1)) : 0;
+            return new Statistics(mean, deviation, min, max);
+        }
+
+        /**
+         * @return the standard deviation as a fraction of the mean
+         */
+        public double relativeDeviation() {
+            return mean == 0 ? 0 : standardDeviation / mean;
+        }
+    }
+
+    public record Result(Workload workload, int runs, Statistics instructionsPerSecond, Statistics cyclesPerSecond) {}
+
+    private WorkloadRunner() {}
+
+    public static void main(String[] args) {
+        int runs = DEFAULT_RUNS;
+        int warmup = DEFAULT_WARMUP;
+        List<Workload> workloads = List.empty();
+
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "-runs" -> runs = Integer.parseInt(args[++i]);
+                case "-warmup" -> warmup = Integer.parseInt(args[++i]);
+                default -> workloads = workloads.append(Workload.valueOf(args[i].toUpperCase()));
+            }
+        }
+        if (workloads.isEmpty()) {
+            workloads = List.of(Workload.values());
+        }
+
+        var out = System.out;
+        out.printf("%-16s %16s %8s %16s %8s%n", "Workload", "instructions/s", "+/-", "cycles/s", "+/-");
+        for (Workload workload : workloads) {
+            print(out, run(workload, warmup, runs));
+        }
+    }
+
+    /**
+     * Runs a Workload a number of times after warming up, verifying every run.
+     *
+     * @throws IllegalStateException if any run, including the warmup runs, fails verification
+     */
+    public static Result run(Workload workload, int warmup, int runs) {
+        if (runs < 1) {
+            throw new IllegalArgumentException("Need at least 1 run, got " + runs);
+        }
+
+        for (int i = 0; i < warmup; i++) {
+            runOnce(workload);
+        }
+
+        double[] instructionsPerSecond = new double[runs];
+        double[] cyclesPerSecond = new double[runs];
+        for (int i = 0; i < runs; i++) {
+            var processor = workload.load();
+            long cyclesBefore = processor.getCycleCount();
+            long nanos = runOnce(workload, processor);
+
+            double seconds = Math.max(nanos, 1) / 1e9;
+            instructionsPerSecond[i] = workload.instructions() / seconds;
+            cyclesPerSecond[i] = (processor.getCycleCount() - cyclesBefore) / seconds;
+        }
+
+        return new Result(workload, runs, Statistics.of(instructionsPerSecond), Statistics.of(cyclesPerSecond));
+    }
+
+    private static void runOnce(Workload workload) {
+        runOnce(workload, workload.load());
+    }
+
+    private static long runOnce(Workload workload, Processor processor) {
+        long start = System.nanoTime();
+        processor.run();
+        long nanos = System.nanoTime() - start;
+
+        workload.verify(processor);
+        return nanos;
+    }
+
+    private static void print(PrintStream out, Result result) {
+        var instructions = result.instructionsPerSecond();
+        var cycles = result.cyclesPerSecond();
+        boolean noisy = instructions.relativeDeviation() > NOISY;
+
+        out.printf("%-16s %16.0f %7.1f%% %16.0f %7.1f%%%s%n",
+                result.workload(),
+                instructions.mean(), instructions.relativeDeviation() * 100,
+                cycles.mean(), cycles.relativeDeviation() * 100,
+                noisy ? "  (noisy, try more runs)" : "");
+    }
+}
@@ -0,0 +1,174 @@
+package net.nightwhistler.tddasm.benchmarks;
+
+import net.nightwhistler.tddasm.c64.screen.ScreenCode;
+import net.nightwhistler.tddasm.mos65xx.Processor;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class WorkloadTest {
+
+    @Test
+    public void testEveryWorkloadMatchesItsExpectations() {
+        for (Workload workload : Workload.values()) {
+            workload.verify(run(workload));
+        }
+    }
+
+    @Test
+    public void testRestartRunsTheSameWorkAgain() {
+        for (Workload workload : Workload.values()) {
+            var processor = workload.load();
+            var start = processor.snapshot();
+            processor.run();
+            long checksum = Workload.checksum(processor);
+
+            workload.restart(processor, start);
+            processor.run();
+            assertEquals(checksum, Workload.checksum(processor), workload.toString());
+        }
+    }
+
+    @Test
+    public void testVerifyFailsOnWrongMemory() {
+        var processor = run(Workload.SIEVE);
+        processor.pokeValue(0x4002, (byte) 1);
+
+        assertThrows(IllegalStateException.class, () -> Workload.SIEVE.verify(processor));
+    }
+
+    @Test
+    public void testSieve() {
+        var processor = run(Workload.SIEVE);
+
+        int primes = 0;
+        for (int number = 0; number < Corpus.SIEVE_SIZE; number++) {
+            boolean prime = isPrime(number);
+            primes += prime ? 1 : 0;
+            assertEquals(prime ? 0 : 1, processor.peekValue(Corpus.SIEVE_FLAGS + number), "Number " + number);
+        }
+        assertEquals(primes, word(processor, Corpus.SIEVE_COUNT));
+    }
+
+    @Test
+    public void testMemory() {
+        var processor = run(Workload.MEMORY);
+
+        byte[] pattern = new byte[0x1000];
+        for (int i = 0; i < pattern.length; i++) {
+            pattern[i] = (byte) (i ^ ((Corpus.PATTERN + i) >> 8) ^ 1);
+        }
+        byte[] fill = new byte[0x2000];
+        Arrays.fill(fill, (byte) 1);
+
+        assertArrayEquals(pattern, processor.readMemory(Corpus.PATTERN, Corpus.PATTERN + 0x1000));
+        assertArrayEquals(pattern, processor.readMemory(Corpus.COPY, Corpus.COPY + 0x1000));
+        assertArrayEquals(Arrays.copyOf(pattern, 0x800),
+                processor.readMemory(Corpus.HALF_COPY, Corpus.HALF_COPY + 0x800));
+        assertArrayEquals(fill, processor.readMemory(Corpus.FILL, Corpus.FILL + 0x2000));
+    }
+
+    @Test
+    public void testSorts() {
+        byte[] sorted = new byte[256];
+        for (int i = 0; i < sorted.length; i++) {
+            sorted[i] = (byte) i;
+        }
+
+        var bubbleSort = run(Workload.BUBBLE_SORT);
+        assertArrayEquals(sorted, bubbleSort.readMemory(Corpus.BUBBLE_SORT_ARRAY, Corpus.BUBBLE_SORT_ARRAY + 256));
+
+        var quickSort = run(Workload.QUICK_SORT);
+        assertArrayEquals(sorted, quickSort.readMemory(Corpus.QUICK_SORT_ARRAY, Corpus.QUICK_SORT_ARRAY + 256));
+    }
+
+    @Test
+    public void testMultiplyDivide() {
+        var processor = run(Workload.MULTIPLY_DIVIDE);
+
+        for (int i = 0; i < 256; i++) {
+            long a = (3 + 257 * i) & 0xFFFF;
+            long b = (7 + 31 * i) & 0xFFFF;
+            long d = (1 + 13 * i) & 0xFFFF;
+
+            assertEquals(a * b, dword(processor, Corpus.PRODUCTS + 4 * i), "Product " + i);
+            assertEquals(a / d, word(processor, Corpus.QUOTIENTS + 4 * i), "Quotient " + i);
+            assertEquals(a % d, word(processor, Corpus.QUOTIENTS + 4 * i + 2), "Remainder " + i);
+        }
+    }
+
+    @Test
+    public void testCrc32() {
+        var processor = run(Workload.CRC32);
+
+        byte[] data = new byte[Corpus.CRC_PAGES * 256];
+        int value = Corpus.CRC_SEED;
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) value;
+            value = (value * 5 + 1) & 0xFF;
+        }
+        var crc = new CRC32();
+        crc.update(data);
+
+        assertEquals(crc.getValue(), dword(processor, Corpus.CRC_RESULT));
+    }
+
+    @Test
+    public void testTextScroller() {
+        var processor = run(Workload.TEXT_SCROLLER);
+
+        String message = Corpus.SCROLLER_MESSAGE;
+        for (int row = 0; row < 25; row++) {
+            int line = Corpus.SCROLLER_FRAMES + row;
+            for (int column = 0; column < 40; column++) {
+                byte expected = ScreenCode.toScreenCode((byte) message.charAt((line + column) % message.length()));
+                assertEquals(expected, processor.peekValue(0x0400 + row * 40 + column), "Row " + row + ", column " + column);
+            }
+        }
+    }
+
+    @Test
+    public void testBitmapPlotter() {
+        var processor = run(Workload.BITMAP_PLOTTER);
+
+        for (int y = 0; y < 200; y++) {
+            for (int x = 0; x < 320; x++) {
+                boolean set = x == y || y == 100 || x == 300 || (x >= 20 && x < 100 && y >= 20 && y < 60);
+                int address = 0xA000 + (y / 8) * 320 + (x / 8) * 8 + (y % 8);
+                int bit = (processor.peekValue(address) >> (7 - x % 8)) & 1;
+                assertEquals(set ? 1 : 0, bit, "Pixel " + x + ", " + y);
+            }
+        }
+    }
+
+    private static Processor run(Workload workload) {
+        var processor = workload.load();
+        processor.run();
+        return processor;
+    }
+
+    private static boolean isPrime(int number) {
+        if (number < 2) {
+            return false;
+        }
+        for (int divisor = 2; divisor * divisor <= number; divisor++) {
+            if (number % divisor == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int word(Processor processor, int address) {
+        return Byte.toUnsignedInt(processor.peekValue(address)) | Byte.toUnsignedInt(processor.peekValue(address + 1)) << 8;
+    }
+
+    private static long dword(Processor processor, int address) {
+        return word(processor, address) | (long) word(processor, address + 2) << 16;
+    }
+}
@@ -0,0 +1,306 @@
+package net.nightwhistler.tddasm.mos65xx;
+
+import io.vavr.collection.List;
+
+import java.util.Objects;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A listener that hands events to another thread, so slow listeners don't slow down the Processor.
+ *
+ * Events go into a ring buffer that is allocated up front. A consumer
+ * thread takes them out and delivers them in batches to a BatchListener,
+ * in the order the Processor sent them.
+ *
+ * The ring buffer has a single producer: register an AsyncEventListener
+ * with one Processor only, and run that Processor on one thread at a time.
+ *
+ * What happens when the buffer is full depends on the Backpressure:
+ * <ul>
+ *     <li>BLOCK makes the Processor wait until there is room, so no event is lost</li>
+ *     <li>DROP throws the event away</li>
+ *     <li>SAMPLE only keeps one out of every sampleRate events once the buffer
+ *     is half full, and throws away the rest</li>
+ * </ul>
+ * Events that are thrown away are counted in droppedEvents().
+ *
+ * <pre>
+ * try (var async = AsyncEventListener.builder(events -&gt; events.forEach(System.out::println))
+ *         .backpressure(AsyncEventListener.Backpressure.DROP)
+ *         .start()) {
+ *     processor.registerEventListener(async);
+ *     processor.run(program.startAddress());
+ * }
+ * </pre>
+ */
+public final class AsyncEventListener<E extends ProcessorEvent> implements ProcessorEvent.Listener<E>, AutoCloseable {
+
+    public enum Backpressure { BLOCK, DROP, SAMPLE }
+
+    public static final int DEFAULT_CAPACITY = 8192;
+
+    public static final int DEFAULT_BATCH_SIZE = 512;
+
+    public static final int DEFAULT_SAMPLE_RATE = 16;
+
+    //How long the consumer sleeps when there is nothing to do, or the producer when there is no room
+    private static final long PARK_NANOS = 50_000;
+
+    //The consumer sleeps twice as long every time it finds nothing to do, up to this
+    private static final long MAX_IDLE_PARK_NANOS = 10_000_000;
+
+    private final Object[] buffer;
+    private final int mask;
+    private final int batchSize;
+    private final Backpressure backpressure;
+    private final int sampleRate;
+    private final ProcessorEvent.BatchListener<E> batchListener;
+
+    //The number of events put in and taken out, the slot of an event is its number & mask
+    private final AtomicLong produced = new AtomicLong();
+    private final AtomicLong consumed = new AtomicLong();
+
+    //Only used by the producer, to avoid reading consumed for every event
+    private long consumedCache;
+    private long sampleCounter;
+
+    private final AtomicLong droppedEvents = new AtomicLong();
+
+    private final Thread consumer;
+    //Set while the consumer is parked, so the producer knows to unpark it
+    private volatile boolean consumerParked;
+    private volatile boolean closed;
+    private volatile RuntimeException failure;
+
+    private AsyncEventListener(Builder<E> builder) {
+        this.buffer = new Object[builder.capacity];
+        this.mask = builder.capacity - 1;
+        this.batchSize = builder.batchSize;
+        this.backpressure = builder.backpressure;
+        this.sampleRate = builder.sampleRate;
+        this.batchListener = builder.batchListener;
+
+        this.consumer = builder.threadFactory.newThread(this::consume);
+        this.consumer.start();
+    }
+
+    public static <E extends ProcessorEvent> Builder<E> builder(ProcessorEvent.BatchListener<E> batchListener) {
+        return new Builder<>(batchListener);
+    }
+
+    @Override
+    public void receiveEvent(E processorEvent) {
+        if (closed) {
+            throw new IllegalStateException("AsyncEventListener is closed");
+        }
+
+        long sequence = produced.get();
+
+        if (backpressure == Backpressure.SAMPLE && sequence - consumedCache > mask / 2) {
+            consumedCache = consumed.get();
+            if (sequence - consumedCache > mask / 2 && sampleCounter++ % sampleRate != 0) {
+                droppedEvents.incrementAndGet();
+                return;
+            }
+        }
+
+        if (sequence - consumedCache > mask) {
+            consumedCache = consumed.get();
+
+            while (sequence - consumedCache > mask) {
+                if (backpressure != Backpressure.BLOCK || failure != null) {
+                    droppedEvents.incrementAndGet();
+                    return;
+                }
+
+                LockSupport.parkNanos(PARK_NANOS);
+                consumedCache = consumed.get();
+            }
+        }
+
+        buffer[(int) sequence & mask] = processorEvent;
+        produced.lazySet(sequence + 1);
+
+        if (consumerParked) {
+            consumerParked = false;
+            LockSupport.unpark(consumer);
+        }
+    }
+
+    /**
+     * Waits until every event received so far has been delivered or dropped.
+     */
+    public void flush() {
+        long target = produced.get();
+        while (consumed.get() < target && consumer.isAlive()) {
+            LockSupport.parkNanos(PARK_NANOS);
+        }
+        rethrowFailure();
+    }
+
+    /**
+     * Delivers the remaining events and stops the consumer thread.
+     *
+     * @throws IllegalStateException when the BatchListener failed
+     */
+    @Override
+    public void close() {
+        if (!closed) {
+            closed = true;
+            LockSupport.unpark(consumer);
+
+            try {
+                consumer.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        rethrowFailure();
+    }
+
+    /**
+     * The number of events that were thrown away because the buffer was full, or not sampled.
+     */
+    public long droppedEvents() {
+        return droppedEvents.get();
+    }
+
+    /**
+     * The number of events waiting to be delivered.
+     */
+    public int backlog() {
+        return (int) (produced.get() - consumed.get());
+    }
+
+    private void consume() {
+        long idleParkNanos = PARK_NANOS;
+
+        while (true) {
+            //Read closed first, so no events sent before close() are missed
+            boolean done = closed;
+            long from = consumed.get();
+            long available = produced.get();
+
+            if (from == available) {
+                if (done) {
+                    return;
+                }
+
+                //Look again after setting the flag, an event may have come in before the producer could see it.
+                //The producer doesn't wait for its write to be visible, so the park still has a timeout.
+                consumerParked = true;
+                if (produced.get() == from && !closed) {
+                    LockSupport.parkNanos(idleParkNanos);
+                    idleParkNanos = Math.min(idleParkNanos * 2, MAX_IDLE_PARK_NANOS);
+                }
+                consumerParked = false;
+                continue;
+            }
+
+            idleParkNanos = PARK_NANOS;
+
+            long to = Math.min(available, from + batchSize);
+            deliver(from, to);
+            consumed.lazySet(to);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void deliver(long from, long to) {
+        //Built back to front, so the batch is in the order the events were sent
+        List<E> batch = List.empty();
+        for (long sequence = to - 1; sequence >= from; sequence--) {
+            int slot = (int) sequence & mask;
+            batch = batch.prepend((E) buffer[slot]);
+            buffer[slot] = null;
+        }
+
+        if (failure == null) {
+            try {
+                batchListener.receiveEvents(batch);
+            } catch (RuntimeException e) {
+                //Keep draining, so a blocked Processor doesn't hang
+                failure = e;
+            }
+        }
+    }
+
+    private void rethrowFailure() {
+        if (failure != null) {
+            throw new IllegalStateException("BatchListener failed", failure);
+        }
+    }
+
+    public static final class Builder<E extends ProcessorEvent> {
+        private final ProcessorEvent.BatchListener<E> batchListener;
+        private int capacity = DEFAULT_CAPACITY;
+        private int batchSize = DEFAULT_BATCH_SIZE;
+        private Backpressure backpressure = Backpressure.BLOCK;
+        private int sampleRate = DEFAULT_SAMPLE_RATE;
+        private ThreadFactory threadFactory = runnable -> {
+            var thread = new Thread(runnable, "tddasm-events");
+            thread.setDaemon(true);
+            return thread;
+        };
+
+        private Builder(ProcessorEvent.BatchListener<E> batchListener) {
+            this.batchListener = Objects.requireNonNull(batchListener);
+        }
+
+        /**
+         * The number of events the buffer can hold, rounded up to a power of 2.
+         */
+        public Builder<E> capacity(int capacity) {
+            if (capacity < 2 || capacity > 1 << 30) {
+                throw new IllegalArgumentException("Capacity must be between 2 and 2^30: " + capacity);
+            }
+            this.capacity = Integer.highestOneBit(capacity - 1) << 1;
+            return this;
+        }
+
+        /**
+         * The most events delivered to the BatchListener in one call.
+         */
+        public Builder<E> batchSize(int batchSize) {
+            if (batchSize < 1) {
+                throw new IllegalArgumentException("Batch size must be positive: " + batchSize);
+            }
+            this.batchSize = batchSize;
+            return this;
+        }
+
+        public Builder<E> backpressure(Backpressure backpressure) {
+            this.backpressure = Objects.requireNonNull(backpressure);
+            return this;
+        }
+
+        /**
+         * Only used for Backpressure.SAMPLE: keep one out of this many events once the buffer is half full.
+         */
+        public Builder<E> sampleRate(int sampleRate) {
+            if (sampleRate < 1) {
+                throw new IllegalArgumentException("Sample rate must be positive: " + sampleRate);
+            }
+            this.sampleRate = sampleRate;
+            return this;
+        }
+
+        /**
+         * Creates the consumer thread. Defaults to a daemon platform thread,
+         * on newer JVMs Thread.ofVirtual().factory() gives a virtual thread.
+         */
+        public Builder<E> threadFactory(ThreadFactory threadFactory) {
+            this.threadFactory = Objects.requireNonNull(threadFactory);
+            return this;
+        }
+
+        /**
+         * Creates the listener and starts the consumer thread.
+         */
+        public AsyncEventListener<E> start() {
+            return new AsyncEventListener<>(this);
+        }
+    }
+}
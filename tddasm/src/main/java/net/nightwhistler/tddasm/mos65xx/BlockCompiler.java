@@ -0,0 +1,224 @@
+package net.nightwhistler.tddasm.mos65xx;
+
+import io.vavr.collection.List;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Type;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.objectweb.asm.Opcodes.*;
+
+/**
+ * Compiles basic blocks of 6502 code into JVM hidden classes.
+ *
+ * The generated code doesn't reimplement any instructions. For every
+ * instruction in the block it calls the same private Processor method the
+ * interpreter uses, with the AddressingMode and operand as constants. That
+ * way the interpreter and compiled code can't drift apart, while the JIT
+ * gets a straight line of direct calls it can inline, instead of a
+ * megamorphic call through the OpCodeTable for every instruction.
+ *
+ * The hidden classes are defined as nestmates of the Processor, so they can
+ * call its private methods and access its fields directly.
+ *
+ * Compiled blocks don't hold any state, so the same block of code loaded
+ * into different Processors shares a single class.
+ */
+final class BlockCompiler {
+
+    /**
+     * A decoded instruction in a block.
+     *
+     * @param address the address of the opcode
+     * @param entry the decoded opcode
+     * @param operand the raw operand value
+     */
+    record Instruction(int address, OpCodeTable.Entry entry, int operand) {}
+
+    //Once there are this many compiled classes we start over, so changing code can't fill up the heap
+    private static final int MAX_SHARED_BLOCKS = 16384;
+
+    private static final Map<List<Instruction>, BlockEngine.CompiledBlock> SHARED_BLOCKS = new ConcurrentHashMap<>();
+
+    private static final String PROCESSOR = Type.getInternalName(Processor.class);
+    private static final String STATUS_REGISTER = Type.getInternalName(StatusRegister.class);
+    private static final String ADDRESSING_MODE = Type.getInternalName(AddressingMode.class);
+    private static final String COMPILED_BLOCK = Type.getInternalName(BlockEngine.CompiledBlock.class);
+
+    private static final String HANDLER_DESCRIPTOR = Type.getMethodDescriptor(Type.VOID_TYPE,
+            Type.getType(AddressingMode.class), Type.INT_TYPE);
+
+    private BlockCompiler() {}
+
+    static BlockEngine.CompiledBlock compile(List<Instruction> instructions) {
+        if (SHARED_BLOCKS.size() >= MAX_SHARED_BLOCKS) {
+            SHARED_BLOCKS.clear();
+        }
+
+        return SHARED_BLOCKS.computeIfAbsent(instructions, BlockCompiler::define);
+    }
+
+    private static BlockEngine.CompiledBlock define(List<Instruction> instructions) {
+        byte[] classBytes = generate(instructions);
+
+        try {
+            MethodHandles.Lookup lookup = Processor.lookup()
+                    .defineHiddenClass(classBytes, true, MethodHandles.Lookup.ClassOption.NESTMATE);
+
+            return (BlockEngine.CompiledBlock) lookup
+                    .findConstructor(lookup.lookupClass(), MethodType.methodType(void.class))
+                    .invoke();
+        } catch (Throwable e) {
+            throw new IllegalStateException("Could not compile block at $"
+                    + Integer.toHexString(instructions.head().address()), e);
+        }
+    }
+
+    private static byte[] generate(List<Instruction> instructions) {
+        ClassWriter classWriter = new ClassWriter(ClassWriter.COMPUTE_FRAMES | ClassWriter.COMPUTE_MAXS) {
+            @Override
+            protected String getCommonSuperClass(String type1, String type2) {
+                //Only Processor and StatusRegister references are on the stack, so this is never needed
+                return "java/lang/Object";
+            }
+        };
+
+        String className = PROCESSOR + "$Block" + Integer.toHexString(instructions.head().address());
+        classWriter.visit(V17, ACC_FINAL | ACC_SUPER, className, null,
+                "java/lang/Object", new String[]{COMPILED_BLOCK});
+
+        MethodVisitor constructor = classWriter.visitMethod(ACC_PUBLIC, "<init>", "()V", null, null);
+        constructor.visitCode();
+        constructor.visitVarInsn(ALOAD, 0);
+        constructor.visitMethodInsn(INVOKESPECIAL, "java/lang/Object", "<init>", "()V", false);
+        constructor.visitInsn(RETURN);
+        constructor.visitMaxs(0, 0);
+        constructor.visitEnd();
+
+        MethodVisitor length = classWriter.visitMethod(ACC_PUBLIC, "length", "()I", null, null);
+        length.visitCode();
+        pushInt(length, instructions.size());
+        length.visitInsn(IRETURN);
+        length.visitMaxs(0, 0);
+        length.visitEnd();
+
+        MethodVisitor maxCycles = classWriter.visitMethod(ACC_PUBLIC, "maxCycles", "()I", null, null);
+        maxCycles.visitCode();
+        pushInt(maxCycles, maxCycles(instructions));
+        maxCycles.visitInsn(IRETURN);
+        maxCycles.visitMaxs(0, 0);
+        maxCycles.visitEnd();
+
+        MethodVisitor execute = classWriter.visitMethod(ACC_PUBLIC, "execute", "(L" + PROCESSOR + ";)V", null, null);
+        execute.visitCode();
+
+        //Not to be confused with our own Label
+        var exit = new org.objectweb.asm.Label();
+        for (var instruction : instructions.init()) {
+            generateInstruction(execute, instruction);
+
+            //Stop as soon as the block could have changed its own code
+            if (writesMemory(instruction.entry())) {
+                execute.visitVarInsn(ALOAD, 1);
+                execute.visitFieldInsn(GETFIELD, PROCESSOR, "codeModified", "Z");
+                execute.visitJumpInsn(IFNE, exit);
+            }
+
+            //PLP can set the break flag, which ends a run
+            if (instruction.entry().opCode() == OpCode.PLP) {
+                execute.visitVarInsn(ALOAD, 1);
+                execute.visitFieldInsn(GETFIELD, PROCESSOR, "statusRegister", "L" + STATUS_REGISTER + ";");
+                execute.visitMethodInsn(INVOKEVIRTUAL, STATUS_REGISTER, "isBreakCommandFlagSet", "()Z", false);
+                execute.visitJumpInsn(IFNE, exit);
+            }
+        }
+        generateInstruction(execute, instructions.last());
+
+        execute.visitLabel(exit);
+        execute.visitInsn(RETURN);
+        execute.visitMaxs(0, 0);
+        execute.visitEnd();
+
+        classWriter.visitEnd();
+        return classWriter.toByteArray();
+    }
+
+    /**
+     * Does exactly what the interpreter does for a single instruction.
+     */
+    private static void generateInstruction(MethodVisitor method, Instruction instruction) {
+        OpCodeTable.Entry entry = instruction.entry();
+
+        //processor.programCounter = <address of the next instruction>
+        method.visitVarInsn(ALOAD, 1);
+        pushInt(method, (instruction.address() + entry.length()) & 0xFFFF);
+        method.visitFieldInsn(PUTFIELD, PROCESSOR, "programCounter", "I");
+
+        //processor.statusRegister.setBreakCommandFlag(false)
+        method.visitVarInsn(ALOAD, 1);
+        method.visitFieldInsn(GETFIELD, PROCESSOR, "statusRegister", "L" + STATUS_REGISTER + ";");
+        method.visitInsn(ICONST_0);
+        method.visitMethodInsn(INVOKEVIRTUAL, STATUS_REGISTER, "setBreakCommandFlag", "(Z)V", false);
+
+        //processor.<opcode>(AddressingMode.<mode>, <operand>)
+        method.visitVarInsn(ALOAD, 1);
+        method.visitFieldInsn(GETSTATIC, ADDRESSING_MODE, entry.addressingMode().name(), "L" + ADDRESSING_MODE + ";");
+        pushInt(method, instruction.operand());
+        method.visitMethodInsn(INVOKEVIRTUAL, PROCESSOR, entry.opCode().name().toLowerCase(Locale.ROOT),
+                HANDLER_DESCRIPTOR, false);
+
+        //processor.operationCount++
+        method.visitVarInsn(ALOAD, 1);
+        method.visitInsn(DUP);
+        method.visitFieldInsn(GETFIELD, PROCESSOR, "operationCount", "J");
+        method.visitInsn(LCONST_1);
+        method.visitInsn(LADD);
+        method.visitFieldInsn(PUTFIELD, PROCESSOR, "operationCount", "J");
+
+        //processor.cycleCount += <base cycles>, penalties are added by the instruction itself
+        method.visitVarInsn(ALOAD, 1);
+        method.visitInsn(DUP);
+        method.visitFieldInsn(GETFIELD, PROCESSOR, "cycleCount", "J");
+        method.visitLdcInsn((long) entry.cycles());
+        method.visitInsn(LADD);
+        method.visitFieldInsn(PUTFIELD, PROCESSOR, "cycleCount", "J");
+    }
+
+    /**
+     * The most cycles a block can take, when every page that can be crossed is crossed and every branch is taken.
+     */
+    static int maxCycles(List<Instruction> instructions) {
+        return instructions.map(Instruction::entry)
+                .map(entry -> entry.cycles() + switch (entry.addressingMode()) {
+                    case AbsoluteAddressX, AbsoluteAddressY, IndirectIndexedY -> 1;
+                    case Relative -> 2;
+                    default -> 0;
+                })
+                .sum().intValue();
+    }
+
+    private static boolean writesMemory(OpCodeTable.Entry entry) {
+        return switch (entry.opCode()) {
+            case STA, STX, STY, INC, DEC, PHA, PHP -> true;
+            case ASL, LSR, ROL, ROR -> entry.addressingMode() != AddressingMode.Accumulator;
+            default -> false;
+        };
+    }
+
+    private static void pushInt(MethodVisitor method, int value) {
+        if (value >= -1 && value <= 5) {
+            method.visitInsn(ICONST_0 + value);
+        } else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+            method.visitIntInsn(BIPUSH, value);
+        } else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+            method.visitIntInsn(SIPUSH, value);
+        } else {
+            method.visitLdcInsn(value);
+        }
+    }
+}
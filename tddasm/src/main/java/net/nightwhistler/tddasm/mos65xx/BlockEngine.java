@@ -0,0 +1,349 @@
+package net.nightwhistler.tddasm.mos65xx;
+
+import io.vavr.collection.List;
+
+import static java.lang.Byte.toUnsignedInt;
+
+/**
+ * Keeps track of hot basic blocks and their compiled versions for a Processor.
+ *
+ * Every time the interpreter executes an instruction that is not the start
+ * of a compiled block, a counter for that address goes up. Once it reaches
+ * the compile threshold, the straight-line code from that address up to and
+ * including the next branch, jump, JSR, RTS or RTI is compiled to JVM
+ * bytecode by the BlockCompiler. From then on the Processor runs the whole
+ * block in a single call.
+ *
+ * Compiled blocks are only valid as long as the code they were compiled
+ * from doesn't change, so every write to memory covered by a block throws
+ * that block away again.
+ *
+ * Every block remembers the last two compiled blocks it went on to. When
+ * it ends up at one of those again, the Processor goes straight on to it,
+ * without looking it up or counting an entry.
+ *
+ * Like the DecodeCache, all storage is allocated per 256 byte page. The
+ * page tables themselves are only allocated once the Processor runs code,
+ * since most forked Processors never do.
+ */
+final class BlockEngine {
+
+    /**
+     * A basic block compiled to JVM bytecode.
+     */
+    interface CompiledBlock {
+
+        /**
+         * Runs all instructions in the block, or until the block modifies code.
+         */
+        void execute(Processor processor);
+
+        /**
+         * @return the number of instructions in the block
+         */
+        int length();
+
+        /**
+         * @return the most cycles running the block can take
+         */
+        int maxCycles();
+    }
+
+    static final int DEFAULT_COMPILE_THRESHOLD = 500;
+
+    static final int MAX_BLOCK_INSTRUCTIONS = 64;
+
+    private static final int MAX_BLOCK_BYTES = MAX_BLOCK_INSTRUCTIONS * 3;
+
+    private static final int INVALIDATION_PENALTY = 8;
+
+    /**
+     * A compiled block, where it is, and the blocks it went on to last.
+     */
+    static final class Block {
+        private final int start;
+        private final int end;
+        private final CompiledBlock code;
+
+        private boolean valid = true;
+        private Block next;
+        private Block previousNext;
+
+        private Block(int start, int end, CompiledBlock code) {
+            this.start = start;
+            this.end = end;
+            this.code = code;
+        }
+
+        int start() {
+            return start;
+        }
+
+        int end() {
+            return end;
+        }
+
+        CompiledBlock code() {
+            return code;
+        }
+    }
+
+    private final Processor processor;
+
+    private Block[][] blocks;
+    private int[][] entryCounts;
+
+    //One bit per address covered by at least one block
+    private long[][] coverage;
+
+    private int compileThreshold = DEFAULT_COMPILE_THRESHOLD;
+
+    private long compiledBlocks;
+    private long invalidatedBlocks;
+    private long chainedBlocks;
+
+    BlockEngine(Processor processor) {
+        this.processor = processor;
+    }
+
+    void setCompileThreshold(int compileThreshold) {
+        if (compileThreshold < 1) {
+            throw new IllegalArgumentException("Compile threshold should be at least 1, got " + compileThreshold);
+        }
+        this.compileThreshold = compileThreshold;
+    }
+
+    /**
+     * Finds the compiled block starting at an address, compiling it if it has become hot.
+     *
+     * @param address the current program counter
+     * @return the compiled block, or null if the instruction should be interpreted
+     */
+    Block blockAt(int address) {
+        if (blocks == null) {
+            blocks = new Block[256][];
+            entryCounts = new int[256][];
+            coverage = new long[256][];
+        }
+
+        Block[] blockPage = blocks[address >>> 8];
+        if (blockPage != null) {
+            Block block = blockPage[address & 0xFF];
+            if (block != null) {
+                return block;
+            }
+        }
+
+        int[] counts = entryCounts[address >>> 8];
+        if (counts == null) {
+            counts = new int[256];
+            entryCounts[address >>> 8] = counts;
+        }
+
+        if (++counts[address & 0xFF] < compileThreshold) {
+            return null;
+        }
+
+        counts[address & 0xFF] = 0;
+        return compile(address);
+    }
+
+    /**
+     * Finds the block to go on to after a block ended at an address, without compiling anything.
+     *
+     * @return the compiled block at the address, or null if there isn't one
+     */
+    Block successor(Block block, int address) {
+        Block next = block.next;
+        if (next == null || next.start != address || !next.valid) {
+            next = block.previousNext;
+            if (next == null || next.start != address || !next.valid) {
+                next = block(address);
+                if (next == null) {
+                    return null;
+                }
+                block.previousNext = block.next;
+            }
+            block.next = next;
+        }
+
+        chainedBlocks++;
+        return next;
+    }
+
+    /**
+     * Throws away all blocks that cover an address.
+     *
+     * @return true if any block was thrown away
+     */
+    boolean invalidate(int address) {
+        if (!isCovered(address)) {
+            return false;
+        }
+
+        for (int start = Math.max(0, address - MAX_BLOCK_BYTES + 1); start <= address; start++) {
+            Block block = block(start);
+            if (block != null && address < block.end()) {
+                remove(block);
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Throws away all blocks that cover part of a range.
+     *
+     * @return true if any block was thrown away
+     */
+    boolean invalidate(int from, int length) {
+        if (coverage == null) {
+            return false;
+        }
+
+        boolean invalidated = false;
+        for (int address = from; address < from + length; address++) {
+            if (coverage[(address & 0xFFFF) >>> 8] == null) {
+                //No compiled code in this page, skip ahead to the next one
+                address |= 0xFF;
+                continue;
+            }
+            invalidated |= invalidate(address & 0xFFFF);
+        }
+        return invalidated;
+    }
+
+    long compiledBlocks() {
+        return compiledBlocks;
+    }
+
+    long invalidatedBlocks() {
+        return invalidatedBlocks;
+    }
+
+    long chainedBlocks() {
+        return chainedBlocks;
+    }
+
+    private Block compile(int address) {
+        List<BlockCompiler.Instruction> instructions = decodeBlock(address);
+        if (instructions.isEmpty()) {
+            //Nothing we can compile here, don't try again any time soon
+            entryCounts[address >>> 8][address & 0xFF] = Integer.MIN_VALUE;
+            return null;
+        }
+
+        var last = instructions.last();
+        var block = new Block(address, last.address() + last.entry().length(),
+                BlockCompiler.compile(instructions));
+
+        Block[] blockPage = blocks[address >>> 8];
+        if (blockPage == null) {
+            blockPage = new Block[256];
+            blocks[address >>> 8] = blockPage;
+        }
+        blockPage[address & 0xFF] = block;
+        markCoverage(block);
+        compiledBlocks++;
+
+        return block;
+    }
+
+    /**
+     * Reads the instructions of the basic block starting at an address.
+     *
+     * The block stops before anything the compiled code can't handle:
+     * a BRK, bytes that don't decode to a legal instruction, an address
+     * with a JavaRoutine, a page mapped to a device or the end of memory.
+     */
+    private List<BlockCompiler.Instruction> decodeBlock(int start) {
+        List<BlockCompiler.Instruction> instructions = List.empty();
+        int address = start;
+
+        while (instructions.size() < MAX_BLOCK_INSTRUCTIONS) {
+            if (address > 0xFFFF || processor.hasJavaRoutineAt(address)) {
+                break;
+            }
+
+            if (processor.isDeviceMapped(address)) {
+                break;
+            }
+
+            OpCodeTable.Entry entry = OpCodeTable.lookup(processor.peekValue(address));
+            if (entry == null || entry.opCode().isIllegal() || entry.opCode() == OpCode.BRK
+                    || address + entry.length() > 0x10000 || processor.isDeviceMapped(address + entry.length() - 1)) {
+                break;
+            }
+
+            int operand = switch (entry.length()) {
+                case 1 -> 0;
+                case 2 -> toUnsignedInt(processor.peekValue(address + 1));
+                default -> toUnsignedInt(processor.peekValue(address + 1))
+                        | (toUnsignedInt(processor.peekValue(address + 2)) << 8);
+            };
+
+            instructions = instructions.append(new BlockCompiler.Instruction(address, entry, operand));
+            address += entry.length();
+
+            if (endsBlock(entry)) {
+                break;
+            }
+        }
+
+        return instructions;
+    }
+
+    private static boolean endsBlock(OpCodeTable.Entry entry) {
+        return switch (entry.opCode()) {
+            case JMP, JSR, RTS, RTI -> true;
+            default -> entry.addressingMode() == AddressingMode.Relative;
+        };
+    }
+
+    private Block block(int address) {
+        Block[] blockPage = blocks[address >>> 8];
+        return blockPage == null ? null : blockPage[address & 0xFF];
+    }
+
+    private void remove(Block block) {
+        blocks[block.start() >>> 8][block.start() & 0xFF] = null;
+        block.valid = false;
+        invalidatedBlocks++;
+
+        //Code that keeps modifying itself would otherwise be recompiled over and over
+        entryCounts[block.start() >>> 8][block.start() & 0xFF] =
+                (int) -Math.min(Integer.MAX_VALUE, (long) INVALIDATION_PENALTY * compileThreshold);
+
+        //Other blocks may still cover part of this range, so rebuild it from the blocks that are left
+        for (int address = block.start(); address < block.end(); address++) {
+            coverage[address >>> 8][(address & 0xFF) >>> 6] &= ~(1L << address);
+        }
+
+        for (int start = Math.max(0, block.start() - MAX_BLOCK_BYTES + 1); start < block.end(); start++) {
+            Block other = block(start);
+            if (other != null && other.end() > block.start()) {
+                markCoverage(other);
+            }
+        }
+    }
+
+    private void markCoverage(Block block) {
+        for (int address = block.start(); address < block.end(); address++) {
+            long[] page = coverage[address >>> 8];
+            if (page == null) {
+                page = new long[4];
+                coverage[address >>> 8] = page;
+            }
+            page[(address & 0xFF) >>> 6] |= 1L << address;
+        }
+    }
+
+    private boolean isCovered(int address) {
+        if (coverage == null) {
+            return false;
+        }
+
+        long[] page = coverage[address >>> 8];
+        return page != null && (page[(address & 0xFF) >>> 6] & (1L << address)) != 0;
+    }
+}
@@ -0,0 +1,401 @@
+package net.nightwhistler.tddasm.mos65xx;
+
+import io.vavr.collection.List;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+/**
+ * Keeps a shadow call stack while a Processor runs, and adds up cycles per call stack.
+ *
+ * A JSR or an interrupt pushes a frame, an RTS or RTI pops the frames it
+ * returns from. Frames remember the stack pointer from before the call,
+ * so code that drops a return address with PLA, or resets the stack with
+ * TXS, doesn't leave frames behind. JavaRoutines get a frame of their own
+ * when they are called with JSR.
+ *
+ * Frames are named after the Label at the address that was called, the
+ * JavaRoutine, or the address itself. The bottom frame is named after
+ * the first instruction that was executed.
+ *
+ * Every instruction adds its cycles to the current call stack. Call
+ * stacks are stored in a trie, so a stack that occurs a million times is
+ * stored only once. The result can be written in the collapsed stack
+ * format used by flame graph tools, or as a Chrome trace with the cycle
+ * count as the timestamp:
+ *
+ * <pre>
+ * try (var profiler = CallStackProfiler.attach(processor)) {
+ *     processor.run(program.startAddress());
+ *     profiler.writeCollapsedStacks(writer);
+ * }
+ * </pre>
+ */
+public final class CallStackProfiler implements ExecutionObserver, AutoCloseable {
+
+    /**
+     * The cycles and instructions spent with exactly this call stack.
+     *
+     * @param frames the frame names, outermost first
+     */
+    public record Stack(List<String> frames, long instructions, long cycles) {}
+
+    public static final int DEFAULT_TIMELINE_LIMIT = 1 << 20;
+
+    private static final int ROOT = 0;
+    private static final int INTERRUPT = 0x10000;
+    private static final long NO_KEY = -1;
+
+    private final Processor processor;
+    private long lastCycleCount;
+
+    //The trie of call stacks, one entry per node
+    private int nodes = 1;
+    private int[] parents = new int[64];
+    private String[] names = new String[64];
+    private long[] instructions = new long[64];
+    private long[] cycles = new long[64];
+
+    //The children of every node, in an open addressing table keyed by parent and frame
+    private long[] childKeys = emptyKeys(128);
+    private int[] childNodes = new int[128];
+
+    //The shadow stack: the trie node of every frame, and the stack pointer before the call
+    private int depth = 0;
+    private int[] stackNodes = new int[64];
+    private int[] stackPointers = new int[64];
+    private int current = ROOT;
+
+    //Frames entered (node) and left (-node - 1), with the cycle count when it happened
+    private final int timelineLimit;
+    private int timelineSize = 0;
+    private int[] timelineNodes = new int[64];
+    private long[] timelineCycles = new long[64];
+    private final long firstCycle;
+
+    private CallStackProfiler(Processor processor, int timelineLimit) {
+        this.processor = processor;
+        this.timelineLimit = timelineLimit;
+        this.lastCycleCount = processor.getCycleCount();
+        this.firstCycle = lastCycleCount;
+        parents[ROOT] = -1;
+    }
+
+    /**
+     * Starts keeping a call stack for a Processor, with a timeline of up to a million calls and returns.
+     */
+    public static CallStackProfiler attach(Processor processor) {
+        return attach(processor, DEFAULT_TIMELINE_LIMIT);
+    }
+
+    /**
+     * Starts keeping a call stack for a Processor.
+     *
+     * @param timelineLimit the maximum number of calls and returns kept for
+     *                      the Chrome trace. After that, only the totals
+     *                      per call stack are kept.
+     */
+    public static CallStackProfiler attach(Processor processor, int timelineLimit) {
+        var profiler = new CallStackProfiler(processor, timelineLimit);
+        processor.addExecutionObserver(profiler);
+        return profiler;
+    }
+
+    @Override
+    public void instructionExecuted(Processor processor, int address, byte opCode, int operand) {
+        if (names[ROOT] == null) {
+            names[ROOT] = frameName(address);
+        }
+        count();
+
+        switch (OpCodeTable.lookup(opCode).opCode()) {
+            case JSR -> {
+                //The return address is already on the stack
+                push(processor.getProgramCounter(), (processor.getStackPointer() + 2) & 0xFF);
+            }
+            case RTS, RTI -> popReturned();
+            default -> {}
+        }
+    }
+
+    @Override
+    public void javaRoutineExecuted(Processor processor, int address, JavaRoutine javaRoutine) {
+        count();
+        popReturned();
+    }
+
+    @Override
+    public void interruptRequested(Processor processor, int address) {
+        count();
+        push(INTERRUPT | processor.getProgramCounter(), (processor.getStackPointer() + 3) & 0xFF);
+    }
+
+    /**
+     * @return the names of the frames on the shadow stack right now, outermost first
+     */
+    public List<String> currentStack() {
+        return path(current);
+    }
+
+    /**
+     * @return every call stack that executed instructions, in no particular order
+     */
+    public List<Stack> stacks() {
+        List<Stack> stacks = List.empty();
+        for (int node = 0; node < nodes; node++) {
+            if (instructions[node] > 0) {
+                stacks = stacks.prepend(new Stack(path(node), instructions[node], cycles[node]));
+            }
+        }
+        return stacks;
+    }
+
+    /**
+     * Adds up the cycles of every call stack a frame is part of, so that
+     * includes the frames it called. Recursive calls are counted once.
+     */
+    public long inclusiveCycles(String frame) {
+        long total = 0;
+        for (int node = 0; node < nodes; node++) {
+            for (int ancestor = node; ancestor >= 0; ancestor = parents[ancestor]) {
+                if (frame.equals(names[ancestor])) {
+                    total += cycles[node];
+                    break;
+                }
+            }
+        }
+        return total;
+    }
+
+    /**
+     * Writes a line for every call stack, with the frames separated by
+     * semicolons and the cycles spent in it, like
+     * <pre>
+     * main;plot;adhadl 1234
+     * </pre>
+     */
+    public void writeCollapsedStacks(Writer writer) {
+        try {
+            for (int node = 0; node < nodes; node++) {
+                if (cycles[node] > 0) {
+                    writer.write(String.join(";", path(node).map(CallStackProfiler::collapsedName)));
+                    writer.write(" " + cycles[node] + "\n");
+                }
+            }
+            writer.flush();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Writes the calls as a Chrome trace event file, for chrome://tracing or Perfetto.
+     *
+     * Timestamps are cycles since the profiler was attached, so with a
+     * 1 MHz clock they come out as microseconds. Frames still open at the
+     * end are closed at the last cycle.
+     */
+    public void writeChromeTrace(Writer writer) {
+        try {
+            writer.write("{\"traceEvents\":[\n");
+            boolean first = true;
+            var open = new ArrayDeque<Integer>();
+            long lastCycle = 0;
+
+            if (names[ROOT] != null) {
+                writeTraceEvent(writer, true, "B", names[ROOT], 0);
+                first = false;
+                open.push(ROOT);
+            }
+
+            for (int i = 0; i < timelineSize; i++) {
+                int node = timelineNodes[i];
+                lastCycle = timelineCycles[i] - firstCycle;
+                if (node >= 0) {
+                    writeTraceEvent(writer, first, "B", names[node], lastCycle);
+                    open.push(node);
+                } else if (!open.isEmpty()) {
+                    writeTraceEvent(writer, first, "E", names[open.pop()], lastCycle);
+                }
+                first = false;
+            }
+
+            lastCycle = Math.max(lastCycle, lastCycleCount - firstCycle);
+            while (!open.isEmpty()) {
+                writeTraceEvent(writer, first, "E", names[open.pop()], lastCycle);
+                first = false;
+            }
+
+            writer.write("\n],\"otherData\":{\"timestamps\":\"cycles\"}}\n");
+            writer.flush();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Stops keeping the call stack. Everything collected so far stays available.
+     */
+    @Override
+    public void close() {
+        processor.removeExecutionObserver(this);
+    }
+
+    private void count() {
+        long cycleCount = processor.getCycleCount();
+        instructions[current]++;
+        cycles[current] += cycleCount - lastCycleCount;
+        lastCycleCount = cycleCount;
+    }
+
+    private void push(int frame, int stackPointer) {
+        if (depth == stackNodes.length) {
+            stackNodes = Arrays.copyOf(stackNodes, depth * 2);
+            stackPointers = Arrays.copyOf(stackPointers, depth * 2);
+        }
+
+        current = child(current, frame);
+        stackNodes[depth] = current;
+        stackPointers[depth] = stackPointer;
+        depth++;
+        addToTimeline(current);
+    }
+
+    /**
+     * Pops every frame whose return address is no longer on the stack.
+     */
+    private void popReturned() {
+        int stackPointer = processor.getStackPointer();
+        while (depth > 0 && stackPointers[depth - 1] <= stackPointer) {
+            depth--;
+            addToTimeline(-stackNodes[depth] - 1);
+        }
+        current = depth == 0 ? ROOT : stackNodes[depth - 1];
+    }
+
+    private int child(int parent, int frame) {
+        long key = ((long) parent << 17) | frame;
+        int slot = slot(childKeys, key);
+        if (childKeys[slot] == key) {
+            return childNodes[slot];
+        }
+
+        if (nodes == parents.length) {
+            int capacity = nodes * 2;
+            parents = Arrays.copyOf(parents, capacity);
+            names = Arrays.copyOf(names, capacity);
+            instructions = Arrays.copyOf(instructions, capacity);
+            cycles = Arrays.copyOf(cycles, capacity);
+        }
+
+        int node = nodes++;
+        parents[node] = parent;
+        names[node] = (frame & INTERRUPT) != 0 ? "interrupt " + frameName(frame & 0xFFFF) : frameName(frame);
+        childKeys[slot] = key;
+        childNodes[slot] = node;
+
+        //Keep the table at most half full, so lookups stay short
+        if (nodes * 2 > childKeys.length) {
+            growChildren();
+        }
+        return node;
+    }
+
+    private void growChildren() {
+        long[] oldKeys = childKeys;
+        int[] oldNodes = childNodes;
+        childKeys = emptyKeys(oldKeys.length * 2);
+        childNodes = new int[oldKeys.length * 2];
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != NO_KEY) {
+                int slot = slot(childKeys, oldKeys[i]);
+                childKeys[slot] = oldKeys[i];
+                childNodes[slot] = oldNodes[i];
+            }
+        }
+    }
+
+    /**
+     * The slot holding the key, or the empty slot where it belongs.
+     */
+    private static int slot(long[] keys, long key) {
+        int mask = keys.length - 1;
+        int slot = (int) ((key * 0x9E3779B97F4A7C15L) >>> 32) & mask;
+        while (keys[slot] != key && keys[slot] != NO_KEY) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private static long[] emptyKeys(int capacity) {
+        long[] keys = new long[capacity];
+        Arrays.fill(keys, NO_KEY);
+        return keys;
+    }
+
+    private void addToTimeline(int event) {
+        if (timelineSize == timelineLimit) {
+            return;
+        }
+        if (timelineSize == timelineNodes.length) {
+            int capacity = Math.min(timelineLimit, timelineSize * 2);
+            timelineNodes = Arrays.copyOf(timelineNodes, capacity);
+            timelineCycles = Arrays.copyOf(timelineCycles, capacity);
+        }
+        timelineNodes[timelineSize] = event;
+        timelineCycles[timelineSize] = lastCycleCount;
+        timelineSize++;
+    }
+
+    private String frameName(int address) {
+        var javaRoutine = processor.javaRoutineAt(address);
+        if (javaRoutine != null) {
+            return javaRoutine.getClass().getSimpleName();
+        }
+
+        var labels = processor.findLabelsForLocation(address);
+        if (!labels.isEmpty()) {
+            return labels.head().name();
+        }
+        return "$" + Integer.toHexString(address);
+    }
+
+    private List<String> path(int node) {
+        List<String> path = List.empty();
+        for (int frame = node; frame >= 0; frame = parents[frame]) {
+            path = path.prepend(names[frame] == null ? "?" : names[frame]);
+        }
+        return path;
+    }
+
+    private static String collapsedName(String name) {
+        return name.replace(';', '_').replace(' ', '_');
+    }
+
+    private static void writeTraceEvent(Writer writer, boolean first, String phase, String name, long timestamp)
+            throws IOException {
+        writer.write((first ? "" : ",\n") + "{\"name\":\"" + escape(name) + "\",\"ph\":\"" + phase
+                + "\",\"ts\":" + timestamp + ",\"pid\":1,\"tid\":1}");
+    }
+
+    private static String escape(String value) {
+        var escaped = new StringBuilder();
+        for (char c : value.toCharArray()) {
+            switch (c) {
+                case '"' -> escaped.append("\\\"");
+                case '\\' -> escaped.append("\\\\");
+                default -> {
+                    if (c < 0x20) {
+                        escaped.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        escaped.append(c);
+                    }
+                }
+            }
+        }
+        return escaped.toString();
+    }
+}
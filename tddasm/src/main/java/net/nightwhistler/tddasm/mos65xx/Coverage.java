@@ -0,0 +1,442 @@
+package net.nightwhistler.tddasm.mos65xx;
+
+import io.vavr.collection.List;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Collects instruction and branch coverage while a Processor runs.
+ *
+ * Coverage is kept in three bitsets with a bit for every address: one for
+ * executed instructions, and one each for branches that were taken and
+ * not taken. Recording only sets a bit, so coverage can stay on for a
+ * whole test suite.
+ *
+ * Every test can collect its own Coverage and merge it into a shared one,
+ * also when tests run in parallel. Coverage can be saved to a file and
+ * read back, to merge runs from different JVMs. A report maps the bits
+ * back to the ProgramElements and Labels of a Program:
+ *
+ * <pre>
+ * var coverage = Coverage.attach(processor);
+ * processor.run(program.startAddress());
+ * coverage.close();
+ * total.merge(coverage);
+ * ...
+ * total.writeXml(program, "sprites", writer);
+ * </pre>
+ */
+public final class Coverage implements ExecutionObserver, AutoCloseable {
+
+    /**
+     * The coverage of a single ProgramElement.
+     *
+     * @param branch whether the element is a branch instruction
+     */
+    public record ElementCoverage(Operand.TwoByteAddress address, ProgramElement element, boolean executed,
+                                  boolean branch, boolean taken, boolean notTaken) {
+
+        public boolean isInstruction() {
+            return element instanceof OperationProvider;
+        }
+
+        public int coveredBranches() {
+            return (taken ? 1 : 0) + (notTaken ? 1 : 0);
+        }
+    }
+
+    /**
+     * Instruction and branch coverage added up over a Label.
+     *
+     * Every branch instruction has two branches: taken and not taken.
+     */
+    public record LabelCoverage(String name, Operand.TwoByteAddress address,
+                                int instructions, int coveredInstructions, int branches, int coveredBranches) {
+
+        public int missedInstructions() {
+            return instructions - coveredInstructions;
+        }
+
+        public int missedBranches() {
+            return branches - coveredBranches;
+        }
+    }
+
+    private static final int WORDS = MemoryBus.SIZE / 64;
+
+    //The branch instruction for every opcode byte, or null if it isn't one
+    private static final OpCode[] BRANCHES = new OpCode[256];
+
+    static {
+        for (int code = 0; code < 256; code++) {
+            var entry = OpCodeTable.lookup((byte) code);
+            if (entry != null && entry.addressingMode() == AddressingMode.Relative) {
+                BRANCHES[code] = entry.opCode();
+            }
+        }
+    }
+
+    private final long[] executed = new long[WORDS];
+    private final long[] taken = new long[WORDS];
+    private final long[] notTaken = new long[WORDS];
+
+    private Processor processor;
+
+    /**
+     * Creates empty Coverage, to merge others into.
+     */
+    public Coverage() {
+    }
+
+    /**
+     * Starts collecting coverage of a Processor. Closing the Coverage stops it.
+     */
+    public static Coverage attach(Processor processor) {
+        var coverage = new Coverage();
+        coverage.processor = processor;
+        processor.addExecutionObserver(coverage);
+        return coverage;
+    }
+
+    @Override
+    public void instructionExecuted(Processor processor, int address, byte opCode, int operand) {
+        long bit = 1L << address;
+        executed[address >>> 6] |= bit;
+
+        var branch = BRANCHES[opCode & 0xFF];
+        if (branch != null) {
+            //Where the branch went doesn't tell: with an offset of 0 both ways end up at the next instruction
+            if (isTaken(processor, branch)) {
+                taken[address >>> 6] |= bit;
+            } else {
+                notTaken[address >>> 6] |= bit;
+            }
+        }
+    }
+
+    /**
+     * Whether a branch that was just executed was taken. Branches don't change
+     * the flags, so their condition still holds afterwards.
+     */
+    private static boolean isTaken(Processor processor, OpCode branch) {
+        return switch (branch) {
+            case BCC -> !processor.isCarryFlagSet();
+            case BCS -> processor.isCarryFlagSet();
+            case BNE -> !processor.isZeroFlagSet();
+            case BEQ -> processor.isZeroFlagSet();
+            case BPL -> !processor.isNegativeFlagSet();
+            case BMI -> processor.isNegativeFlagSet();
+            case BVC -> !processor.isOverflowFlagSet();
+            case BVS -> processor.isOverflowFlagSet();
+            default -> throw new IllegalArgumentException("Not a branch: " + branch);
+        };
+    }
+
+    @Override
+    public void javaRoutineExecuted(Processor processor, int address, JavaRoutine javaRoutine) {
+        executed[address >>> 6] |= 1L << address;
+    }
+
+    public boolean isExecuted(int address) {
+        return isSet(executed, address);
+    }
+
+    public boolean isTaken(int address) {
+        return isSet(taken, address);
+    }
+
+    public boolean isNotTaken(int address) {
+        return isSet(notTaken, address);
+    }
+
+    /**
+     * Adds the coverage of another run to this one.
+     *
+     * Merging is synchronized, so tests running in parallel can merge
+     * into the same Coverage. The other Coverage should be done recording.
+     */
+    public synchronized void merge(Coverage other) {
+        for (int i = 0; i < WORDS; i++) {
+            executed[i] |= other.executed[i];
+            taken[i] |= other.taken[i];
+            notTaken[i] |= other.notTaken[i];
+        }
+    }
+
+    /**
+     * Saves the bitsets to a file, to merge them with other runs later.
+     */
+    public synchronized void writeTo(Path file) {
+        var buffer = ByteBuffer.allocate(3 * WORDS * Long.BYTES);
+        buffer.asLongBuffer().put(executed).put(taken).put(notTaken);
+        try {
+            Files.write(file, buffer.array());
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not write coverage to " + file, e);
+        }
+    }
+
+    /**
+     * Reads coverage saved with writeTo().
+     */
+    public static Coverage readFrom(Path file) {
+        byte[] data;
+        try {
+            data = Files.readAllBytes(file);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not read coverage from " + file, e);
+        }
+        if (data.length != 3 * WORDS * Long.BYTES) {
+            throw new IllegalArgumentException("Not a coverage file: " + file);
+        }
+
+        var coverage = new Coverage();
+        ByteBuffer.wrap(data).asLongBuffer().get(coverage.executed).get(coverage.taken).get(coverage.notTaken);
+        return coverage;
+    }
+
+    /**
+     * Stops collecting coverage. What was collected stays available.
+     */
+    @Override
+    public void close() {
+        if (processor != null) {
+            processor.removeExecutionObserver(this);
+            processor = null;
+        }
+    }
+
+    /**
+     * The coverage of every ProgramElement of a Program, in Program order.
+     */
+    public List<ElementCoverage> elements(Program program) {
+        return program.offsets().map(offset -> {
+            int address = offset._1.toInt();
+            boolean branch = offset._2 instanceof OperationProvider operation
+                    && operation.operand().addressingMode() == AddressingMode.Relative;
+            return new ElementCoverage(offset._1, offset._2,
+                    offset._2 instanceof OperationProvider && isExecuted(address),
+                    branch, branch && isTaken(address), branch && isNotTaken(address));
+        });
+    }
+
+    /**
+     * The coverage of every Label of a Program, in Program order.
+     */
+    public List<LabelCoverage> labels(Program program) {
+        return new Report(program, elements(program)).labels();
+    }
+
+    /**
+     * Writes an XML report in the format of JaCoCo, so tools that read
+     * JaCoCo reports can read it too.
+     *
+     * The Program is reported as a single class in a package named after
+     * its start address, with a method for every Label. Lines refer to
+     * the listing written by Program.printASM().
+     *
+     * @param name the name of the report, like the name of the Program
+     */
+    public void writeXml(Program program, String name, Writer writer) {
+        var out = new PrintWriter(writer);
+        var report = new Report(program, elements(program));
+        var labels = report.labels();
+        String packageName = program.startAddress().toString();
+
+        out.println("<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"yes\"?>");
+        out.println("<report name=\"" + escape(name) + "\">");
+        out.println("  <package name=\"" + escape(packageName) + "\">");
+        out.println("    <class name=\"" + escape(name) + "\" sourcefilename=\"" + escape(name) + ".asm\">");
+        for (var label : labels) {
+            out.println("      <method name=\"" + escape(label.name()) + "\" desc=\"" + label.address()
+                    + "\" line=\"" + report.lineOf(label.address().toInt()) + "\">");
+            writeCounters(out, "        ", List.of(label));
+            out.println("      </method>");
+        }
+        writeCounters(out, "      ", labels);
+        out.println("    </class>");
+
+        out.println("    <sourcefile name=\"" + escape(name) + ".asm\">");
+        var elements = report.elements;
+        for (int i = 0; i < elements.length; i++) {
+            var element = elements[i];
+            if (element.isInstruction()) {
+                int covered = element.executed() ? 1 : 0;
+                int branches = element.branch() ? 2 : 0;
+                out.println("      <line nr=\"" + (i + 2) + "\" mi=\"" + (1 - covered) + "\" ci=\"" + covered
+                        + "\" mb=\"" + (branches - element.coveredBranches()) + "\" cb=\"" + element.coveredBranches() + "\"/>");
+            }
+        }
+        writeCounters(out, "      ", labels);
+        out.println("    </sourcefile>");
+        writeCounters(out, "    ", labels);
+        out.println("  </package>");
+        writeCounters(out, "  ", labels);
+        out.println("</report>");
+        out.flush();
+    }
+
+    /**
+     * Writes an HTML page with the coverage per Label, and the listing of
+     * the Program with covered instructions in green, missed ones in red,
+     * and partly covered branches in yellow.
+     */
+    public void writeHtml(Program program, String name, Writer writer) {
+        var out = new PrintWriter(writer);
+        out.println("<!DOCTYPE html>");
+        out.println("<html><head><meta charset=\"UTF-8\"><title>" + escape(name) + "</title>");
+        out.println("<style>body{font-family:sans-serif} td,th{padding:2px 8px;text-align:right} "
+                + "td.name{text-align:left} pre span{display:block} .fc{background:#ccffcc} "
+                + ".nc{background:#ffaaaa} .pc{background:#ffffaa}</style></head><body>");
+        out.println("<h1>" + escape(name) + "</h1>");
+
+        out.println("<table><tr><th>Label</th><th>Address</th><th>Missed instructions</th><th>Cov.</th>"
+                + "<th>Missed branches</th><th>Cov.</th></tr>");
+        var report = new Report(program, elements(program));
+        var labels = report.labels();
+        for (var label : labels) {
+            writeHtmlRow(out, label.name(), label.address().toString(), label.instructions(),
+                    label.coveredInstructions(), label.branches(), label.coveredBranches());
+        }
+        writeHtmlRow(out, "Total", "", labels.map(LabelCoverage::instructions).sum().intValue(),
+                labels.map(LabelCoverage::coveredInstructions).sum().intValue(),
+                labels.map(LabelCoverage::branches).sum().intValue(),
+                labels.map(LabelCoverage::coveredBranches).sum().intValue());
+        out.println("</table>");
+
+        out.println("<pre>");
+        for (var element : report.elements) {
+            String text = element.address() + " " + describe(element.element());
+            if (!element.isInstruction()) {
+                out.println("<span>" + escape(text) + "</span>");
+            } else {
+                String style = !element.executed() ? "nc"
+                        : element.branch() && element.coveredBranches() < 2 ? "pc" : "fc";
+                out.println("<span class=\"" + style + "\">" + escape(text) + "</span>");
+            }
+        }
+        out.println("</pre></body></html>");
+        out.flush();
+    }
+
+    private static void writeCounters(PrintWriter out, String indent, List<LabelCoverage> labels) {
+        int instructions = labels.map(LabelCoverage::instructions).sum().intValue();
+        int coveredInstructions = labels.map(LabelCoverage::coveredInstructions).sum().intValue();
+        int branches = labels.map(LabelCoverage::branches).sum().intValue();
+        int coveredBranches = labels.map(LabelCoverage::coveredBranches).sum().intValue();
+
+        out.println(indent + "<counter type=\"INSTRUCTION\" missed=\"" + (instructions - coveredInstructions)
+                + "\" covered=\"" + coveredInstructions + "\"/>");
+        if (branches > 0) {
+            out.println(indent + "<counter type=\"BRANCH\" missed=\"" + (branches - coveredBranches)
+                    + "\" covered=\"" + coveredBranches + "\"/>");
+        }
+    }
+
+    private static void writeHtmlRow(PrintWriter out, String name, String address, int instructions,
+                                     int coveredInstructions, int branches, int coveredBranches) {
+        out.println("<tr><td class=\"name\">" + escape(name) + "</td><td>" + address + "</td>"
+                + "<td>" + (instructions - coveredInstructions) + " of " + instructions + "</td>"
+                + "<td>" + percentage(coveredInstructions, instructions) + "</td>"
+                + "<td>" + (branches - coveredBranches) + " of " + branches + "</td>"
+                + "<td>" + percentage(coveredBranches, branches) + "</td></tr>");
+    }
+
+    private static String percentage(int covered, int total) {
+        return total == 0 ? "n/a" : (100 * covered / total) + "%";
+    }
+
+    /**
+     * The coverage of a Program, indexed by address once so every Label and
+     * line can be looked up without going through all elements again.
+     */
+    private static final class Report {
+
+        private final List<LabelRange> ranges;
+        private final ElementCoverage[] elements;
+        private final int[] addresses;
+
+        //Running totals: the counts of the elements before each index
+        private final int[] instructions;
+        private final int[] coveredInstructions;
+        private final int[] branches;
+        private final int[] coveredBranches;
+
+        Report(Program program, List<ElementCoverage> coverage) {
+            ranges = LabelRange.of(program);
+            elements = coverage.toJavaArray(ElementCoverage[]::new);
+            addresses = new int[elements.length];
+            instructions = new int[elements.length + 1];
+            coveredInstructions = new int[elements.length + 1];
+            branches = new int[elements.length + 1];
+            coveredBranches = new int[elements.length + 1];
+
+            for (int i = 0; i < elements.length; i++) {
+                var element = elements[i];
+                addresses[i] = element.address().toInt();
+                instructions[i + 1] = instructions[i] + (element.isInstruction() ? 1 : 0);
+                coveredInstructions[i + 1] = coveredInstructions[i] + (element.executed() ? 1 : 0);
+                branches[i + 1] = branches[i] + (element.branch() ? 2 : 0);
+                coveredBranches[i + 1] = coveredBranches[i] + element.coveredBranches();
+            }
+        }
+
+        List<LabelCoverage> labels() {
+            return ranges.map(range -> {
+                int from = indexOf(range.address().toInt());
+                int to = indexOf(range.address().toInt() + range.length());
+                return new LabelCoverage(range.name(), range.address(),
+                        instructions[to] - instructions[from],
+                        coveredInstructions[to] - coveredInstructions[from],
+                        branches[to] - branches[from],
+                        coveredBranches[to] - coveredBranches[from]);
+            });
+        }
+
+        /**
+         * The line of an address in the listing of Program.printASM(), after the line with the start address.
+         */
+        int lineOf(int address) {
+            return indexOf(address) + 2;
+        }
+
+        /**
+         * The index of the first element at or after an address. Elements are in Program
+         * order, so their addresses only go up.
+         */
+        private int indexOf(int address) {
+            int low = 0;
+            int high = addresses.length;
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                if (addresses[middle] < address) {
+                    low = middle + 1;
+                } else {
+                    high = middle;
+                }
+            }
+            return low;
+        }
+    }
+
+    private static String describe(ProgramElement element) {
+        if (element instanceof OperationProvider operationProvider) {
+            return "  " + (operationProvider.opCode() + " " + operationProvider.operand()).trim();
+        }
+        return element instanceof Label ? element.toString() : "  " + element;
+    }
+
+    private static boolean isSet(long[] bits, int address) {
+        return (bits[(address & 0xFFFF) >>> 6] & (1L << address)) != 0;
+    }
+
+    private static String escape(String text) {
+        return text.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;").replace("\"", "&quot;");
+    }
+}
@@ -0,0 +1,129 @@
+package net.nightwhistler.tddasm.mos65xx;
+
+import static java.lang.Byte.toUnsignedInt;
+
+/**
+ * Per-address cache of decoded instructions.
+ *
+ * The Processor runs programs from memory so that self-modifying code
+ * works, which means tight loops decode the same bytes over and over.
+ * This cache remembers the decoded opcode and operand for every address
+ * that was executed. Any write to memory covered by a cached instruction
+ * throws that instruction away again, so modified code is decoded afresh.
+ *
+ * Decoded instructions are packed into a single int and storage is
+ * allocated per 256 byte page, so only pages that contain code take up
+ * space. Until the first instruction is cached, the page table is shared
+ * between all caches.
+ */
+public final class DecodeCache {
+
+    /**
+     * Counters to check whether the cache is paying off.
+     *
+     * @param hits number of instructions that didn't need decoding
+     * @param misses number of instructions that had to be decoded from memory
+     * @param invalidations number of cached instructions thrown away because of a write
+     */
+    public record Statistics(long hits, long misses, long invalidations) {
+        public double hitRatio() {
+            long total = hits + misses;
+            return total == 0 ? 0 : (double) hits / total;
+        }
+    }
+
+    //Set on every cached slot, so an empty slot is simply 0
+    private static final int VALID = 1 << 24;
+
+    //Never written to, a cache gets its own page table on the first put
+    private static final int[][] NO_PAGES = new int[256][];
+
+    private int[][] pages = NO_PAGES;
+
+    private long hits;
+    private long misses;
+    private long invalidations;
+
+    DecodeCache() {}
+
+    /**
+     * Finds the decoded instruction at an address.
+     *
+     * @param address the address of the opcode
+     * @return the packed instruction, or 0 if it hasn't been decoded yet.
+     */
+    int get(int address) {
+        int[] page = pages[address >>> 8];
+        if (page != null) {
+            int decoded = page[address & 0xFF];
+            if (decoded != 0) {
+                hits++;
+                return decoded;
+            }
+        }
+
+        misses++;
+        return 0;
+    }
+
+    void put(int address, byte code, int operand) {
+        if (pages == NO_PAGES) {
+            pages = new int[256][];
+        }
+
+        int[] page = pages[address >>> 8];
+        if (page == null) {
+            page = new int[256];
+            pages[address >>> 8] = page;
+        }
+
+        page[address & 0xFF] = VALID | (operand << 8) | toUnsignedInt(code);
+    }
+
+    static OpCodeTable.Entry entry(int decoded) {
+        return OpCodeTable.lookup((byte) decoded);
+    }
+
+    static int operand(int decoded) {
+        return (decoded >>> 8) & 0xFFFF;
+    }
+
+    /**
+     * Removes any cached instruction that covers the given address.
+     *
+     * Since instructions are at most 3 bytes long, that's the instruction
+     * at the address itself and the ones starting at the 2 bytes before it.
+     */
+    void invalidate(int address) {
+        invalidate(address, 1);
+    }
+
+    /**
+     * Removes any cached instruction that covers part of a range.
+     *
+     * @param from the first address written
+     * @param length the number of bytes written
+     */
+    void invalidate(int from, int length) {
+        for (int offset = -2; offset < length; offset++) {
+            int address = (from + offset) & 0xFFFF;
+            int[] page = pages[address >>> 8];
+
+            if (page == null) {
+                //Nothing cached in this page, skip ahead to the next one
+                offset += 0xFF - (address & 0xFF);
+                continue;
+            }
+
+            int decoded = page[address & 0xFF];
+            if (decoded != 0 && (offset >= 0 || offset + entry(decoded).length() > 0)) {
+                page[address & 0xFF] = 0;
+                invalidations++;
+            }
+        }
+    }
+
+    public Statistics statistics() {
+        return new Statistics(hits, misses, invalidations);
+    }
+}
@@ -0,0 +1,156 @@
+package net.nightwhistler.tddasm.mos65xx;
+
+import io.vavr.collection.List;
+
+import java.util.Arrays;
+import java.util.function.IntPredicate;
+
+/**
+ * Selects which events a listener receives, by address and by OpCode.
+ *
+ * The Processor checks filters before it creates an event, so a listener
+ * that only watches the bitmap at $2000-$3F3F or only JSR instructions
+ * costs nothing for all other memory writes and instructions.
+ *
+ * The address that is checked depends on the event:
+ * <ul>
+ *     <li>OperationPerformed and RegisterStateChangedEvent: the address of the instruction</li>
+ *     <li>MemoryLocationChanged: the address that was written to</li>
+ *     <li>JumpedTo: the address that was jumped to</li>
+ *     <li>InterruptRequest and JavaRoutineExecuted: the program counter</li>
+ * </ul>
+ * Only OperationPerformed and RegisterStateChangedEvent have an OpCode,
+ * for other events only the address is checked.
+ *
+ * Filters are precomputed into bit sets when they are created, so checking
+ * one is a single array lookup, whatever the filter looks like.
+ */
+public final class EventFilter {
+
+    /**
+     * Lets every event through.
+     */
+    public static final EventFilter ALL = new EventFilter(null, null);
+
+    //Used for events that don't belong to an instruction
+    static final int NO_OPCODE = -1;
+
+    //One bit per address, null for all addresses
+    private final long[] addresses;
+
+    //One bit per opcode byte, null for all OpCodes
+    private final long[] opCodes;
+
+    private EventFilter(long[] addresses, long[] opCodes) {
+        this.addresses = addresses;
+        this.opCodes = opCodes;
+    }
+
+    /**
+     * Events for a single address.
+     */
+    public static EventFilter address(int address) {
+        return addresses(address, address);
+    }
+
+    /**
+     * Events for a range of addresses, including both ends.
+     */
+    public static EventFilter addresses(Operand.TwoByteAddress from, Operand.TwoByteAddress to) {
+        return addresses(from.toInt(), to.toInt());
+    }
+
+    /**
+     * Events for a range of addresses, including both ends.
+     */
+    public static EventFilter addresses(int from, int to) {
+        if (from < 0 || to > 0xFFFF || from > to) {
+            throw new IllegalArgumentException("Not a valid address range: $"
+                    + Integer.toHexString(from) + "-$" + Integer.toHexString(to));
+        }
+
+        long[] bits = new long[MemoryBus.SIZE / 64];
+        for (int address = from; address <= to; address++) {
+            bits[address >>> 6] |= 1L << address;
+        }
+        return new EventFilter(bits, null);
+    }
+
+    /**
+     * Events for every address where (address &amp; mask) == value,
+     * for example addressMask(0xFF00, 0xD000) for page $D0.
+     */
+    public static EventFilter addressMask(int mask, int value) {
+        return addressesMatching(address -> (address & mask) == value);
+    }
+
+    /**
+     * Events for every address the predicate accepts.
+     *
+     * The predicate is called once for every address when the filter is created, and never after that.
+     */
+    public static EventFilter addressesMatching(IntPredicate predicate) {
+        long[] bits = new long[MemoryBus.SIZE / 64];
+        for (int address = 0; address < MemoryBus.SIZE; address++) {
+            if (predicate.test(address)) {
+                bits[address >>> 6] |= 1L << address;
+            }
+        }
+        return new EventFilter(bits, null);
+    }
+
+    /**
+     * Events for instructions with one of the given OpCodes, in any addressing mode.
+     */
+    public static EventFilter opCodes(OpCode... opCodes) {
+        var wanted = List.of(opCodes);
+        long[] bits = new long[4];
+        for (int code = 0; code < 256; code++) {
+            var entry = OpCodeTable.lookup((byte) code);
+            if (entry != null && wanted.contains(entry.opCode())) {
+                bits[code >>> 6] |= 1L << code;
+            }
+        }
+        return new EventFilter(null, bits);
+    }
+
+    /**
+     * Only lets through events that pass both this filter and the other one.
+     */
+    public EventFilter and(EventFilter other) {
+        return new EventFilter(intersect(addresses, other.addresses), intersect(opCodes, other.opCodes));
+    }
+
+    boolean matches(int address, int opCode) {
+        return (addresses == null || (addresses[address >>> 6] & (1L << address)) != 0)
+                && (opCode == NO_OPCODE || opCodes == null || (opCodes[opCode >>> 6] & (1L << opCode)) != 0);
+    }
+
+    /**
+     * Combines filters into one that lets through everything any of them lets through.
+     */
+    static EventFilter union(List<EventFilter> filters) {
+        return filters.isEmpty() ? ALL : filters.reduce((a, b) ->
+                new EventFilter(union(a.addresses, b.addresses), union(a.opCodes, b.opCodes)));
+    }
+
+    private static long[] intersect(long[] a, long[] b) {
+        if (a == null || b == null) {
+            return a == null ? b : a;
+        }
+
+        long[] result = new long[a.length];
+        Arrays.setAll(result, i -> a[i] & b[i]);
+        return result;
+    }
+
+    private static long[] union(long[] a, long[] b) {
+        if (a == null || b == null) {
+            return null;
+        }
+
+        long[] result = new long[a.length];
+        Arrays.setAll(result, i -> a[i] | b[i]);
+        return result;
+    }
+}
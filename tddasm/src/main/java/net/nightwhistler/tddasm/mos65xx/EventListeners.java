@@ -0,0 +1,116 @@
+package net.nightwhistler.tddasm.mos65xx;
+
+import io.vavr.collection.List;
+
+/**
+ * The event listeners of a Processor, kept per type of event.
+ *
+ * The Processor checks whether anybody listens to a type of event before
+ * it creates the event, so events nobody listens to cost no more than a
+ * field read.
+ */
+final class EventListeners {
+
+    /**
+     * A listener with the filter it was registered with.
+     */
+    private record Subscription(ProcessorEvent.Listener<?> listener, EventFilter filter) {}
+
+    /**
+     * The listeners for a single type of event, in the order they were registered.
+     */
+    static final class ListenerList<E extends ProcessorEvent> {
+        private final Class<E> eventType;
+        private List<Subscription> subscriptions = List.empty();
+
+        //Everything any of the listeners wants to see
+        private EventFilter combinedFilter = EventFilter.ALL;
+
+        private ListenerList(Class<E> eventType) {
+            this.eventType = eventType;
+        }
+
+        boolean hasListeners() {
+            return !subscriptions.isEmpty();
+        }
+
+        /**
+         * Whether anybody wants an event at this address, for events without an OpCode.
+         */
+        boolean wants(int address) {
+            return wants(address, EventFilter.NO_OPCODE);
+        }
+
+        /**
+         * Whether anybody wants an event for an instruction at this address.
+         *
+         * @param opCode the unsigned opcode byte
+         */
+        boolean wants(int address, int opCode) {
+            return !subscriptions.isEmpty() && combinedFilter.matches(address, opCode);
+        }
+
+        void fire(E event, int address) {
+            fire(event, address, EventFilter.NO_OPCODE);
+        }
+
+        @SuppressWarnings("unchecked")
+        void fire(E event, int address, int opCode) {
+            for (var subscription : subscriptions) {
+                if (subscription.filter().matches(address, opCode)) {
+                    //Only listeners for E or one of its supertypes are added
+                    ((ProcessorEvent.Listener<? super E>) subscription.listener()).receiveEvent(event);
+                }
+            }
+        }
+
+        private void add(ProcessorEvent.Listener<?> listener, EventFilter filter) {
+            this.subscriptions = subscriptions.append(new Subscription(listener, filter));
+            this.combinedFilter = EventFilter.union(subscriptions.map(Subscription::filter));
+        }
+    }
+
+    final ListenerList<ProcessorEvent.OperationPerformed> operationPerformed =
+            new ListenerList<>(ProcessorEvent.OperationPerformed.class);
+    final ListenerList<ProcessorEvent.MemoryLocationChanged> memoryLocationChanged =
+            new ListenerList<>(ProcessorEvent.MemoryLocationChanged.class);
+    final ListenerList<ProcessorEvent.JumpedTo> jumpedTo =
+            new ListenerList<>(ProcessorEvent.JumpedTo.class);
+    final ListenerList<ProcessorEvent.InterruptRequest> interruptRequest =
+            new ListenerList<>(ProcessorEvent.InterruptRequest.class);
+    final ListenerList<ProcessorEvent.JavaRoutineExecuted> javaRoutineExecuted =
+            new ListenerList<>(ProcessorEvent.JavaRoutineExecuted.class);
+    final ListenerList<ProcessorEvent.RegisterStateChangedEvent> registerStateChanged =
+            new ListenerList<>(ProcessorEvent.RegisterStateChangedEvent.class);
+
+    private final List<ListenerList<?>> all = List.of(operationPerformed, memoryLocationChanged, jumpedTo,
+            interruptRequest, javaRoutineExecuted, registerStateChanged);
+
+    //Set when anybody listens to events that can happen while a compiled block runs
+    private boolean instructionLevel = false;
+
+    /**
+     * Registers a listener for the events of the given type, including subtypes, that pass the filter.
+     */
+    <E extends ProcessorEvent> void register(Class<E> eventType, EventFilter filter, ProcessorEvent.Listener<? super E> listener) {
+        var matching = all.filter(list -> eventType.isAssignableFrom(list.eventType));
+        if (matching.isEmpty()) {
+            throw new IllegalArgumentException("Not an event type the Processor sends: " + eventType.getName());
+        }
+
+        matching.forEach(list -> list.add(listener, filter));
+
+        instructionLevel = operationPerformed.hasListeners() || memoryLocationChanged.hasListeners()
+                || jumpedTo.hasListeners() || registerStateChanged.hasListeners();
+    }
+
+    /**
+     * Whether anybody listens to events that are sent during single instructions.
+     *
+     * Interrupts and JavaRoutines never happen inside a compiled block, so
+     * only these events need the interpreter.
+     */
+    boolean hasInstructionListeners() {
+        return instructionLevel;
+    }
+}
@@ -0,0 +1,50 @@
+package net.nightwhistler.tddasm.mos65xx;
+
+/**
+ * Watches every instruction and memory write, without creating event objects.
+ *
+ * This is the low level alternative to ProcessorEvent listeners, for
+ * tools like the TraceRecorder that look at every step of a long run. The
+ * Processor calls observers directly, with primitive values, from the
+ * instruction loop, so observers should be quick and not allocate.
+ *
+ * Like event listeners, observers make the Processor interpret every
+ * instruction instead of running compiled blocks.
+ */
+public interface ExecutionObserver {
+
+    /**
+     * Called after an instruction from memory has been executed.
+     *
+     * @param processor the Processor, with the registers as they are after the instruction
+     * @param address the address of the instruction
+     * @param opCode the opcode byte
+     * @param operand the operand, 0 to $FFFF
+     */
+    void instructionExecuted(Processor processor, int address, byte opCode, int operand);
+
+    /**
+     * Called after a value was written to memory, by an instruction or with pokeValue.
+     */
+    default void memoryWritten(Processor processor, int address, byte oldValue, byte newValue) {}
+
+    /**
+     * Called after a JavaRoutine was executed, including the instruction it ends with.
+     *
+     * @param address the address the JavaRoutine is registered at
+     */
+    default void javaRoutineExecuted(Processor processor, int address, JavaRoutine javaRoutine) {}
+
+    /**
+     * Called after an interrupt was handled, with the program counter pointing at the interrupt handler.
+     *
+     * @param address the program counter when the interrupt arrived
+     */
+    default void interruptRequested(Processor processor, int address) {}
+
+    /**
+     * Called after memory or registers were replaced all at once, without a memoryWritten
+     * for every byte: by load, loadBinary, storeOperationAt or restore.
+     */
+    default void stateReplaced(Processor processor) {}
+}
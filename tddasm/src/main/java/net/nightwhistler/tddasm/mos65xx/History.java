@@ -0,0 +1,236 @@
+package net.nightwhistler.tddasm.mos65xx;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+import static java.lang.Byte.toUnsignedInt;
+
+/**
+ * The past of a Processor, so it can step backwards.
+ *
+ * Every step stores the registers and counters from before the step, and
+ * the old value of every byte the step wrote, in ring buffers of primitive
+ * arrays. Undoing a step puts those back. The ring buffers are bounded, so
+ * only the most recent steps can be undone this way.
+ *
+ * To go back further than that, a snapshot of the Processor is taken every
+ * snapshotInterval steps. Going back past the undo log restores the last
+ * snapshot before the target and executes forward from there. That only
+ * gives the same result when the program doesn't depend on anything
+ * outside the Processor, like a device or a JavaRoutine with its own state.
+ *
+ * Writes and interrupts between steps, for example from pokeValue, are
+ * undone together with the step before them.
+ */
+final class History {
+
+    record TimedSnapshot(long position, Processor.Snapshot snapshot) {}
+
+    private static final int WRITES_PER_STEP = 4;
+    private static final int MAX_SNAPSHOTS = 32;
+
+    private final int capacity;
+    private final int snapshotInterval;
+
+    //Registers and counters before each step, indexed by step & (capacity - 1)
+    private final short[] programCounters;
+    private final byte[] accumulators;
+    private final byte[] xRegisters;
+    private final byte[] yRegisters;
+    private final byte[] stackPointers;
+    private final byte[] statusRegisters;
+    private final long[] operationCounts;
+    private final long[] cycleCounts;
+    private final long[] firstWrites;
+
+    //Old values of written bytes, indexed by write & (writeCapacity - 1)
+    private final int writeCapacity;
+    private final short[] writeAddresses;
+    private final byte[] oldValues;
+
+    //The steps and writes that can still be undone are firstStep until position, and firstWrite until nextWrite
+    private long firstStep = 0;
+    private long position = 0;
+    private long firstWrite = 0;
+    private long nextWrite = 0;
+
+    private final Deque<TimedSnapshot> snapshots = new ArrayDeque<>();
+
+    /**
+     * @param undoSteps the number of steps that can be undone without executing, rounded up to a power of 2
+     * @param snapshotInterval the number of steps between snapshots
+     */
+    History(int undoSteps, int snapshotInterval) {
+        if (undoSteps < 1 || undoSteps > 1 << 26) {
+            throw new IllegalArgumentException("Undo steps must be between 1 and 2^26: " + undoSteps);
+        }
+        if (snapshotInterval < 1) {
+            throw new IllegalArgumentException("Snapshot interval must be positive: " + snapshotInterval);
+        }
+
+        this.capacity = Integer.highestOneBit(Math.max(2, undoSteps) - 1) << 1;
+        this.snapshotInterval = snapshotInterval;
+
+        programCounters = new short[capacity];
+        accumulators = new byte[capacity];
+        xRegisters = new byte[capacity];
+        yRegisters = new byte[capacity];
+        stackPointers = new byte[capacity];
+        statusRegisters = new byte[capacity];
+        operationCounts = new long[capacity];
+        cycleCounts = new long[capacity];
+        firstWrites = new long[capacity];
+
+        writeCapacity = capacity * WRITES_PER_STEP;
+        writeAddresses = new short[writeCapacity];
+        oldValues = new byte[writeCapacity];
+    }
+
+    /**
+     * The number of steps taken since the history was started.
+     */
+    long position() {
+        return position;
+    }
+
+    /**
+     * Remembers the state before a step.
+     */
+    void beginStep(Processor processor) {
+        //Anything after this point in time is about to be changed
+        while (!snapshots.isEmpty() && snapshots.peekLast().position() > position) {
+            snapshots.removeLast();
+        }
+        if (position % snapshotInterval == 0 && (snapshots.isEmpty() || snapshots.peekLast().position() != position)) {
+            snapshots.addLast(new TimedSnapshot(position, processor.keyframe()));
+            if (snapshots.size() > MAX_SNAPSHOTS) {
+                snapshots.removeFirst();
+                //Without a snapshot to replay from, steps before the oldest one are out of reach
+                while (firstStep < snapshots.peekFirst().position()) {
+                    forgetOldestStep();
+                }
+            }
+        }
+
+        if (position - firstStep == capacity) {
+            forgetOldestStep();
+        }
+
+        int index = (int) position & (capacity - 1);
+        programCounters[index] = (short) processor.getProgramCounter();
+        accumulators[index] = processor.getAccumulatorValue();
+        xRegisters[index] = processor.getXRegisterValue();
+        yRegisters[index] = processor.getYRegisterValue();
+        stackPointers[index] = (byte) processor.getStackPointer();
+        statusRegisters[index] = processor.getStatusRegisterValue();
+        operationCounts[index] = processor.getOperationCount();
+        cycleCounts[index] = processor.getCycleCount();
+        firstWrites[index] = nextWrite;
+
+        position++;
+    }
+
+    /**
+     * Remembers the old value of a byte that is being written.
+     */
+    void memoryWritten(int address, byte oldValue) {
+        if (position == firstStep) {
+            //Not part of any step that can be undone
+            return;
+        }
+
+        if (nextWrite - firstWrite == writeCapacity) {
+            //Steps that lose any of their writes can't be undone anymore
+            firstWrite++;
+            while (firstStep < position && firstWrites[(int) firstStep & (capacity - 1)] < firstWrite) {
+                firstStep++;
+            }
+            if (position == firstStep) {
+                firstWrite = nextWrite;
+                return;
+            }
+        }
+
+        int index = (int) nextWrite & (writeCapacity - 1);
+        writeAddresses[index] = (short) address;
+        oldValues[index] = oldValue;
+        nextWrite++;
+    }
+
+    /**
+     * Puts the Processor back in the state before the last step.
+     *
+     * @return false if there is no step to go back to, because it's the first
+     * step or because it's older than the oldest snapshot
+     */
+    boolean stepBack(Processor processor) {
+        if (position == 0) {
+            return false;
+        }
+
+        if (position > firstStep) {
+            undo(processor);
+            return true;
+        }
+        return replayTo(processor, position - 1);
+    }
+
+    void clear() {
+        firstStep = 0;
+        position = 0;
+        firstWrite = 0;
+        nextWrite = 0;
+        snapshots.clear();
+    }
+
+    private void undo(Processor processor) {
+        int index = (int) (position - 1) & (capacity - 1);
+
+        for (long write = nextWrite - 1; write >= firstWrites[index]; write--) {
+            int writeIndex = (int) write & (writeCapacity - 1);
+            processor.undoWrite(Short.toUnsignedInt(writeAddresses[writeIndex]), oldValues[writeIndex]);
+        }
+        nextWrite = firstWrites[index];
+
+        processor.setState(Short.toUnsignedInt(programCounters[index]), accumulators[index], xRegisters[index],
+                yRegisters[index], toUnsignedInt(stackPointers[index]), statusRegisters[index],
+                operationCounts[index], cycleCounts[index]);
+        position--;
+    }
+
+    /**
+     * Goes back to an earlier point by restoring a snapshot and executing forward from there.
+     *
+     * @return false if there is no snapshot from before that point
+     */
+    private boolean replayTo(Processor processor, long target) {
+        var snapshot = snapshots.descendingIterator();
+        TimedSnapshot start = null;
+        while (snapshot.hasNext()) {
+            var candidate = snapshot.next();
+            if (candidate.position() <= target) {
+                start = candidate;
+                break;
+            }
+        }
+        if (start == null) {
+            return false;
+        }
+
+        processor.restoreSnapshot(start.snapshot());
+        firstStep = start.position();
+        position = start.position();
+        firstWrite = nextWrite;
+
+        //These steps happened before, so listeners and observers don't hear about them again
+        while (position < target) {
+            processor.replayStep();
+        }
+        return true;
+    }
+
+    private void forgetOldestStep() {
+        firstStep++;
+        firstWrite = firstStep == position ? nextWrite : firstWrites[(int) firstStep & (capacity - 1)];
+    }
+}
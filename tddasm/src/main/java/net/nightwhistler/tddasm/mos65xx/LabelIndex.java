@@ -0,0 +1,74 @@
+package net.nightwhistler.tddasm.mos65xx;
+
+import io.vavr.collection.Array;
+import io.vavr.collection.List;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * The Labels of a Program by address, built once when the Program is loaded.
+ *
+ * A bit per address answers the common case, an address without Labels,
+ * without searching. Addresses that do have Labels are found with a binary
+ * search over a sorted array.
+ */
+final class LabelIndex {
+
+    static final LabelIndex EMPTY = new LabelIndex(new long[0], new int[0], Array.empty());
+
+    private final long[] present;
+    private final int[] addresses;
+    private final Array<List<Label>> labels;
+
+    private LabelIndex(long[] present, int[] addresses, Array<List<Label>> labels) {
+        this.present = present;
+        this.addresses = addresses;
+        this.labels = labels;
+    }
+
+    /**
+     * Indexes the Labels of a Program. Labels at the same address are kept
+     * in the order they appear in the Program.
+     */
+    static LabelIndex of(Program program) {
+        var found = program.offsets().filter(offset -> offset._2 instanceof Label);
+        if (found.isEmpty()) {
+            return EMPTY;
+        }
+
+        //Sort by address; the sort is stable, so Labels keep their order within an address
+        var sorted = found.sortBy(offset -> offset._1.toInt());
+
+        long[] present = new long[MemoryBus.SIZE / 64];
+        int[] addresses = new int[sorted.size()];
+        var labels = new ArrayList<List<Label>>(sorted.size());
+
+        int count = 0;
+        for (var offset : sorted) {
+            int address = offset._1.toInt();
+            var label = (Label) offset._2;
+            if (count > 0 && addresses[count - 1] == address) {
+                labels.set(count - 1, labels.get(count - 1).append(label));
+            } else {
+                addresses[count] = address;
+                labels.add(List.of(label));
+                present[address >>> 6] |= 1L << address;
+                count++;
+            }
+        }
+
+        return new LabelIndex(present, Arrays.copyOf(addresses, count), Array.ofAll(labels));
+    }
+
+    /**
+     * @return the Labels at an address, or an empty List if there are none
+     */
+    List<Label> labelsAt(int address) {
+        int word = address >>> 6;
+        if (word >= present.length || (present[word] & (1L << address)) == 0) {
+            return List.empty();
+        }
+        return labels.get(Arrays.binarySearch(addresses, address));
+    }
+}
@@ -0,0 +1,46 @@
+package net.nightwhistler.tddasm.mos65xx;
+
+import io.vavr.collection.List;
+
+/**
+ * The addresses covered by a Label: from its address up to the next Label,
+ * or the end of the Program. Tools that add things up per Label use these.
+ */
+record LabelRange(String name, Operand.TwoByteAddress address, int length) {
+
+    boolean contains(int location) {
+        return location >= address.toInt() && location < address.toInt() + length;
+    }
+
+    /**
+     * The ranges of all Labels in a Program. Code before the first Label
+     * gets a range named after its address.
+     */
+    static List<LabelRange> of(Program program) {
+        var offsets = program.offsets();
+        int end = offsets.isEmpty() ? program.startAddress().toInt()
+                : offsets.last()._1.toInt() + offsets.last()._2.length();
+
+        var labels = offsets.filter(offset -> offset._2 instanceof Label);
+
+        //Walk backwards, so the start of the next Label is always at hand
+        List<LabelRange> ranges = List.empty();
+        int next = end;
+        int later = end;
+        for (var offset : labels.reverse()) {
+            int start = offset._1.toInt();
+            if (later > start) {
+                next = later;
+            }
+            ranges = ranges.prepend(new LabelRange(((Label) offset._2).name(), offset._1, next - start));
+            later = start;
+        }
+
+        int start = program.startAddress().toInt();
+        if (later > start) {
+            ranges = ranges.prepend(new LabelRange(program.startAddress().toString(), program.startAddress(),
+                    later - start));
+        }
+        return ranges;
+    }
+}
@@ -0,0 +1,220 @@
+package net.nightwhistler.tddasm.mos65xx;
+
+import java.util.Arrays;
+import java.util.Objects;
+
+/**
+ * The 64kb address space of the Processor, C64 style, made up of 256 byte pages.
+ *
+ * Every page is RAM, ROM or mapped to a MemoryDevice. RAM and ROM pages
+ * are plain arrays that are read directly. Only pages mapped to a device
+ * cost a call.
+ *
+ * RAM pages are copy-on-write: a page table that is shared with another
+ * MemoryBus shares all its pages, and whichever side writes to a page
+ * first gets its own copy of just that page. Pages that were never
+ * written all share the same empty page, so memory that is mostly
+ * identical between Processors only takes up space once.
+ *
+ * A page array that may be shared is never written to, so sharing between
+ * threads is safe. A single MemoryBus is not thread-safe.
+ */
+final class MemoryBus {
+
+    /**
+     * A copy of the page table, sharing all pages.
+     *
+     * @param pages the RAM and ROM pages, null for pages mapped to a device
+     * @param devices the device for each page, null for RAM and ROM pages
+     * @param romPages one bit per ROM page
+     */
+    record PageTable(byte[][] pages, MemoryDevice[] devices, long[] romPages) {}
+
+    static final int SIZE = 0x10000;
+
+    static final int PAGE_SIZE = 0x100;
+
+    private static final byte[] EMPTY_PAGE = new byte[PAGE_SIZE];
+
+    //Never written to, a bus gets its own device table when the first device is mapped
+    private static final MemoryDevice[] NO_DEVICES = new MemoryDevice[SIZE / PAGE_SIZE];
+
+    //RAM and ROM pages, null when the page is mapped to a device
+    private final byte[][] pages = new byte[SIZE / PAGE_SIZE][];
+
+    private MemoryDevice[] devices = NO_DEVICES;
+
+    //One bit per RAM page this bus has its own copy of, and can write to directly
+    private final long[] ownedPages = new long[4];
+
+    private final long[] romPages = new long[4];
+
+    MemoryBus() {
+        Arrays.fill(pages, EMPTY_PAGE);
+    }
+
+    byte read(int address) {
+        byte[] page = pages[address >>> 8];
+        return page != null ? page[address & 0xFF] : devices[address >>> 8].read(address);
+    }
+
+    /**
+     * Reads a value without triggering side effects in devices.
+     */
+    byte peek(int address) {
+        byte[] page = pages[address >>> 8];
+        return page != null ? page[address & 0xFF] : devices[address >>> 8].peek(address);
+    }
+
+    void write(int address, byte value) {
+        int page = address >>> 8;
+        if ((ownedPages[page >>> 6] & (1L << page)) != 0) {
+            pages[page][address & 0xFF] = value;
+        } else if (pages[page] == null) {
+            devices[page].write(address, value);
+        } else if (!isRom(page)) {
+            writablePage(page)[address & 0xFF] = value;
+        }
+        //Writes to ROM are ignored
+    }
+
+    /**
+     * Copies a range of memory into an array.
+     */
+    void read(int from, byte[] target, int targetOffset, int length) {
+        Objects.checkFromIndexSize(from, length, SIZE);
+
+        int copied = 0;
+        while (copied < length) {
+            int address = from + copied;
+            int chunk = Math.min(length - copied, PAGE_SIZE - (address & 0xFF));
+            byte[] page = pages[address >>> 8];
+
+            if (page != null) {
+                System.arraycopy(page, address & 0xFF, target, targetOffset + copied, chunk);
+            } else {
+                for (int i = 0; i < chunk; i++) {
+                    target[targetOffset + copied + i] = devices[address >>> 8].read(address + i);
+                }
+            }
+            copied += chunk;
+        }
+    }
+
+    /**
+     * Copies an array into a range of memory.
+     */
+    void write(int to, byte[] source, int sourceOffset, int length) {
+        Objects.checkFromIndexSize(to, length, SIZE);
+
+        int copied = 0;
+        while (copied < length) {
+            int address = to + copied;
+            int page = address >>> 8;
+            int chunk = Math.min(length - copied, PAGE_SIZE - (address & 0xFF));
+
+            if (pages[page] == null) {
+                for (int i = 0; i < chunk; i++) {
+                    devices[page].write(address + i, source[sourceOffset + copied + i]);
+                }
+            } else if (!isRom(page)) {
+                System.arraycopy(source, sourceOffset + copied, writablePage(page), address & 0xFF, chunk);
+            }
+            copied += chunk;
+        }
+    }
+
+    boolean isDevicePage(int page) {
+        return pages[page] == null;
+    }
+
+    /**
+     * Maps a range of pages to a device.
+     */
+    void mapDevice(int firstPage, int lastPage, MemoryDevice device) {
+        Objects.requireNonNull(device);
+        if (devices == NO_DEVICES) {
+            devices = new MemoryDevice[SIZE / PAGE_SIZE];
+        }
+
+        for (int page = firstPage; page <= lastPage; page++) {
+            setPage(page, null, device, false);
+        }
+    }
+
+    /**
+     * Maps read-only pages with the given contents, starting at a page.
+     *
+     * The last page is padded with zeroes.
+     */
+    void mapRom(int firstPage, byte[] data) {
+        int pageCount = (data.length + PAGE_SIZE - 1) / PAGE_SIZE;
+        Objects.checkFromIndexSize(firstPage, pageCount, SIZE / PAGE_SIZE);
+
+        for (int i = 0; i < pageCount; i++) {
+            byte[] page = Arrays.copyOfRange(data, i * PAGE_SIZE, (i + 1) * PAGE_SIZE);
+            setPage(firstPage + i, page, null, true);
+        }
+    }
+
+    /**
+     * Turns a range of pages back into empty RAM.
+     */
+    void mapRam(int firstPage, int lastPage) {
+        for (int page = firstPage; page <= lastPage; page++) {
+            setPage(page, EMPTY_PAGE, null, false);
+        }
+    }
+
+    /**
+     * Hands out the page table for sharing.
+     *
+     * After this call, the next write to any RAM page makes a private copy of it first.
+     *
+     * @return a copy of the page table. The pages in it must never be written to.
+     */
+    PageTable sharePages() {
+        Arrays.fill(ownedPages, 0L);
+        return new PageTable(pages.clone(), devices == NO_DEVICES ? NO_DEVICES : devices.clone(), romPages.clone());
+    }
+
+    /**
+     * Puts back a page that was handed out by sharePages().
+     */
+    void restorePage(int page, PageTable pageTable) {
+        MemoryDevice device = pageTable.devices()[page];
+        if (device != null && devices == NO_DEVICES) {
+            devices = new MemoryDevice[SIZE / PAGE_SIZE];
+        }
+
+        setPage(page, pageTable.pages()[page], device, (pageTable.romPages()[page >>> 6] & (1L << page)) != 0);
+    }
+
+    private void setPage(int page, byte[] data, MemoryDevice device, boolean rom) {
+        long bit = 1L << page;
+
+        pages[page] = data;
+        if (devices != NO_DEVICES) {
+            devices[page] = device;
+        }
+        ownedPages[page >>> 6] &= ~bit;
+        if (rom) {
+            romPages[page >>> 6] |= bit;
+        } else {
+            romPages[page >>> 6] &= ~bit;
+        }
+    }
+
+    private boolean isRom(int page) {
+        return (romPages[page >>> 6] & (1L << page)) != 0;
+    }
+
+    private byte[] writablePage(int page) {
+        long bit = 1L << page;
+        if ((ownedPages[page >>> 6] & bit) == 0) {
+            pages[page] = pages[page].clone();
+            ownedPages[page >>> 6] |= bit;
+        }
+        return pages[page];
+    }
+}
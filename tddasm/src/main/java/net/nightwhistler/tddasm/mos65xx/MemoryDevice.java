@@ -0,0 +1,30 @@
+package net.nightwhistler.tddasm.mos65xx;
+
+/**
+ * Hardware that is mapped into the address space of the Processor.
+ *
+ * Devices are mapped per 256 byte page, using Processor.mapDevice().
+ * Every read and write the Processor does in those pages goes to the
+ * device while the instruction executes, so devices can emulate
+ * hardware registers like the VIC-II border colour at $D020 or the
+ * CIA ports.
+ *
+ * Addresses are passed as-is, not relative to the start of the mapping.
+ */
+public interface MemoryDevice {
+
+    byte read(int address);
+
+    void write(int address, byte value);
+
+    /**
+     * Reads a value without any side effects, for example to report the
+     * old value in a MemoryLocationChanged event.
+     *
+     * Devices where reading changes state, like clearing an interrupt
+     * flag, should override this.
+     */
+    default byte peek(int address) {
+        return read(address);
+    }
+}
@@ -2,7 +2,6 @@ package net.nightwhistler.tddasm.mos65xx;
 
 import io.vavr.collection.List;
 import io.vavr.control.Option;
-import io.vavr.control.Try;
 
 import static net.nightwhistler.tddasm.mos65xx.AddressingMode.AbsoluteAddress;
 import static net.nightwhistler.tddasm.mos65xx.AddressingMode.AbsoluteAddressX;
@@ -34,7 +33,7 @@ public enum OpCode {
                     OpCode.mode(this, ZeroPageAddress, 0x65),
                     OpCode.mode(this, ZeroPageAddressX, 0x75),
                     OpCode.mode(this, IndexedIndirectX, 0x61),
-                    OpCode.mode(this, IndexedIndirectX, 0x71)
+                    OpCode.mode(this, IndirectIndexedY, 0x71)
             );
         }
     },
@@ -495,7 +494,7 @@ public enum OpCode {
                     OpCode.mode(this, ZeroPageAddress, 0xE5),
                     OpCode.mode(this, ZeroPageAddressX, 0xF5),
                     OpCode.mode(this, IndexedIndirectX, 0xE1),
-                    OpCode.mode(this, IndexedIndirectX, 0xF1)
+                    OpCode.mode(this, IndirectIndexedY, 0xF1)
             );
         }
     },
@@ -634,18 +633,8 @@ public enum OpCode {
                 .find(m -> m.addressingMode == addressingMode);
     }
 
-    private static java.util.HashMap<Byte, OpCode.AdressingModeMapping> mappings = null;
-
     public static Option<AdressingModeMapping> findByByteValue(byte value) {
-        if (mappings == null) {
-            mappings = new java.util.HashMap<>();
-            List.of(values()).flatMap(opCode ->
-                Try.of(() -> opCode.addressingModeMappings()).getOrElse(List.empty())).forEach( m ->
-                    mappings.put(m.code, m)
-            );
-        }
-
-        return Option.of(mappings.get(value));
+        return Option.of(OpCodeTable.lookup(value)).map(OpCodeTable.Entry::mapping);
     }
 
     public boolean supportAddressingMode(AddressingMode addressingMode) {
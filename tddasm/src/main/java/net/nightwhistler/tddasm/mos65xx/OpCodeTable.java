@@ -0,0 +1,136 @@
+package net.nightwhistler.tddasm.mos65xx;
+
+import io.vavr.collection.List;
+import io.vavr.control.Try;
+
+import static java.lang.Byte.toUnsignedInt;
+
+/**
+ * Dense decode table, indexed by the unsigned value of an opcode byte.
+ *
+ * The table is built once when the class is loaded and never changes
+ * after that, so it can safely be shared between threads. Lookups are
+ * a single array access: there's no boxing and no Option wrapping.
+ * Bytes that don't map to an OpCode have a null entry.
+ */
+final class OpCodeTable {
+
+    /**
+     * Executes a decoded instruction on a Processor.
+     */
+    @FunctionalInterface
+    interface Handler {
+        void execute(Processor processor, AddressingMode addressingMode, int operand);
+    }
+
+    /**
+     * A single decoded opcode byte.
+     *
+     * @param mapping the OpCode and AddressingMode this byte maps to
+     * @param length the total instruction length in bytes, including the opcode
+     * @param cycles the base cycle count, without page-crossing or branch penalties
+     * @param handler the code that executes the instruction
+     */
+    record Entry(OpCode.AdressingModeMapping mapping, int length, int cycles, Handler handler) {
+        OpCode opCode() {
+            return mapping.opCode();
+        }
+
+        AddressingMode addressingMode() {
+            return mapping.addressingMode();
+        }
+
+        byte code() {
+            return mapping.code();
+        }
+    }
+
+    private static final Entry[] ENTRIES = new Entry[256];
+
+    //Indexed by OpCode ordinal and then AddressingMode ordinal
+    private static final Entry[][] BY_OPCODE_AND_MODE =
+            new Entry[OpCode.values().length][AddressingMode.values().length];
+
+    static {
+        List.of(OpCode.values())
+                .flatMap(opCode -> Try.of(opCode::addressingModeMappings).getOrElse(List.empty()))
+                .forEach(mapping -> {
+                    var entry = new Entry(mapping,
+                            mapping.addressingMode().size() + 1,
+                            baseCycles(mapping.opCode(), mapping.addressingMode()),
+                            Processor.handlerFor(mapping.opCode()));
+
+                    ENTRIES[toUnsignedInt(mapping.code())] = entry;
+
+                    //Some OpCodes have more than one byte value for a mode, the first one wins.
+                    var byMode = BY_OPCODE_AND_MODE[mapping.opCode().ordinal()];
+                    if (byMode[mapping.addressingMode().ordinal()] == null) {
+                        byMode[mapping.addressingMode().ordinal()] = entry;
+                    }
+                });
+    }
+
+    private OpCodeTable() {}
+
+    /**
+     * Looks up the entry for an opcode byte.
+     *
+     * @param code the opcode byte
+     * @return the entry, or null if the byte doesn't map to an OpCode
+     */
+    static Entry lookup(byte code) {
+        return ENTRIES[toUnsignedInt(code)];
+    }
+
+    /**
+     * Looks up the entry for an OpCode in a specific AddressingMode.
+     *
+     * @return the entry, or null if the OpCode doesn't support the AddressingMode
+     */
+    static Entry lookup(OpCode opCode, AddressingMode addressingMode) {
+        return BY_OPCODE_AND_MODE[opCode.ordinal()][addressingMode.ordinal()];
+    }
+
+    /**
+     * Base cycle counts for the NMOS 6502.
+     *
+     * Page-crossing and taken-branch penalties are not included here.
+     */
+    private static int baseCycles(OpCode opCode, AddressingMode addressingMode) {
+        return switch (opCode) {
+            case ADC, AND, CMP, EOR, LDA, ORA, SBC, LDX, LDY, CPX, CPY, BIT -> switch (addressingMode) {
+                case Value -> 2;
+                case ZeroPageAddress -> 3;
+                case ZeroPageAddressX, ZeroPageAddressY, AbsoluteAddress, AbsoluteAddressX, AbsoluteAddressY -> 4;
+                case IndirectIndexedY -> 5;
+                case IndexedIndirectX -> 6;
+                default -> throw unknownTiming(opCode, addressingMode);
+            };
+            case STA, STX, STY -> switch (addressingMode) {
+                case ZeroPageAddress -> 3;
+                case ZeroPageAddressX, ZeroPageAddressY, AbsoluteAddress -> 4;
+                case AbsoluteAddressX, AbsoluteAddressY -> 5;
+                case IndexedIndirectX, IndirectIndexedY -> 6;
+                default -> throw unknownTiming(opCode, addressingMode);
+            };
+            case ASL, LSR, ROL, ROR, INC, DEC -> switch (addressingMode) {
+                case Accumulator -> 2;
+                case ZeroPageAddress -> 5;
+                case ZeroPageAddressX, AbsoluteAddress -> 6;
+                case AbsoluteAddressX -> 7;
+                default -> throw unknownTiming(opCode, addressingMode);
+            };
+            case JMP -> addressingMode == AddressingMode.AbsoluteIndirect ? 5 : 3;
+            case JSR, RTS, RTI -> 6;
+            case BRK -> 7;
+            case PHA, PHP -> 3;
+            case PLA, PLP -> 4;
+            //Branches, flag instructions, register transfers and the illegal immediate codes
+            default -> 2;
+        };
+    }
+
+    private static IllegalStateException unknownTiming(OpCode opCode, AddressingMode addressingMode) {
+        return new IllegalStateException(String.format("No cycle timing for %s in %s", opCode, addressingMode));
+    }
+}
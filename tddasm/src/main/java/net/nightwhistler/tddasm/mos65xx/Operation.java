@@ -1,10 +1,5 @@
 package net.nightwhistler.tddasm.mos65xx;
 
-import io.vavr.Tuple2;
-import io.vavr.collection.List;
-import io.vavr.control.Try;
-
-
 public record Operation(OpCode opCode, Operand.ConcreteOperand operand) {
 
     public AddressingMode addressingMode() {
@@ -12,7 +7,7 @@ public record Operation(OpCode opCode, Operand.ConcreteOperand operand) {
     }
 
     public Operation {
-        if (!opCode.supportAddressingMode(operand.addressingMode())) {
+        if (OpCodeTable.lookup(opCode, operand.addressingMode()) == null) {
             throw new IllegalArgumentException(
                     String.format("Opcode %s does not support AddressingMode %s", opCode, operand.addressingMode()));
         }
@@ -27,9 +22,7 @@ public record Operation(OpCode opCode, Operand.ConcreteOperand operand) {
     }
 
     public byte[] bytes() {
-        byte firstByte = opCode.findByAddressingMode(addressingMode()).getOrElseThrow(
-                () -> new IllegalArgumentException("Unsupported AddressingMode: " + addressingMode() + " for OpCode " + opCode)
-        ).code();
+        byte firstByte = OpCodeTable.lookup(opCode, addressingMode()).code();
 
         byte[] value = operand.bytes();
 
@@ -40,22 +33,28 @@ public record Operation(OpCode opCode, Operand.ConcreteOperand operand) {
         return result;
     }
 
+    /**
+     * The number of cycles this Operation takes on an NMOS 6502.
+     *
+     * This is the base count, the Processor adds a cycle for reads
+     * through an index that cross a page and for taken branches.
+     */
+    public int cycles() {
+        return OpCodeTable.lookup(opCode, addressingMode()).cycles();
+    }
+
     public static Operation fromBytes(byte... bytes) {
         byte firstByte = bytes[0];
-        var maybeMapping= List.of(OpCode.values())
-                .flatMap(o -> Try.of(() -> o.addressingModeMappings()).getOrElse(List.empty()).map(m -> new Tuple2<>(o, m)))
-                .filter(t -> t._2.code() == firstByte);
+        var entry = OpCodeTable.lookup(firstByte);
+
+        if (entry == null) {
+            throw new UnsupportedOperationException("Cannot map byte-value: " + Integer.toHexString(firstByte));
+        }
 
-        return maybeMapping.map(tuple -> {
-            OpCode opCode = tuple._1;
-            AddressingMode addressingMode = tuple._2.addressingMode();
-            if (bytes.length == 2) {
-              return new Operation(opCode, new Operand.OneByteAddress(addressingMode, bytes[1]));
-            } else {
-               return new Operation(opCode, new Operand.TwoByteAddress(addressingMode, bytes[1], bytes[2]));
-            }
-        }).getOrElseThrow(() -> new UnsupportedOperationException("Cannot map byte-value: " + Integer.toHexString(firstByte)));
+        byte[] operandBytes = new byte[bytes.length - 1];
+        System.arraycopy(bytes, 1, operandBytes, 0, operandBytes.length);
 
+        return new Operation(entry.opCode(), entry.addressingMode().toOperand(operandBytes));
     }
 
     @Override
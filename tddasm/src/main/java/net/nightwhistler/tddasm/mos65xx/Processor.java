@@ -4,15 +4,16 @@ import io.vavr.collection.List;
 import net.nightwhistler.ByteUtils;
 import net.nightwhistler.tddasm.c64.kernal.Kernal;
 
+import java.lang.invoke.MethodHandles;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.function.Consumer;
-import java.util.function.Function;
+import java.util.Objects;
+import java.util.function.Predicate;
 
 import static java.lang.Byte.toUnsignedInt;
-import static net.nightwhistler.ByteUtils.littleEndianBytesToInt;
 import static net.nightwhistler.ByteUtils.toInt;
-import static net.nightwhistler.tddasm.mos65xx.OpCode.JMP;
 import static net.nightwhistler.tddasm.mos65xx.Operand.address;
 import static net.nightwhistler.tddasm.mos65xx.Operation.operation;
 
@@ -20,6 +21,14 @@ public class Processor {
 
     public static Operand.TwoByteAddress STACK_BASE_ADDRESS = address(0x0100);
 
+    private static final int STACK_BASE = STACK_BASE_ADDRESS.toInt();
+
+    //Pushing the return address and status, and reading the vector, same as BRK
+    private static final int INTERRUPT_CYCLES = 7;
+
+    private static final int DEFAULT_UNDO_STEPS = 1 << 16;
+    private static final int DEFAULT_SNAPSHOT_INTERVAL = 1 << 16;
+
     private byte accumulator;
     private byte xRegister;
     private byte yRegister;
@@ -28,19 +37,53 @@ public class Processor {
 
     private int stackPointer = 0xF3;
 
-    private Operand.TwoByteAddress programCounter = address(0x00);
+    //Kept as a plain int so stepping doesn't need to allocate addresses
+    private int programCounter = 0x00;
+
+    private final MemoryBus memory = new MemoryBus();
+
+    private final DecodeCache decodeCache = new DecodeCache();
+
+    private final BlockEngine blockEngine = new BlockEngine(this);
+
+    //Can be switched off with -Dtddasm.recompilation=false, to rule it out when debugging
+    private boolean recompilationEnabled = Boolean.parseBoolean(System.getProperty("tddasm.recompilation", "true"));
 
-    //64kb of memory, C64 style.
-    private static final int MEMORY_SIZE = (int) Math.pow(2, 16);
-    private byte[] memory = new byte[MEMORY_SIZE];
+    //Set when a write hits compiled code, so a running block knows it has to stop
+    private boolean codeModified = false;
+
+    //One bit per 256 byte page written since cleanSnapshot was taken or restored
+    private final long[] dirtyPages = new long[4];
+    private Snapshot cleanSnapshot = null;
 
     private Program currentProgram = null;
 
     private Map<Operand.TwoByteAddress, JavaRoutine> kernalRoutines = new HashMap<>();
 
-    private List<ProcessorEvent.Listener<ProcessorEvent>> listeners = List.empty();
+    //One bit per page with a JavaRoutine, and the sorted addresses of all of them, so only those
+    //addresses need a look in the map. Both are small, which keeps forked Processors cheap.
+    private final long[] javaRoutinePages = new long[4];
+    private int[] javaRoutineAddresses = new int[0];
+
+    private EventListeners listeners = new EventListeners();
+
+    //Stands in for the real listeners while steps are replayed
+    private static final EventListeners NO_LISTENERS = new EventListeners();
+
+    private static final ExecutionObserver[] NO_OBSERVERS = new ExecutionObserver[0];
+
+    private ExecutionObserver[] observers = NO_OBSERVERS;
+
+    //Only there while time travel is enabled
+    private History history = null;
+
+    //The Labels of the current Program by address, so JumpedTo events don't search the Program
+    private LabelIndex labelIndex = LabelIndex.EMPTY;
 
-    private int operationCount = 0;
+    private long operationCount = 0;
+
+    //Cycles spent executing instructions, including page-crossing and branch penalties
+    private long cycleCount = 0;
 
     public Processor() {
         this(true);
@@ -56,11 +99,78 @@ public class Processor {
         registerJavaRoutine(javaRoutine.location(), javaRoutine);
     }
 
+    /**
+     * Registers a JavaRoutine at an address, replacing any JavaRoutine that was there.
+     *
+     * This can be done at any time, also from a JavaRoutine or listener
+     * while the Processor is running.
+     */
     public void registerJavaRoutine(Operand.TwoByteAddress address, JavaRoutine javaRoutine) {
+        int location = address.toInt();
         this.kernalRoutines.put(address, javaRoutine);
+        indexJavaRoutines();
+        //Compiled blocks never contain the address of a JavaRoutine, and one that is running stops
+        codeModified |= blockEngine.invalidate(location);
         javaRoutine.onLoad(this);
     }
 
+    boolean hasJavaRoutineAt(int address) {
+        int location = address & 0xFFFF;
+        return (javaRoutinePages[location >>> 14] & (1L << (location >>> 8))) != 0
+                && Arrays.binarySearch(javaRoutineAddresses, location) >= 0;
+    }
+
+    private void indexJavaRoutines() {
+        javaRoutineAddresses = new int[kernalRoutines.size()];
+        Arrays.fill(javaRoutinePages, 0L);
+        int count = 0;
+        for (var address : kernalRoutines.keySet()) {
+            int location = address.toInt();
+            javaRoutineAddresses[count++] = location;
+            javaRoutinePages[location >>> 14] |= 1L << (location >>> 8);
+        }
+        Arrays.sort(javaRoutineAddresses);
+    }
+
+    /**
+     * The registered JavaRoutines by address, not to be modified.
+     */
+    Map<Operand.TwoByteAddress, JavaRoutine> javaRoutines() {
+        return Collections.unmodifiableMap(kernalRoutines);
+    }
+
+    JavaRoutine javaRoutineAt(int address) {
+        return hasJavaRoutineAt(address) ? kernalRoutines.get(address(address)) : null;
+    }
+
+    /**
+     * Turns compiling hot blocks of code to JVM bytecode on or off.
+     *
+     * Compiled code gives exactly the same results as the interpreter,
+     * but this makes it easy to rule out when debugging. Compiled blocks
+     * are only used when there are no event listeners.
+     *
+     * @param recompilationEnabled whether to run hot code as compiled blocks
+     */
+    public void setRecompilationEnabled(boolean recompilationEnabled) {
+        this.recompilationEnabled = recompilationEnabled;
+    }
+
+    public boolean isRecompilationEnabled() {
+        return recompilationEnabled;
+    }
+
+    BlockEngine blockEngine() {
+        return blockEngine;
+    }
+
+    /**
+     * Gives the BlockCompiler access to define classes in the Processor's nest.
+     */
+    static MethodHandles.Lookup lookup() {
+        return MethodHandles.lookup();
+    }
+
     /**
      * Attempts to perform the Operation provided by the given provider.
      *
@@ -69,7 +179,7 @@ public class Processor {
      * @param operationProvider
      */
     public void performOperation(OperationProvider operationProvider) {
-        performOperation(operationProvider.provide(currentProgram, programCounter));
+        performOperation(operationProvider.provide(currentProgram, address(programCounter)));
     }
 
     /**
@@ -82,360 +192,619 @@ public class Processor {
      * @param operation
      */
     public void performOperation(Operation operation) {
+        int operand = switch (operation.operand()) {
+            case Operand.ByteValue byteValue -> toUnsignedInt(byteValue.value());
+            case Operand.OneByteAddress oneByteAddress -> toUnsignedInt(oneByteAddress.byteValue());
+            case Operand.TwoByteAddress twoByteAddress -> twoByteAddress.toInt();
+            case Operand.NoValue noValue -> 0;
+        };
 
-        this.statusRegister.setBreakCommandFlag(false);
-
-        switch (operation.opCode()) {
-            //Load Acumulator
-            case LDA -> setFlags(accumulator = value(operation.operand()));
-
-            //Store Accumulator
-            case STA -> pokeValue(location((Operand.AddressOperand) operation.operand()), accumulator);
+        execute(operation.opCode(), operation.addressingMode(), operand);
+    }
 
-            //Load X register
-            case LDX -> setFlags(xRegister = value(operation.operand()));
+    /**
+     * Executes a single instruction.
+     *
+     * Both the Operation based API and instructions read from memory end
+     * up here. The operand is passed as a raw unsigned value (a byte value,
+     * a zero-page address or an absolute address depending on the
+     * AddressingMode), so executing an instruction does not need to create
+     * any objects.
+     *
+     * @param opCode the instruction to execute
+     * @param addressingMode how to interpret the operand
+     * @param operand the raw operand value
+     */
+    private void execute(OpCode opCode, AddressingMode addressingMode, int operand) {
+        OpCodeTable.Entry entry = OpCodeTable.lookup(opCode, addressingMode);
+        if (entry == null) {
+            throw new IllegalArgumentException(
+                    String.format("Opcode %s does not support AddressingMode %s", opCode, addressingMode));
+        }
 
-            //Store X register
-            case STX -> pokeValue(location((Operand.AddressOperand) operation.operand()), xRegister);
+        execute(entry, operand);
+    }
 
-            //Load y register
-            case LDY -> setFlags(yRegister = value(operation.operand()));
+    private void execute(OpCodeTable.Entry entry, int operand) {
+        this.statusRegister.setBreakCommandFlag(false);
+        entry.handler().execute(this, entry.addressingMode(), operand);
+        operationCount++;
+        cycleCount += entry.cycles();
+    }
 
-            case CPY -> setFlags((byte) (yRegister - value(operation.operand())));
+    /**
+     * Provides the code that executes an OpCode, used to build the OpCodeTable.
+     *
+     * @param opCode the OpCode
+     * @return a handler that executes the OpCode on a Processor
+     */
+    static OpCodeTable.Handler handlerFor(OpCode opCode) {
+        //The BlockCompiler calls these same methods by name, so keep them named after the OpCode
+        return switch (opCode) {
+            case LDA -> Processor::lda;
+            case STA -> Processor::sta;
+            case LDX -> Processor::ldx;
+            case STX -> Processor::stx;
+            case LDY -> Processor::ldy;
+            case STY -> Processor::sty;
+            case CPY -> Processor::cpy;
+            case CPX -> Processor::cpx;
+            case CMP -> Processor::cmp;
+            case AND -> Processor::and;
+            case ORA -> Processor::ora;
+            case EOR -> Processor::eor;
+            case TSX -> Processor::tsx;
+            case TXS -> Processor::txs;
+            case TAY -> Processor::tay;
+            case TYA -> Processor::tya;
+            case TXA -> Processor::txa;
+            case TAX -> Processor::tax;
+            case PHA -> Processor::pha;
+            case PLA -> Processor::pla;
+            case PHP -> Processor::php;
+            case PLP -> Processor::plp;
+            case SEC -> Processor::sec;
+            case CLC -> Processor::clc;
+            case SEI -> Processor::sei;
+            case CLI -> Processor::cli;
+            case SED -> Processor::sed;
+            case CLD -> Processor::cld;
+            case CLV -> Processor::clv;
+            case SBC -> Processor::sbc;
+            case ADC -> Processor::adc;
+            case JMP -> Processor::jmp;
+            case JSR -> Processor::jsr;
+            case RTS -> Processor::rts;
+            case RTI -> Processor::rti;
+            case BRK -> Processor::brk;
+            case BNE -> Processor::bne;
+            case BEQ -> Processor::beq;
+            case BPL -> Processor::bpl;
+            case BMI -> Processor::bmi;
+            case BCS -> Processor::bcs;
+            case BCC -> Processor::bcc;
+            case BVS -> Processor::bvs;
+            case BVC -> Processor::bvc;
+            case INX -> Processor::inx;
+            case DEX -> Processor::dex;
+            case INY -> Processor::iny;
+            case DEY -> Processor::dey;
+            case INC -> Processor::inc;
+            case DEC -> Processor::dec;
+            case ASL -> Processor::asl;
+            case ROL -> Processor::rol;
+            case LSR -> Processor::lsr;
+            case ROR -> Processor::ror;
+            case BIT -> Processor::bit;
+            case NOP -> Processor::nop;
+            default -> (processor, addressingMode, operand) -> {
+                throw new UnsupportedOperationException("Not yet implemented: " + opCode);
+            };
+        };
+    }
 
-            case CPX -> setFlags((byte) (xRegister - value(operation.operand())));
+    //Load Accumulator
+    private void lda(AddressingMode addressingMode, int operand) {
+        setFlags(accumulator = value(addressingMode, operand));
+    }
 
-            case CMP -> setFlags((byte) (accumulator - value(operation.operand())));
+    //Store Accumulator
+    private void sta(AddressingMode addressingMode, int operand) {
+        pokeValue(location(addressingMode, operand), accumulator);
+    }
 
-            case AND -> setFlags(accumulator = (byte) (accumulator & value(operation.operand())));
+    //Load X register
+    private void ldx(AddressingMode addressingMode, int operand) {
+        setFlags(xRegister = value(addressingMode, operand));
+    }
 
-            case ORA -> setFlags(accumulator = (byte) (accumulator | value(operation.operand())));
+    //Store X register
+    private void stx(AddressingMode addressingMode, int operand) {
+        pokeValue(location(addressingMode, operand), xRegister);
+    }
 
-            case EOR -> setFlags(accumulator = (byte) (accumulator ^ value(operation.operand())));
+    //Load y register
+    private void ldy(AddressingMode addressingMode, int operand) {
+        setFlags(yRegister = value(addressingMode, operand));
+    }
 
-            case TSX -> setFlags(xRegister = (byte) stackPointer);
+    //Store y register
+    private void sty(AddressingMode addressingMode, int operand) {
+        pokeValue(location(addressingMode, operand), yRegister);
+    }
 
-            case TXS -> stackPointer = toUnsignedInt(xRegister);
+    private void cpy(AddressingMode addressingMode, int operand) {
+        compare(yRegister, value(addressingMode, operand));
+    }
 
-            case TAY -> setFlags(yRegister = accumulator);
+    private void cpx(AddressingMode addressingMode, int operand) {
+        compare(xRegister, value(addressingMode, operand));
+    }
 
-            case TYA -> setFlags(accumulator = yRegister);
+    private void cmp(AddressingMode addressingMode, int operand) {
+        compare(accumulator, value(addressingMode, operand));
+    }
 
-            case TXA -> setFlags(accumulator = xRegister);
+    /**
+     * Sets the flags like a subtraction without borrow would: the carry
+     * when the register is at least as large as the value, unsigned.
+     */
+    private void compare(byte register, byte value) {
+        statusRegister.setCarryFlag(toUnsignedInt(register) >= toUnsignedInt(value));
+        setFlags((byte) (register - value));
+    }
 
-            case TAX -> setFlags(xRegister = accumulator);
+    private void and(AddressingMode addressingMode, int operand) {
+        setFlags(accumulator = (byte) (accumulator & value(addressingMode, operand)));
+    }
 
-            case PHA -> pushStack(accumulator);
+    private void ora(AddressingMode addressingMode, int operand) {
+        setFlags(accumulator = (byte) (accumulator | value(addressingMode, operand)));
+    }
 
-            case PLA -> setFlags(accumulator = popStack());
+    private void eor(AddressingMode addressingMode, int operand) {
+        setFlags(accumulator = (byte) (accumulator ^ value(addressingMode, operand)));
+    }
 
-            case SEC -> statusRegister.setCarryFlag(true);
+    private void tsx(AddressingMode addressingMode, int operand) {
+        setFlags(xRegister = (byte) stackPointer);
+    }
 
-            case SBC -> {
-                byte oldAcc = accumulator;
-                int carryComplement = (byte) (statusRegister.isCarryFlagSet() ? 0 : 1);
-                int result = toUnsignedInt(accumulator) - toUnsignedInt(value(operation.operand())) - carryComplement;
-                setFlags(accumulator = (byte) result);
-                statusRegister.setCarryFlag(!statusRegister.isNegativeFlagSet());
-                setOverflow(oldAcc, accumulator);
-            }
+    private void txs(AddressingMode addressingMode, int operand) {
+        stackPointer = toUnsignedInt(xRegister);
+    }
 
-            case ADC -> {
-                byte oldAcc = accumulator;
-                int carryValue = statusRegister.isCarryFlagSet() ? 1: 0;
-                int result = toUnsignedInt(accumulator) + toUnsignedInt(value(operation.operand())) + carryValue;
-                setFlags(accumulator = (byte) (result & 0xFFFF));
-                statusRegister.setCarryFlag(result > 0xFF);
-                setOverflow(oldAcc, accumulator);
-             }
+    private void tay(AddressingMode addressingMode, int operand) {
+        setFlags(yRegister = accumulator);
+    }
 
-            //Store y register
-            case STY -> pokeValue(location((Operand.AddressOperand) operation.operand()), yRegister);
+    private void tya(AddressingMode addressingMode, int operand) {
+        setFlags(accumulator = yRegister);
+    }
 
-            //Clear carry flag
-            case CLC -> statusRegister.setCarryFlag(false);
+    private void txa(AddressingMode addressingMode, int operand) {
+        setFlags(accumulator = xRegister);
+    }
 
-            case JMP -> jump(operation.operand());
+    private void tax(AddressingMode addressingMode, int operand) {
+        setFlags(xRegister = accumulator);
+    }
 
-            case BNE -> jumpIf(operation.operand(), !statusRegister.isZeroFlagSet());
+    private void pha(AddressingMode addressingMode, int operand) {
+        pushStack(accumulator);
+    }
 
-            case BEQ -> jumpIf(operation.operand(), statusRegister.isZeroFlagSet());
+    private void pla(AddressingMode addressingMode, int operand) {
+        setFlags(accumulator = popStack());
+    }
 
-            case BPL -> jumpIf(operation.operand(), !statusRegister.isNegativeFlagSet());
+    private void php(AddressingMode addressingMode, int operand) {
+        pushStack(statusRegister.toByte());
+    }
 
-            case BMI -> jumpIf(operation.operand(), statusRegister.isNegativeFlagSet());
+    private void plp(AddressingMode addressingMode, int operand) {
+        statusRegister.setFrom(popStack());
+    }
 
-            case BCS -> jumpIf(operation.operand(), statusRegister.isCarryFlagSet());
+    private void sec(AddressingMode addressingMode, int operand) {
+        statusRegister.setCarryFlag(true);
+    }
 
-            case BCC -> jumpIf(operation.operand(), !statusRegister.isCarryFlagSet());
+    //Clear carry flag
+    private void clc(AddressingMode addressingMode, int operand) {
+        statusRegister.setCarryFlag(false);
+    }
 
-            case BVS -> jumpIf(operation.operand(), statusRegister.isOverFlowFlagSet());
+    private void sei(AddressingMode addressingMode, int operand) {
+        statusRegister.setInterruptDisableFlag(true);
+    }
 
-            case BVC -> jumpIf(operation.operand(), !statusRegister.isOverFlowFlagSet());
+    private void cli(AddressingMode addressingMode, int operand) {
+        statusRegister.setInterruptDisableFlag(false);
+    }
 
-            case INX -> setFlags(++xRegister);
+    private void sed(AddressingMode addressingMode, int operand) {
+        statusRegister.setDecimalModeFlag(true);
+    }
 
-            case DEX -> setFlags(--xRegister);
+    private void cld(AddressingMode addressingMode, int operand) {
+        statusRegister.setDecimalModeFlag(false);
+    }
 
-            case INY -> setFlags(++yRegister);
+    private void clv(AddressingMode addressingMode, int operand) {
+        statusRegister.setOverFlowFlag(false);
+    }
 
-            case DEY -> setFlags(--yRegister);
+    private void sbc(AddressingMode addressingMode, int operand) {
+        byte oldAcc = accumulator;
+        int carryComplement = (byte) (statusRegister.isCarryFlagSet() ? 0 : 1);
+        int result = toUnsignedInt(accumulator) - toUnsignedInt(value(addressingMode, operand)) - carryComplement;
+        setFlags(accumulator = (byte) result);
+        statusRegister.setCarryFlag(!statusRegister.isNegativeFlagSet());
+        setOverflow(oldAcc, accumulator);
+    }
 
-            case JSR -> doJsr(operation.operand());
+    private void adc(AddressingMode addressingMode, int operand) {
+        byte oldAcc = accumulator;
+        int carryValue = statusRegister.isCarryFlagSet() ? 1: 0;
+        int result = toUnsignedInt(accumulator) + toUnsignedInt(value(addressingMode, operand)) + carryValue;
+        setFlags(accumulator = (byte) (result & 0xFFFF));
+        statusRegister.setCarryFlag(result > 0xFF);
+        setOverflow(oldAcc, accumulator);
+    }
 
-            case RTS -> doRTS();
+    private void jmp(AddressingMode addressingMode, int operand) {
+        jump(addressingMode, operand);
+    }
 
-            case INC -> doModify((Operand.AddressOperand) operation.operand(), b -> ++b);
+    private void jsr(AddressingMode addressingMode, int operand) {
+        pushStack(ByteUtils.highByte(programCounter));
+        pushStack(ByteUtils.lowByte(programCounter));
+        jump(addressingMode, operand);
+    }
 
-            case DEC -> doModify((Operand.AddressOperand) operation.operand(), b -> --b);
+    private void rts(AddressingMode addressingMode, int operand) {
+        int lowByte = toUnsignedInt(popStack());
+        int highByte = toUnsignedInt(popStack());
+        this.programCounter = (highByte << 8) | lowByte;
+    }
 
-            case RTI -> doRTI();
+    private void rti(AddressingMode addressingMode, int operand) {
+        statusRegister.setFrom(popStack());
+        int newLowByte = toUnsignedInt(popStack());
+        int newHighByte = toUnsignedInt(popStack());
+        this.programCounter = (newHighByte << 8) | newLowByte;
+    }
 
-            case SEI -> statusRegister.setInterruptDisableFlag(true);
+    private void brk(AddressingMode addressingMode, int operand) {
+        this.statusRegister.setBreakCommandFlag(true);
+        //The real BRK instruction takes 1 byte but increments the PC by 2.
+        //We have always pushed the address directly after the BRK as
+        //the return address though, so we don't add the extra increment.
+        doInterruptHandling(true);
+    }
 
-            case CLI -> statusRegister.setInterruptDisableFlag(false);
+    private void bne(AddressingMode addressingMode, int operand) {
+        jumpIf(addressingMode, operand, !statusRegister.isZeroFlagSet());
+    }
 
-            case ASL -> doModify(operation.operand(), (value) -> {
-                int newValue = value << 1;
-                statusRegister.setCarryFlag(newValue > 0xFF);
-                return (byte) (newValue & 0xFF);
-            });
+    private void beq(AddressingMode addressingMode, int operand) {
+        jumpIf(addressingMode, operand, statusRegister.isZeroFlagSet());
+    }
 
-            case ROL -> doModify(operation.operand(), (value) -> {
-                int carryValueAsInt = toInt(statusRegister.isCarryFlagSet());
-                int newValue = (value << 1) + carryValueAsInt;
-                statusRegister.setCarryFlag(newValue > 0xFF);
-                return (byte) (newValue & 0xFF);
-            });
+    private void bpl(AddressingMode addressingMode, int operand) {
+        jumpIf(addressingMode, operand, !statusRegister.isNegativeFlagSet());
+    }
 
-            case LSR -> doModify(operation.operand(), (value) -> {
-                //Check if the last bit is 1 or 0
-                boolean carryFlag = value % 2 == 1;
-                int newValue = value >>> 1;
-                statusRegister.setCarryFlag(carryFlag);
-                return (byte) (newValue & 0xFF);
-            });
+    private void bmi(AddressingMode addressingMode, int operand) {
+        jumpIf(addressingMode, operand, statusRegister.isNegativeFlagSet());
+    }
 
-            case ROR -> doModify(operation.operand(), (value) -> {
-                int carryValueAsInt = toInt(statusRegister.isCarryFlagSet());
-                //Check if the last bit is 1 or 0
-                boolean carryFlag = value % 2 == 1;
-                int newValue = value >>> 1;
-                newValue += carryValueAsInt * 128; //Add the carry flag in bit 7
+    private void bcs(AddressingMode addressingMode, int operand) {
+        jumpIf(addressingMode, operand, statusRegister.isCarryFlagSet());
+    }
 
-                statusRegister.setCarryFlag(carryFlag);
-                return (byte) (newValue & 0xFF);
-            });
+    private void bcc(AddressingMode addressingMode, int operand) {
+        jumpIf(addressingMode, operand, !statusRegister.isCarryFlagSet());
+    }
 
-            case BIT -> {
-                byte value = value(operation.operand());
-                setFlags(value);
-                statusRegister.setZeroFlag((value & accumulator) == 0);
-                //Transfer bit 6 into the overflow flag
-                statusRegister.setOverFlowFlag((value & 0b01000000) > 0);
-            }
+    private void bvs(AddressingMode addressingMode, int operand) {
+        jumpIf(addressingMode, operand, statusRegister.isOverFlowFlagSet());
+    }
 
-            case BRK -> {
-                this.statusRegister.setBreakCommandFlag(true);
-                //The BRK instruction takes 1 byte but increments the PC by 2
-                //Since the generic handling will only increase it by 1, we
-                //add an extra increment here.
-                this.programCounter.increment();
-                doInterruptHandling(true);
-            }
+    private void bvc(AddressingMode addressingMode, int operand) {
+        jumpIf(addressingMode, operand, !statusRegister.isOverFlowFlagSet());
+    }
 
-            case CLD -> statusRegister.setDecimalModeFlag(false);
+    private void inx(AddressingMode addressingMode, int operand) {
+        setFlags(++xRegister);
+    }
 
-            case SED -> statusRegister.setDecimalModeFlag(true);
+    private void dex(AddressingMode addressingMode, int operand) {
+        setFlags(--xRegister);
+    }
 
-            case CLV -> statusRegister.setOverFlowFlag(false);
+    private void iny(AddressingMode addressingMode, int operand) {
+        setFlags(++yRegister);
+    }
 
-            case NOP -> {} //Do nothing at all
+    private void dey(AddressingMode addressingMode, int operand) {
+        setFlags(--yRegister);
+    }
 
-            case PHP -> pushStack(statusRegister.toByte());
+    private void inc(AddressingMode addressingMode, int operand) {
+        int location = location(addressingMode, operand);
+        byte newValue = (byte) (peekValue(location) + 1);
+        setFlags(newValue);
+        pokeValue(location, newValue);
+    }
 
-            case PLP -> statusRegister.setFrom(popStack());
+    private void dec(AddressingMode addressingMode, int operand) {
+        int location = location(addressingMode, operand);
+        byte newValue = (byte) (peekValue(location) - 1);
+        setFlags(newValue);
+        pokeValue(location, newValue);
+    }
 
-            default -> throw new UnsupportedOperationException("Not yet implemented: " + operation.opCode());
+    private void asl(AddressingMode addressingMode, int operand) {
+        if (addressingMode == AddressingMode.Accumulator) {
+            accumulator = shiftLeft(accumulator, false);
+        } else {
+            int location = location(addressingMode, operand);
+            pokeValue(location, shiftLeft(peekValue(location), false));
         }
-
-        operationCount++;
     }
 
-    private void setOverflow(byte oldValue, byte newValue) {
-        //There is probably a way more efficient way to do this
-        //but this follows the spec exactly
-        boolean bit7Old = oldValue < 0;
-        boolean bit6Old = (oldValue & 0x01000000) > 0;
+    private void rol(AddressingMode addressingMode, int operand) {
+        if (addressingMode == AddressingMode.Accumulator) {
+            accumulator = shiftLeft(accumulator, statusRegister.isCarryFlagSet());
+        } else {
+            int location = location(addressingMode, operand);
+            pokeValue(location, shiftLeft(peekValue(location), statusRegister.isCarryFlagSet()));
+        }
+    }
 
-        boolean bit7New = newValue < 0;
-        boolean bit6New = (newValue & 0x01000000) > 0;
+    private void lsr(AddressingMode addressingMode, int operand) {
+        if (addressingMode == AddressingMode.Accumulator) {
+            accumulator = shiftRight(accumulator, false);
+        } else {
+            int location = location(addressingMode, operand);
+            pokeValue(location, shiftRight(peekValue(location), false));
+        }
+    }
 
-        //TODO IntelliJ claims the second clause is always true when reached. Why?
-        boolean overflowOccurred = bit7Old != bit7New && bit6Old != bit6New;
-        statusRegister.setOverFlowFlag(overflowOccurred);
+    private void ror(AddressingMode addressingMode, int operand) {
+        if (addressingMode == AddressingMode.Accumulator) {
+            accumulator = shiftRight(accumulator, statusRegister.isCarryFlagSet());
+        } else {
+            int location = location(addressingMode, operand);
+            pokeValue(location, shiftRight(peekValue(location), statusRegister.isCarryFlagSet()));
+        }
     }
 
-    private void doModify(Operand.ConcreteOperand operand, Function<Byte, Byte> modifier) {
+    private void bit(AddressingMode addressingMode, int operand) {
+        byte value = value(addressingMode, operand);
+        setFlags(value);
+        statusRegister.setZeroFlag((value & accumulator) == 0);
+        //Transfer bit 6 into the overflow flag
+        statusRegister.setOverFlowFlag((value & 0b01000000) > 0);
+    }
 
-        Consumer<Byte> postOp;
+    private void nop(AddressingMode addressingMode, int operand) {
+        //Do nothing at all
+    }
 
-        byte originalValue = switch (operand) {
-            case Operand.AddressOperand addressOperand -> {
-                int location = location(addressOperand);
-                postOp = (n) -> pokeValue(location, n);
-                yield peekValue(location);
-            }
-            case Operand.NoValue nv -> {
-                if (nv.addressingMode() == AddressingMode.Accumulator ) {
-                    postOp = (n) -> accumulator = n;
-                    yield accumulator;
-                } else {
-                    throw new IllegalArgumentException("Unsupported AddressingMode " + operand.addressingMode());
-                }
-            }
+    private void setOverflow(byte oldValue, byte newValue) {
+        //This used to compare bit 7 and "bit 6" separately, but the bit 6 mask
+        //was 0x01000000, which only picks up the sign extension of the byte.
+        //Both checks came down to whether the sign changed, which is all the
+        //StatusRegister needs to work out the flag when it's read.
+        statusRegister.setOverflowFlags(oldValue, newValue);
+    }
 
-            default -> throw new IllegalArgumentException("Unsupported AddressingMode " + operand.addressingMode());
-        };
+    /**
+     * Shared implementation of ASL and ROL.
+     *
+     * Sets the carry and result flags.
+     *
+     * @param value the value to shift
+     * @param carryIn whether to rotate the carry flag into bit 0
+     * @return the new value
+     */
+    private byte shiftLeft(byte value, boolean carryIn) {
+        int newValue = (toUnsignedInt(value) << 1) + toInt(carryIn);
+        statusRegister.setCarryFlag(newValue > 0xFF);
 
-        byte newValue = modifier.apply(originalValue);
-        setFlags(newValue);
-        postOp.accept(newValue);
+        byte result = (byte) (newValue & 0xFF);
+        setFlags(result);
+        return result;
     }
 
-    private void doJsr(Operand operand) {
-        pushStack(programCounter.highByte());
-        pushStack(programCounter.lowByte());
-        jump(operand);
-    }
+    /**
+     * Shared implementation of LSR and ROR.
+     *
+     * Sets the carry and result flags.
+     *
+     * @param value the value to shift
+     * @param carryIn whether to rotate the carry flag into bit 7
+     * @return the new value
+     */
+    private byte shiftRight(byte value, boolean carryIn) {
+        //Check if the last bit is 1 or 0
+        boolean carryFlag = (value & 0x01) == 1;
+        int newValue = toUnsignedInt(value) >>> 1;
+        newValue += toInt(carryIn) * 128; //Add the carry flag in bit 7
+
+        statusRegister.setCarryFlag(carryFlag);
 
-    private void doRTS() {
-        byte lowByte = popStack();
-        byte highByte = popStack();
-        this.programCounter = new Operand.TwoByteAddress(lowByte, highByte);
+        byte result = (byte) (newValue & 0xFF);
+        setFlags(result);
+        return result;
     }
 
-    private void jump(Operand operand) {
-        jumpIf(operand, true);
+    private void jump(AddressingMode addressingMode, int operand) {
+        jumpIf(addressingMode, operand, true);
     }
 
-    private void jumpIf(Operand operand, boolean condition) {
+    private void jumpIf(AddressingMode addressingMode, int operand, boolean condition) {
         if (condition) {
-            int jumpTo = switch (operand) {
-                case Operand.AddressOperand addressOperand -> location(addressOperand);
-                default -> throw new IllegalArgumentException("Unsupported operand type for jumps: " + operand.getClass().getSimpleName());
+            int jumpTo = switch (addressingMode) {
+                case Value, Implied, Accumulator -> throw new IllegalArgumentException(
+                        "Unsupported operand type for jumps: " + addressingMode);
+                default -> location(addressingMode, operand);
             };
 
-            this.programCounter = address(jumpTo);
-            fireEvent(new ProcessorEvent.JumpedTo(programCounter, findLabelsForLocation(programCounter)));
+            if (addressingMode == AddressingMode.Relative) {
+                //A taken branch costs an extra cycle, and another one if it lands on a different page
+                cycleCount += 1 + pageCrossingPenalty(programCounter, jumpTo);
+            }
+
+            this.programCounter = jumpTo & 0xFFFF;
+
+            if (listeners.jumpedTo.wants(programCounter)) {
+                listeners.jumpedTo.fire(new ProcessorEvent.JumpedTo(address(programCounter),
+                        findLabelsForLocation(programCounter)), programCounter);
+            }
         }
     }
 
-    private List<Label> findLabelsForLocation(Operand.TwoByteAddress address) {
-        if (this.currentProgram == null) {
-            return List.empty();
-        } else {
-            return currentProgram
-                    .elementsForLocation(address)
-                    .flatMap(element -> element instanceof Label l ? List.of(l) : List.empty());
-        }
+    List<Label> findLabelsForLocation(int location) {
+        return labelIndex.labelsAt(location);
     }
 
     private void setFlags(byte newValue) {
-        this.statusRegister.setZeroFlag(newValue == 0);
-        this.statusRegister.setNegativeFlag(newValue < 0);
-    }
-
-    private int location(Operand.AddressOperand addressOperand) {
-        return switch (addressOperand) {
-            case Operand.OneByteAddress oneByteAddress -> {
-
-                byte byteValue = oneByteAddress.byteValue();
-                int unsignedValue = toUnsignedInt(byteValue);
-
-                yield switch (oneByteAddress.addressingMode()) {
-                    case ZeroPageAddress -> unsignedValue;
-                    case ZeroPageAddressX -> unsignedValue + toUnsignedInt(xRegister);
-                    case ZeroPageAddressY -> unsignedValue + toUnsignedInt(yRegister);
-                    case IndirectIndexedY -> {
-                        //Must be 0-paged
-                        int address = unsignedValue;
-                        var lowByte = peekValue(address);
-                        var highByte = peekValue(address+1);
-
-                        int calculatedOffset = littleEndianBytesToInt(lowByte, highByte);
-                        int unsignedY = toUnsignedInt(yRegister);
-                        yield calculatedOffset + unsignedY;
-                    }
-                    case IndexedIndirectX -> {
-                        int address = unsignedValue;
-                        var lowByte = peekValue(address + toUnsignedInt(xRegister));
-                        var highByte = peekValue(address+ toUnsignedInt(xRegister) +1);
-
-                        yield littleEndianBytesToInt(lowByte, highByte);
-                    }
-
-                    case Relative -> programCounter.toInt() + byteValue;
-
-                    default -> throw new IllegalArgumentException(
-                            String.format("Can't use %s for OneByteAddress", oneByteAddress.addressingMode())
-                    );
-                };
+        this.statusRegister.setResultFlags(newValue);
+    }
+
+    /**
+     * Calculates the effective address for an operand.
+     *
+     * @param addressingMode the AddressingMode of the instruction
+     * @param operand the raw operand value, as read from memory
+     * @return the effective address. This isn't wrapped around to 16 bits,
+     * all memory access methods take care of that.
+     */
+    private int location(AddressingMode addressingMode, int operand) {
+        return switch (addressingMode) {
+            case ZeroPageAddress -> operand;
+            case ZeroPageAddressX -> operand + toUnsignedInt(xRegister);
+            case ZeroPageAddressY -> operand + toUnsignedInt(yRegister);
+            case IndirectIndexedY -> {
+                //Must be 0-paged
+                int lowByte = toUnsignedInt(peekValue(operand));
+                int highByte = toUnsignedInt(peekValue(operand + 1));
+
+                int calculatedOffset = (highByte << 8) | lowByte;
+                yield calculatedOffset + toUnsignedInt(yRegister);
+            }
+            case IndexedIndirectX -> {
+                int address = operand + toUnsignedInt(xRegister);
+                int lowByte = toUnsignedInt(peekValue(address));
+                int highByte = toUnsignedInt(peekValue(address + 1));
+
+                yield (highByte << 8) | lowByte;
             }
-            case Operand.TwoByteAddress twoByteAddress -> {
-                var baseAddress = littleEndianBytesToInt(twoByteAddress.lowByte(), twoByteAddress.highByte());
-
-                yield switch (twoByteAddress.addressingMode()) {
-                    case AbsoluteAddress -> baseAddress;
-                    case AbsoluteAddressX -> baseAddress + toUnsignedInt(xRegister);
-                    case AbsoluteAddressY -> baseAddress + toUnsignedInt(yRegister);
-                    case AbsoluteIndirect -> {
-                        var lowByte = peekValue(baseAddress);
-                        var highByte = peekValue(baseAddress + 1);
-
-                        yield littleEndianBytesToInt(lowByte, highByte);
-                    }
-                    default -> throw new IllegalArgumentException(
-                            String.format("Can't use %s for TwoByteAddress", twoByteAddress.addressingMode())
-                    );
-                };
+
+            //Relative offsets are signed
+            case Relative -> programCounter + (byte) operand;
+
+            case AbsoluteAddress -> operand;
+            case AbsoluteAddressX -> operand + toUnsignedInt(xRegister);
+            case AbsoluteAddressY -> operand + toUnsignedInt(yRegister);
+            case AbsoluteIndirect -> {
+                int lowByte = toUnsignedInt(peekValue(operand));
+                int highByte = toUnsignedInt(peekValue(operand + 1));
+
+                yield (highByte << 8) | lowByte;
             }
+            default -> throw new IllegalArgumentException(
+                    String.format("Can't use %s as an address", addressingMode)
+            );
         };
     }
 
-    private void fireEvent(ProcessorEvent processorEvent) {
-        this.listeners.forEach(l -> l.receiveEvent(processorEvent));
-    }
-
+    /**
+     * Registers a listener for all events.
+     */
     public void registerEventListener(ProcessorEvent.Listener<ProcessorEvent> listener) {
-        this.listeners = this.listeners.append(listener);
+        listeners.register(ProcessorEvent.class, EventFilter.ALL, listener);
     }
 
+    /**
+     * Registers a listener for one type of event.
+     *
+     * Events are only created when somebody listens to them, so a listener
+     * for just the events a test needs keeps the Processor fast.
+     */
     public <E extends ProcessorEvent> void registerEventListener(Class<E> clazz, ProcessorEvent.Listener<E> listener) {
-        registerEventListener((e) -> {
-            if (clazz.isInstance(e)) {
-                listener.receiveEvent((E) e);
-            }
-        });
+        listeners.register(clazz, EventFilter.ALL, listener);
+    }
+
+    /**
+     * Registers a listener for one type of event, only for the addresses and OpCodes the filter lets through.
+     *
+     * The filter is checked before the event is created, so all other events cost nothing.
+     */
+    public <E extends ProcessorEvent> void registerEventListener(Class<E> clazz, EventFilter filter, ProcessorEvent.Listener<E> listener) {
+        listeners.register(clazz, filter, listener);
+    }
+
+    /**
+     * Adds an observer that sees every instruction and memory write, without events being created.
+     */
+    public void addExecutionObserver(ExecutionObserver observer) {
+        observers = List.of(observers).append(Objects.requireNonNull(observer)).toJavaArray(ExecutionObserver[]::new);
+    }
+
+    public void removeExecutionObserver(ExecutionObserver observer) {
+        observers = List.of(observers).remove(observer).toJavaArray(ExecutionObserver[]::new);
     }
 
-    private byte value(Operand operand) {
-        return switch (operand) {
-            case Operand.ByteValue byteValue ->  byteValue.value();
-            case Operand.AddressOperand addressOperand ->  peekValue(location(addressOperand));
-            case default -> throw new IllegalArgumentException("Illegal Operand: " + operand);
+    private byte value(AddressingMode addressingMode, int operand) {
+        return switch (addressingMode) {
+            case Value -> (byte) operand;
+            case Implied, Accumulator -> throw new IllegalArgumentException("Illegal Operand for AddressingMode: " + addressingMode);
+            //Reading through an index costs an extra cycle when it crosses a page.
+            //Stores and read-modify-write instructions always take that cycle, so it's in their base count.
+            case AbsoluteAddressX -> indexedValue(addressingMode, operand, xRegister);
+            case AbsoluteAddressY, IndirectIndexedY -> indexedValue(addressingMode, operand, yRegister);
+            default -> peekValue(location(addressingMode, operand));
         };
     }
 
+    private byte indexedValue(AddressingMode addressingMode, int operand, byte index) {
+        int location = location(addressingMode, operand);
+        cycleCount += pageCrossingPenalty(location - toUnsignedInt(index), location);
+        return peekValue(location);
+    }
+
+    private static int pageCrossingPenalty(int from, int to) {
+        return ((from ^ to) & 0xFF00) == 0 ? 0 : 1;
+    }
+
     public void pokeValue(Operand.TwoByteAddress address, byte value) {
         pokeValue(address.toInt(), value);
     }
 
     public void pokeValue(int location, byte value) {
         int offset = (location & 0xFFFF);
-        byte oldValue = memory[offset];
-        memory[offset] = value;
-        fireEvent(new ProcessorEvent.MemoryLocationChanged(address(location), oldValue, value));
+        //Only look at the old value when someone is listening, reading a device could have side effects
+        boolean fireEvent = listeners.memoryLocationChanged.wants(offset);
+        byte oldValue = fireEvent || observers.length != 0 || history != null ? memory.peek(offset) : 0;
+        memory.write(offset, value);
+        memoryWritten(offset);
+
+        if (history != null) {
+            history.memoryWritten(offset, oldValue);
+        }
+
+        for (ExecutionObserver observer : observers) {
+            observer.memoryWritten(this, offset, oldValue, value);
+        }
+
+        if (fireEvent) {
+            listeners.memoryLocationChanged.fire(new ProcessorEvent.MemoryLocationChanged(address(offset), oldValue, value), offset);
+        }
     }
 
     public byte peekValue(Operand.TwoByteAddress location) {
@@ -444,7 +813,7 @@ public class Processor {
 
     public byte peekValue(int location) {
         int offset = (location & 0xFFFF);
-        return memory[offset];
+        return memory.read(offset);
     }
 
     public byte[] readMemory(Operand.TwoByteAddress from, Operand.TwoByteAddress to) {
@@ -456,19 +825,98 @@ public class Processor {
         int endOffset = (to & 0xFFFF);
 
         byte[] result = new byte[endOffset-startOffset];
-        System.arraycopy(memory,startOffset,result, 0, result.length);
+        memory.read(startOffset, result, 0, result.length);
 
         return result;
     }
 
+    /**
+     * Maps a range of memory to a device.
+     *
+     * From then on, all reads and writes by the Processor in that range go
+     * to the device. Devices are mapped per 256 byte page, so the range has
+     * to start and end on a page boundary.
+     *
+     * @param from the first address of the range, like $D000
+     * @param to the last address of the range, like $D3FF
+     * @param device the device to map
+     */
+    public void mapDevice(Operand.TwoByteAddress from, Operand.TwoByteAddress to, MemoryDevice device) {
+        int firstPage = firstPage(from);
+        int lastPage = lastPage(to);
+        memory.mapDevice(firstPage, lastPage, device);
+        pagesRemapped(firstPage, lastPage);
+    }
+
+    /**
+     * Maps read-only memory with the given contents.
+     *
+     * The Processor ignores writes to ROM. The ROM is padded with zeroes up
+     * to the next page boundary.
+     *
+     * @param start where the ROM starts, on a page boundary
+     * @param data the contents of the ROM
+     */
+    public void mapRom(Operand.TwoByteAddress start, byte[] data) {
+        int firstPage = firstPage(start);
+        memory.mapRom(firstPage, data);
+        pagesRemapped(firstPage, firstPage + (data.length - 1) / MemoryBus.PAGE_SIZE);
+    }
+
+    /**
+     * Turns a range of memory back into empty RAM, removing any device or ROM mapped there.
+     *
+     * @param from the first address of the range, on a page boundary
+     * @param to the last address of the range, at the end of a page
+     */
+    public void mapRam(Operand.TwoByteAddress from, Operand.TwoByteAddress to) {
+        int firstPage = firstPage(from);
+        int lastPage = lastPage(to);
+        memory.mapRam(firstPage, lastPage);
+        pagesRemapped(firstPage, lastPage);
+    }
+
+    private static int firstPage(Operand.TwoByteAddress address) {
+        if ((address.toInt() & 0xFF) != 0) {
+            throw new IllegalArgumentException("Memory can only be mapped from the start of a page, got " + address);
+        }
+        return address.toInt() >>> 8;
+    }
+
+    private static int lastPage(Operand.TwoByteAddress address) {
+        if ((address.toInt() & 0xFF) != 0xFF) {
+            throw new IllegalArgumentException("Memory can only be mapped up to the end of a page, got " + address);
+        }
+        return address.toInt() >>> 8;
+    }
+
+    private void pagesRemapped(int firstPage, int lastPage) {
+        memoryWritten(firstPage << 8, (lastPage - firstPage + 1) * MemoryBus.PAGE_SIZE);
+    }
+
+    boolean isDeviceMapped(int address) {
+        return memory.isDevicePage((address & 0xFFFF) >>> 8);
+    }
+
     public void pushStack(byte value) {
-        memory[STACK_BASE_ADDRESS.toInt() + stackPointer] = value;
+        int offset = STACK_BASE + stackPointer;
+        byte oldValue = observers.length != 0 || history != null ? memory.peek(offset) : 0;
+        memory.write(offset, value);
+        memoryWritten(offset);
         stackPointer--;
+
+        if (history != null) {
+            history.memoryWritten(offset, oldValue);
+        }
+
+        for (ExecutionObserver observer : observers) {
+            observer.memoryWritten(this, offset, oldValue, value);
+        }
     }
 
     public byte popStack() {
         stackPointer++;
-        return memory[STACK_BASE_ADDRESS.toInt() + stackPointer];
+        return memory.read(STACK_BASE + stackPointer);
     }
 
     /**
@@ -478,6 +926,7 @@ public class Processor {
      */
     public void load(Program program) {
         this.currentProgram = program;
+        this.labelIndex = LabelIndex.of(program);
         byte[] programData = program.compile();
         int startLocation = program.startAddress().toInt();
 
@@ -487,70 +936,456 @@ public class Processor {
                 .forEach(this::registerJavaRoutine);
 
         setProgramCounter(program.startAddress());
-        System.arraycopy(programData, 0, this.memory, startLocation, programData.length);
+        writeMemory(programData, 0, startLocation, programData.length);
     }
 
     public void storeOperationAt(Operand.TwoByteAddress address, Operation operation) {
         int offset = address.toInt();
         byte[] operationBytes = operation.bytes();
-        System.arraycopy(operationBytes, 0, memory, offset, operationBytes.length);
+        writeMemory(operationBytes, 0, offset, operationBytes.length);
     }
 
     public void loadBinary(byte[] binaryProgram) {
         int startLocation = ByteUtils.littleEndianBytesToInt(binaryProgram[0], binaryProgram[1]);
 
-        System.arraycopy(binaryProgram, 2, this.memory, startLocation, binaryProgram.length - 2);
+        writeMemory(binaryProgram, 2, startLocation, binaryProgram.length - 2);
+    }
+
+    /**
+     * Copies a block of data into memory, without raising events.
+     *
+     * This isn't a step that can be undone, so time travel starts over from here.
+     */
+    void writeMemory(byte[] data, int dataOffset, int startLocation, int length) {
+        memory.write(startLocation, data, dataOffset, length);
+        memoryWritten(startLocation, length);
+        stateReplaced();
+    }
+
+    /**
+     * Time travel starts over, and observers hear about the change, after memory
+     * or registers were changed outside of a step.
+     */
+    private void stateReplaced() {
+        if (history != null) {
+            history.clear();
+        }
+        for (ExecutionObserver observer : observers) {
+            observer.stateReplaced(this);
+        }
+    }
+
+    /**
+     * Puts back a value that was overwritten, without raising events.
+     */
+    void undoWrite(int offset, byte oldValue) {
+        memory.write(offset, oldValue);
+        memoryWritten(offset);
+    }
+
+    /**
+     * Copies all of memory, without side effects in devices.
+     */
+    void peekMemory(byte[] target) {
+        for (int address = 0; address < MemoryBus.SIZE; address++) {
+            target[address] = memory.peek(address);
+        }
+    }
+
+    /**
+     * Sets all registers and counters at once, for rebuilding a Processor from a trace.
+     */
+    void setState(int programCounter, byte accumulator, byte xRegister, byte yRegister, int stackPointer,
+                  byte status, long operationCount, long cycleCount) {
+        this.programCounter = programCounter & 0xFFFF;
+        this.accumulator = accumulator;
+        this.xRegister = xRegister;
+        this.yRegister = yRegister;
+        this.stackPointer = stackPointer;
+        this.statusRegister.setFrom(status);
+        this.operationCount = operationCount;
+        this.cycleCount = cycleCount;
+    }
+
+    /**
+     * Marks the page of a memory location that was just written as dirty,
+     * and throws away anything decoded or compiled from it.
+     */
+    private void memoryWritten(int offset) {
+        dirtyPages[offset >>> 14] |= 1L << (offset >>> 8);
+        decodeCache.invalidate(offset);
+        codeModified |= blockEngine.invalidate(offset);
+    }
+
+    private void memoryWritten(int startLocation, int length) {
+        for (int page = startLocation >>> 8; page <= (startLocation + length - 1) >>> 8 && page < 256; page++) {
+            dirtyPages[page >>> 6] |= 1L << page;
+        }
+        decodeCache.invalidate(startLocation, length);
+        codeModified |= blockEngine.invalidate(startLocation, length);
+    }
+
+    /**
+     * A copy of the complete state of a Processor.
+     *
+     * Snapshots are immutable, so a single snapshot can be restored as often
+     * as needed, into any Processor. Memory is shared page by page with the
+     * Processor the snapshot was taken from, and with any Processor it is
+     * restored into, until one of them writes to a page.
+     */
+    public static final class Snapshot {
+        private final byte accumulator;
+        private final byte xRegister;
+        private final byte yRegister;
+        private final byte status;
+        private final int stackPointer;
+        private final int programCounter;
+        private final MemoryBus.PageTable memoryPages;
+        private final Program currentProgram;
+        private final LabelIndex labelIndex;
+        private final Map<Operand.TwoByteAddress, JavaRoutine> kernalRoutines;
+        private final long operationCount;
+        private final long cycleCount;
+
+        private Snapshot(Processor processor) {
+            this.accumulator = processor.accumulator;
+            this.xRegister = processor.xRegister;
+            this.yRegister = processor.yRegister;
+            this.status = processor.statusRegister.toByte();
+            this.stackPointer = processor.stackPointer;
+            this.programCounter = processor.programCounter;
+            this.memoryPages = processor.memory.sharePages();
+            this.currentProgram = processor.currentProgram;
+            this.labelIndex = processor.labelIndex;
+            this.kernalRoutines = Map.copyOf(processor.kernalRoutines);
+            this.operationCount = processor.operationCount;
+            this.cycleCount = processor.cycleCount;
+        }
+    }
+
+    /**
+     * Takes a snapshot of registers, flags, memory, registered JavaRoutines and counters.
+     *
+     * Event listeners are not part of the snapshot.
+     *
+     * @return a Snapshot that can be passed to restore()
+     */
+    public Snapshot snapshot() {
+        var snapshot = new Snapshot(this);
+        markClean(snapshot);
+        return snapshot;
+    }
+
+    /**
+     * Takes a snapshot for the Processor's own use, that leaves the pages written since
+     * the last snapshot() alone, so restoring that one is still quick.
+     */
+    Snapshot keyframe() {
+        return new Snapshot(this);
+    }
+
+    /**
+     * Puts the Processor back in the state of a snapshot.
+     *
+     * When the snapshot is the last one taken or restored on this Processor,
+     * only memory pages written since then are put back. Otherwise all of
+     * memory is. Pages are shared with the snapshot rather than copied.
+     *
+     * When time travel is enabled, it starts over from the restored state.
+     *
+     * @param snapshot the snapshot to restore
+     */
+    public void restore(Snapshot snapshot) {
+        restoreSnapshot(snapshot);
+        stateReplaced();
+    }
+
+    void restoreSnapshot(Snapshot snapshot) {
+        if (snapshot != cleanSnapshot) {
+            Arrays.fill(dirtyPages, -1L);
+        }
+
+        for (int i = 0; i < dirtyPages.length; i++) {
+            long dirty = dirtyPages[i];
+            while (dirty != 0) {
+                int page = i * 64 + Long.numberOfTrailingZeros(dirty);
+                dirty &= dirty - 1;
+
+                memory.restorePage(page, snapshot.memoryPages);
+                decodeCache.invalidate(page << 8, 256);
+                blockEngine.invalidate(page << 8, 256);
+            }
+        }
+
+        //Compiled blocks never contain a JavaRoutine, so routines that come back need the blocks around them gone
+        snapshot.kernalRoutines.keySet().stream()
+                .filter(address -> !kernalRoutines.containsKey(address))
+                .forEach(address -> blockEngine.invalidate(address.toInt()));
+        kernalRoutines = new HashMap<>(snapshot.kernalRoutines);
+        indexJavaRoutines();
+
+        accumulator = snapshot.accumulator;
+        xRegister = snapshot.xRegister;
+        yRegister = snapshot.yRegister;
+        statusRegister.setFrom(snapshot.status);
+        stackPointer = snapshot.stackPointer;
+        programCounter = snapshot.programCounter;
+        currentProgram = snapshot.currentProgram;
+        labelIndex = snapshot.labelIndex;
+        operationCount = snapshot.operationCount;
+        cycleCount = snapshot.cycleCount;
+
+        markClean(snapshot);
+    }
+
+    /**
+     * Creates a new Processor in the same state as this one.
+     *
+     * The new Processor shares all memory pages with this one until either
+     * of them writes to a page, so forking a Processor that was set up as a
+     * template is cheap in both time and memory. Event listeners are not
+     * copied.
+     *
+     * @return a new Processor
+     */
+    public Processor fork() {
+        var fork = new Processor(false);
+        fork.restore(new Snapshot(this));
+        return fork;
+    }
+
+    private void markClean(Snapshot snapshot) {
+        Arrays.fill(dirtyPages, 0L);
+        cleanSnapshot = snapshot;
+    }
+
+    /**
+     * Starts keeping history, so the Processor can step backwards.
+     *
+     * Remembers enough to undo the last 65536 steps directly, with a
+     * snapshot every 65536 steps to go back further.
+     */
+    public void enableTimeTravel() {
+        enableTimeTravel(DEFAULT_UNDO_STEPS, DEFAULT_SNAPSHOT_INTERVAL);
+    }
+
+    /**
+     * Starts keeping history, so the Processor can step backwards.
+     *
+     * Every step records the registers before it and the old value of each
+     * byte it writes, for the last undoSteps steps. Going back further than
+     * that restores the closest snapshot and executes forward from there,
+     * which only works when nothing outside the Processor changes the
+     * outcome. Up to 32 snapshots are kept.
+     *
+     * Compiled blocks are not used while time travel is enabled, since
+     * they don't stop between instructions. Loading a program, restoring a
+     * snapshot or storing an operation starts the history over.
+     *
+     * @param undoSteps the number of steps that can be undone directly
+     * @param snapshotInterval the number of steps between snapshots
+     */
+    public void enableTimeTravel(int undoSteps, int snapshotInterval) {
+        history = new History(undoSteps, snapshotInterval);
+    }
+
+    public void disableTimeTravel() {
+        history = null;
+    }
+
+    /**
+     * Goes back to the state before the last step.
+     *
+     * Event listeners and observers are not told about going back.
+     *
+     * @return false if there is nothing to go back to
+     */
+    public boolean stepBack() {
+        if (history == null) {
+            throw new IllegalStateException("Time travel is not enabled");
+        }
+        return history.stepBack(this);
+    }
+
+    /**
+     * Steps back until the program counter is at an address, so the
+     * instruction at that address is the next one to execute again.
+     *
+     * @return false if the history ran out before getting there
+     */
+    public boolean runBackTo(Operand.TwoByteAddress address) {
+        int location = address.toInt();
+        return runBackUntil(processor -> processor.programCounter == location);
+    }
+
+    /**
+     * Steps back at least once, and then until a condition holds.
+     *
+     * To find the instruction that overwrote a pointer, step back until
+     * the pointer had its old value:
+     * <pre>
+     * byte pointer = processor.peekValue(0xFB);
+     * processor.runBackUntil(p -> p.peekValue(0xFB) != pointer);
+     * </pre>
+     * The program counter then points to the culprit.
+     *
+     * @return false if the history ran out before the condition held
+     */
+    public boolean runBackUntil(Predicate<Processor> condition) {
+        while (stepBack()) {
+            if (condition.test(this)) {
+                return true;
+            }
+        }
+        return false;
     }
 
     /*
         Doing a "step"
          - Read program counter
-         - Read the right amount of bytes from memory at that offset
-         - Parse to an Operation
-         - Execute the Operation
+         - Look up the opcode and read the operand straight from memory
+         - Execute the instruction
          - Update the Program counter
      */
 
-    public void run(Operand.TwoByteAddress address, int maxOperationCount) {
+    /**
+     * Runs from an address until a BRK, or until the operation count goes past a maximum.
+     *
+     * @param address where to start
+     * @param maxOperationCount the operation count after which to stop.
+     *                          This is the total since the Processor was created, not just for this run.
+     */
+    public void run(Operand.TwoByteAddress address, long maxOperationCount) {
         setProgramCounter(address);
-        while (! statusRegister.isBreakCommandFlagSet() && operationCount <= maxOperationCount) {
-            step();
-        }
+        runUntilBreak(maxOperationCount, Long.MAX_VALUE);
     }
 
 
     public void run(Operand.TwoByteAddress address) {
-        run(address, Integer.MAX_VALUE);
+        run(address, Long.MAX_VALUE);
     }
 
     public void run() {
-        run(programCounter, Integer.MAX_VALUE);
+        runUntilBreak(Long.MAX_VALUE, Long.MAX_VALUE);
+    }
+
+    /**
+     * Runs from an address until a BRK, or until a number of cycles has been used.
+     *
+     * Instructions are never cut in half, so the last instruction can
+     * take the cycle count a few cycles past the budget, like a real CPU
+     * that finishes its current instruction before an interrupt.
+     *
+     * @param address where to start
+     * @param cycleBudget the number of cycles this run may use
+     */
+    public void runForCycles(Operand.TwoByteAddress address, long cycleBudget) {
+        setProgramCounter(address);
+        runForCycles(cycleBudget);
+    }
+
+    /**
+     * Runs from the current program counter until a BRK, or until a number of cycles has been used.
+     *
+     * @param cycleBudget the number of cycles this run may use
+     */
+    public void runForCycles(long cycleBudget) {
+        if (cycleBudget < 0) {
+            throw new IllegalArgumentException("Cycle budget can't be negative: " + cycleBudget);
+        }
+
+        long cycleLimit = cycleBudget > Long.MAX_VALUE - cycleCount ? Long.MAX_VALUE : cycleCount + cycleBudget;
+        runUntilBreak(Long.MAX_VALUE, cycleLimit);
+    }
+
+    private void runUntilBreak(long maxOperationCount, long cycleLimit) {
+        while (! statusRegister.isBreakCommandFlagSet() && operationCount <= maxOperationCount && cycleCount < cycleLimit) {
+            if (recompilationEnabled && !listeners.hasInstructionListeners() && observers.length == 0 && history == null
+                    && runCompiledBlock(maxOperationCount, cycleLimit)) {
+                continue;
+            }
+            step();
+        }
     }
 
+    /**
+     * Runs the compiled block at the program counter, if there is one,
+     * and the compiled blocks it goes on to.
+     *
+     * Blocks are only run when the whole block fits within the maximum
+     * operation count and cycle limit, so a run stops at exactly the same
+     * instruction as it would in the interpreter.
+     *
+     * @return true if a block was run, false if the next instruction should be interpreted.
+     */
+    private boolean runCompiledBlock(long maxOperationCount, long cycleLimit) {
+        if (hasJavaRoutineAt(programCounter)) {
+            return false;
+        }
+
+        BlockEngine.Block block = blockEngine.blockAt(programCounter);
+        if (block == null || !fits(block.code(), maxOperationCount, cycleLimit)) {
+            return false;
+        }
+
+        //Go straight on to the next block for as long as it is compiled already, and nothing ends the run
+        do {
+            codeModified = false;
+            block.code().execute(this);
+            if (codeModified || statusRegister.isBreakCommandFlagSet() || hasJavaRoutineAt(programCounter)) {
+                break;
+            }
+            block = blockEngine.successor(block, programCounter);
+        } while (block != null && fits(block.code(), maxOperationCount, cycleLimit));
+
+        return true;
+    }
+
+    private boolean fits(BlockEngine.CompiledBlock block, long maxOperationCount, long cycleLimit) {
+        return operationCount + block.length() - 1 <= maxOperationCount
+                && cycleCount + block.maxCycles() < cycleLimit;
+    }
 
     public void step() {
-        if (kernalRoutines.containsKey(this.programCounter)) {
+        if (history != null) {
+            history.beginStep(this);
+        }
+
+        if (hasJavaRoutineAt(programCounter)) {
             executeKernalRoutine();
         } else {
             executeOperationFromMemory();
         }
     }
 
+    /**
+     * Takes a step without telling event listeners and observers, because they have seen it before.
+     */
+    void replayStep() {
+        var realListeners = listeners;
+        var realObservers = observers;
+        listeners = NO_LISTENERS;
+        observers = NO_OBSERVERS;
+        try {
+            step();
+        } finally {
+            listeners = realListeners;
+            observers = realObservers;
+        }
+    }
+
     public void requestInterrupt() {
        if (!statusRegister.isInterruptDisableFlagSet()) {
            doInterruptHandling(true);
+           operationCount++;
+           cycleCount += INTERRUPT_CYCLES;
        }
     }
 
     public void nonMaskableInterrupt() {
         doInterruptHandling(false);
-    }
-
-    private void doRTI() {
-        statusRegister.setFrom(popStack());
-        byte newLowByte = popStack();
-        byte newHighByte = popStack();
-        setProgramCounter(new Operand.TwoByteAddress(newLowByte, newHighByte));
+        operationCount++;
+        cycleCount += INTERRUPT_CYCLES;
     }
 
     /**
@@ -562,63 +1397,148 @@ public class Processor {
      * @param maskable
      */
     private void doInterruptHandling(boolean maskable) {
-        fireEvent(new ProcessorEvent.InterruptRequest(programCounter));
-        pushStack(programCounter.highByte());
-        pushStack(programCounter.lowByte());
+        int programCounterBefore = programCounter;
+        if (listeners.interruptRequest.wants(programCounter)) {
+            listeners.interruptRequest.fire(new ProcessorEvent.InterruptRequest(address(programCounter)), programCounter);
+        }
+
+        pushStack(ByteUtils.highByte(programCounter));
+        pushStack(ByteUtils.lowByte(programCounter));
         pushStack(statusRegister.toByte());
         statusRegister.setInterruptDisableFlag(true);
 
+        int vector;
         if (!maskable) {
-            performOperation(operation(JMP, address(0x0318).indirect()));
+            vector = 0x0318;
         } else if (statusRegister.isBreakCommandFlagSet()) {
-            performOperation(operation(JMP, address(0x0316).indirect()));
+            vector = 0x0316;
         } else {
-            performOperation(operation(JMP, address(0x0314).indirect()));
+            vector = 0x0314;
+        }
+        statusRegister.setBreakCommandFlag(false);
+
+        //The cycles are paid by the caller: BRK through its OpCodeTable entry, interrupts by themselves
+        programCounter = toUnsignedInt(peekValue(vector)) | toUnsignedInt(peekValue(vector + 1)) << 8;
+        if (listeners.jumpedTo.wants(programCounter)) {
+            listeners.jumpedTo.fire(new ProcessorEvent.JumpedTo(address(programCounter),
+                    findLabelsForLocation(programCounter)), programCounter);
+        }
+
+        for (ExecutionObserver observer : observers) {
+            observer.interruptRequested(this, programCounterBefore);
         }
     }
 
     private void executeKernalRoutine() {
-        JavaRoutine javaRoutine = this.kernalRoutines.get(programCounter);
-        programCounter = programCounter.plus(javaRoutine.size());
-        fireEvent(new ProcessorEvent.JavaRoutineExecuted(programCounter, javaRoutine.getClass().getSimpleName()));
+        int programCounterBefore = programCounter;
+        JavaRoutine javaRoutine = javaRoutineAt(programCounter);
+        programCounter = (programCounter + javaRoutine.size()) & 0xFFFF;
+
+        if (listeners.javaRoutineExecuted.wants(programCounter)) {
+            listeners.javaRoutineExecuted.fire(new ProcessorEvent.JavaRoutineExecuted(address(programCounter),
+                    javaRoutine.getClass().getSimpleName()), programCounter);
+        }
+
         javaRoutine.execute(this);
         performOperation(javaRoutine.endWith());
+
+        for (ExecutionObserver observer : observers) {
+            observer.javaRoutineExecuted(this, programCounterBefore, javaRoutine);
+        }
     }
 
     private void executeOperationFromMemory() {
-        var programCounterBefore = programCounter;
+        int programCounterBefore = programCounter;
 
-        byte opCode = readByte();
-        OpCode.AdressingModeMapping mapping = OpCode.findByByteValue(opCode)
-                .getOrElseThrow(() ->
-                        new IllegalStateException("Unmappable instruction: $" + Integer.toHexString(toUnsignedInt(opCode)))
-                );
+        OpCodeTable.Entry entry;
+        int operand;
 
-        if (mapping.opCode().isIllegal()) {
-            throw new IllegalArgumentException("Got illegal OpCode: " + mapping.opCode());
+        int decoded = decodeCache.get(programCounterBefore);
+        if (decoded != 0) {
+            entry = DecodeCache.entry(decoded);
+            operand = DecodeCache.operand(decoded);
+        } else {
+            byte opCode = memory.read(programCounterBefore);
+            entry = OpCodeTable.lookup(opCode);
+
+            if (entry == null) {
+                throw new IllegalStateException("Unmappable instruction: $" + Integer.toHexString(toUnsignedInt(opCode)));
+            }
+
+            if (entry.opCode().isIllegal()) {
+                throw new IllegalArgumentException("Got illegal OpCode: " + entry.opCode());
+            }
+
+            operand = switch (entry.length()) {
+                case 1 -> 0;
+                case 2 -> toUnsignedInt(memory.read((programCounterBefore + 1) & 0xFFFF));
+                case 3 -> toUnsignedInt(memory.read((programCounterBefore + 1) & 0xFFFF))
+                        | (toUnsignedInt(memory.read((programCounterBefore + 2) & 0xFFFF)) << 8);
+                default -> throw new IllegalStateException("Illegal instruction size " + entry.length());
+            };
+
+            //Devices can return something different on every read, so never cache code from them
+            if (!isDeviceMapped(programCounterBefore) && !isDeviceMapped(programCounterBefore + entry.length() - 1)) {
+                decodeCache.put(programCounterBefore, opCode, operand);
+            }
         }
 
-        int bytesToRead = mapping.addressingMode().size();
-        byte[] data = switch (bytesToRead) {
+        programCounter = (programCounterBefore + entry.length()) & 0xFFFF;
+
+        int code = toUnsignedInt(entry.code());
+        if (listeners.operationPerformed.wants(programCounterBefore, code)) {
+            listeners.operationPerformed.fire(new ProcessorEvent.OperationPerformed(address(programCounterBefore),
+                    toOperation(entry, operand)), programCounterBefore, code);
+        }
+
+        execute(entry, operand);
+
+        for (ExecutionObserver observer : observers) {
+            observer.instructionExecuted(this, programCounterBefore, entry.code(), operand);
+        }
+
+        if (listeners.registerStateChanged.wants(programCounterBefore, code)) {
+            //The StatusRegister is mutable, so we put a copy in the event
+            listeners.registerStateChanged.fire(new ProcessorEvent.RegisterStateChangedEvent(address(programCounter), stackPointer, xRegister, yRegister, accumulator, statusRegister.copy()),
+                    programCounterBefore, code);
+        }
+    }
+
+    /**
+     * Turns a decoded instruction back into an Operation, for use in events.
+     */
+    private static Operation toOperation(OpCodeTable.Entry entry, int operand) {
+        AddressingMode addressingMode = entry.addressingMode();
+        byte[] data = switch (addressingMode.size()) {
             case 0 -> new byte[0];
-            case 1 -> new byte[]{readByte()};
-            case 2 -> new byte[]{readByte(), readByte()};
-            default -> throw new IllegalStateException("Illegal instruction size " + bytesToRead);
+            case 1 -> new byte[]{(byte) operand};
+            default -> new byte[]{ByteUtils.lowByte(operand), ByteUtils.highByte(operand)};
         };
 
-        Operation operation = operation(mapping.opCode(), mapping.addressingMode().toOperand(data));
-        fireEvent(new ProcessorEvent.OperationPerformed(programCounterBefore, operation));
+        return operation(entry.opCode(), addressingMode.toOperand(data));
+    }
 
-        performOperation(operation);
+    /**
+     * Statistics of the cache of decoded instructions.
+     *
+     * @return the number of cache hits, misses and invalidations so far
+     */
+    public DecodeCache.Statistics getDecodeCacheStatistics() {
+        return decodeCache.statistics();
+    }
 
-        //The StatusRegister is mutable, so we put a copy in the event
-        fireEvent(new ProcessorEvent.RegisterStateChangedEvent(programCounter, stackPointer, xRegister, yRegister, accumulator, statusRegister.copy()));
+    /**
+     * @return the number of instructions executed since the Processor was created
+     */
+    public long getOperationCount() {
+        return operationCount;
     }
 
-    private byte readByte() {
-        byte value = memory[this.programCounter.toInt()];
-        this.programCounter = this.programCounter.increment();
-        return value;
+    /**
+     * @return the number of cycles used since the Processor was created
+     */
+    public long getCycleCount() {
+        return cycleCount;
     }
 
     public byte getAccumulatorValue() {
@@ -633,6 +1553,18 @@ public class Processor {
         return yRegister;
     }
 
+    public int getStackPointer() {
+        return stackPointer;
+    }
+
+    public byte getStatusRegisterValue() {
+        return statusRegister.toByte();
+    }
+
+    public int getProgramCounter() {
+        return programCounter;
+    }
+
     public boolean isCarryFlagSet() {
         return statusRegister.isCarryFlagSet();
     }
@@ -654,6 +1586,6 @@ public class Processor {
     }
 
     public void setProgramCounter(Operand.TwoByteAddress address) {
-        this.programCounter = address;
+        this.programCounter = address.toInt();
     }
 }
@@ -24,4 +24,11 @@ public sealed interface ProcessorEvent {
     interface Listener<E extends ProcessorEvent> {
         void receiveEvent(E processorEvent);
     }
+
+    /**
+     * Receives events in batches, from an AsyncEventListener.
+     */
+    interface BatchListener<E extends ProcessorEvent> {
+        void receiveEvents(List<E> processorEvents);
+    }
 }
@@ -0,0 +1,304 @@
+package net.nightwhistler.tddasm.mos65xx;
+
+import io.vavr.collection.List;
+import io.vavr.control.Option;
+
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Counts how often each address is executed and how many cycles it takes.
+ *
+ * The counts are kept in two arrays with an entry for every address, so
+ * profiling only adds two array increments per instruction. Afterwards the
+ * counts can be added up per Label or per ProgramElement of a Program, to
+ * see where the time goes:
+ *
+ * <pre>
+ * try (var profiler = Profiler.attach(processor)) {
+ *     processor.run(program.startAddress());
+ *
+ *     var setPixel = profiler.label(program, "set_pixel").get();
+ *     assertTrue(setPixel.cyclesPerCall() &lt; 100);
+ * }
+ * </pre>
+ *
+ * The cycles of an instruction are the difference in cycle count with the
+ * instruction before it. Cycles used by an interrupt coming in between
+ * instructions end up with the first instruction of the handler. A
+ * JavaRoutine is counted at the address it is registered at.
+ *
+ * Besides that, every JSR is followed until the RTS that returns from it,
+ * to count the cycles of a call including the subroutines it calls.
+ */
+public final class Profiler implements ExecutionObserver, AutoCloseable {
+
+    /**
+     * Executions and cycles added up over a range of addresses.
+     *
+     * The cycles only include the instructions in the range itself, not
+     * those of subroutines called from it. The inclusive cycles are
+     * those of the calls to the first address of the range, from the
+     * instruction after the JSR up to and including the RTS.
+     *
+     * @param name the name of the Label, or the ProgramElement as it is written in the Program
+     * @param entries the number of times the first address of the range was executed
+     * @param calls the number of calls to the first address of the range that returned
+     */
+    public record HotSpot(String name, Operand.TwoByteAddress address, int length,
+                          long entries, long executions, long cycles,
+                          long calls, long inclusiveCycles) {
+
+        /**
+         * The cycles per entry in the range itself, without the subroutines it calls.
+         */
+        public double cyclesPerEntry() {
+            return entries == 0 ? 0 : (double) cycles / entries;
+        }
+
+        /**
+         * The cycles per call, including the subroutines it calls.
+         */
+        public double cyclesPerCall() {
+            return calls == 0 ? 0 : (double) inclusiveCycles / calls;
+        }
+    }
+
+    private static final Comparator<HotSpot> HOTTEST_FIRST = Comparator.comparingLong(HotSpot::cycles).reversed()
+            .thenComparing(hotSpot -> hotSpot.address().toInt());
+
+    private final Processor processor;
+    private final long[] executions = new long[MemoryBus.SIZE];
+    private final long[] cycles = new long[MemoryBus.SIZE];
+    private long lastCycleCount;
+
+    //Calls per address that was called, and the cycles they took
+    private final long[] calls = new long[MemoryBus.SIZE];
+    private final long[] inclusiveCycles = new long[MemoryBus.SIZE];
+
+    //The calls that haven't returned yet: the address called, the stack pointer before the call and the cycle count
+    private int depth = 0;
+    private int[] callAddresses = new int[64];
+    private int[] callStackPointers = new int[64];
+    private long[] callCycles = new long[64];
+
+    private Profiler(Processor processor) {
+        this.processor = processor;
+        this.lastCycleCount = processor.getCycleCount();
+    }
+
+    /**
+     * Starts profiling a Processor, which can already be running. Closing the Profiler stops it.
+     */
+    public static Profiler attach(Processor processor) {
+        var profiler = new Profiler(processor);
+        processor.addExecutionObserver(profiler);
+        return profiler;
+    }
+
+    @Override
+    public void instructionExecuted(Processor processor, int address, byte opCode, int operand) {
+        count(address);
+
+        switch (OpCodeTable.lookup(opCode).opCode()) {
+            //The return address is already on the stack
+            case JSR -> call(processor.getProgramCounter(), (processor.getStackPointer() + 2) & 0xFF);
+            case RTS, RTI -> returned();
+            default -> {}
+        }
+    }
+
+    @Override
+    public void javaRoutineExecuted(Processor processor, int address, JavaRoutine javaRoutine) {
+        count(address);
+        returned();
+    }
+
+    private void count(int address) {
+        long cycleCount = processor.getCycleCount();
+        executions[address]++;
+        cycles[address] += cycleCount - lastCycleCount;
+        lastCycleCount = cycleCount;
+    }
+
+    private void call(int address, int stackPointer) {
+        if (depth == callAddresses.length) {
+            callAddresses = Arrays.copyOf(callAddresses, depth * 2);
+            callStackPointers = Arrays.copyOf(callStackPointers, depth * 2);
+            callCycles = Arrays.copyOf(callCycles, depth * 2);
+        }
+        callAddresses[depth] = address;
+        callStackPointers[depth] = stackPointer;
+        callCycles[depth] = lastCycleCount;
+        depth++;
+    }
+
+    /**
+     * Ends every call whose return address is no longer on the stack, also
+     * when it was dropped with PLA or TXS. A recursive call is counted as
+     * part of the outermost call to the same address.
+     */
+    private void returned() {
+        int stackPointer = processor.getStackPointer();
+        while (depth > 0 && callStackPointers[depth - 1] <= stackPointer) {
+            depth--;
+            int address = callAddresses[depth];
+            if (!isCalling(address)) {
+                calls[address]++;
+                inclusiveCycles[address] += lastCycleCount - callCycles[depth];
+            }
+        }
+    }
+
+    private boolean isCalling(int address) {
+        for (int i = 0; i < depth; i++) {
+            if (callAddresses[i] == address) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public long executionsAt(int address) {
+        return executions[address & 0xFFFF];
+    }
+
+    public long cyclesAt(int address) {
+        return cycles[address & 0xFFFF];
+    }
+
+    public long callsTo(int address) {
+        return calls[address & 0xFFFF];
+    }
+
+    /**
+     * The cycles of the calls to an address, including the subroutines they called.
+     */
+    public long inclusiveCyclesOf(int address) {
+        return inclusiveCycles[address & 0xFFFF];
+    }
+
+    public long totalExecutions() {
+        long total = 0;
+        for (long count : executions) {
+            total += count;
+        }
+        return total;
+    }
+
+    public long totalCycles() {
+        long total = 0;
+        for (long count : cycles) {
+            total += count;
+        }
+        return total;
+    }
+
+    /**
+     * Adds up the counts per Label.
+     *
+     * A Label covers everything from its address up to the next Label, or
+     * the end of the Program. Code before the first Label is named after
+     * its address.
+     *
+     * @return the labels that were executed, the most cycles first
+     */
+    public List<HotSpot> byLabel(Program program) {
+        return LabelRange.of(program)
+                .map(range -> hotSpot(range.name(), range.address(), range.length()))
+                .filter(hotSpot -> hotSpot.executions() > 0)
+                .sorted(HOTTEST_FIRST);
+    }
+
+    /**
+     * Adds up the counts per ProgramElement.
+     *
+     * @return the elements that were executed, the most cycles first
+     */
+    public List<HotSpot> byElement(Program program) {
+        return program.offsets()
+                .filter(offset -> offset._2.length() > 0)
+                .map(offset -> hotSpot(describe(offset._2), offset._1, offset._2.length()))
+                .filter(hotSpot -> hotSpot.executions() > 0)
+                .sorted(HOTTEST_FIRST);
+    }
+
+    /**
+     * Looks up the counts for a single Label, also when it was never executed.
+     */
+    public Option<HotSpot> label(Program program, String label) {
+        return LabelRange.of(program)
+                .find(range -> range.name().equals(label))
+                .map(range -> hotSpot(range.name(), range.address(), range.length()));
+    }
+
+    /**
+     * Prints the hottest labels and elements, with their share of all cycles.
+     *
+     * @param limit the maximum number of lines in each section
+     */
+    public void printReport(PrintWriter printWriter, Program program, int limit) {
+        long total = Math.max(1, totalCycles());
+
+        printWriter.printf("%d instructions, %d cycles%n", totalExecutions(), totalCycles());
+        printWriter.println();
+        printWriter.println("Labels:");
+        for (var hotSpot : byLabel(program).take(limit)) {
+            printWriter.printf("  %6.2f%% %12d cycles %10d entries %10.1f per entry %10.1f per call  %s %s%n",
+                    100.0 * hotSpot.cycles() / total, hotSpot.cycles(), hotSpot.entries(),
+                    hotSpot.cyclesPerEntry(), hotSpot.cyclesPerCall(), hotSpot.address(), hotSpot.name());
+        }
+
+        printWriter.println();
+        printWriter.println("Instructions:");
+        for (var hotSpot : byElement(program).take(limit)) {
+            printWriter.printf("  %6.2f%% %12d cycles %10d executions  %s  %s%n",
+                    100.0 * hotSpot.cycles() / total, hotSpot.cycles(), hotSpot.executions(),
+                    hotSpot.address(), hotSpot.name());
+        }
+        printWriter.flush();
+    }
+
+    public void reset() {
+        Arrays.fill(executions, 0);
+        Arrays.fill(cycles, 0);
+        Arrays.fill(calls, 0);
+        Arrays.fill(inclusiveCycles, 0);
+        depth = 0;
+        lastCycleCount = processor.getCycleCount();
+    }
+
+    /**
+     * Stops profiling. The counts stay available.
+     */
+    @Override
+    public void close() {
+        processor.removeExecutionObserver(this);
+    }
+
+    private HotSpot hotSpot(String name, Operand.TwoByteAddress address, int length) {
+        int start = address.toInt();
+        long executed = 0;
+        long used = 0;
+        for (int location = start; location < start + length && location < MemoryBus.SIZE; location++) {
+            executed += executions[location];
+            used += cycles[location];
+        }
+        if (length == 0) {
+            return new HotSpot(name, address, length, 0, executed, used, 0, 0);
+        }
+        return new HotSpot(name, address, length, executions[start], executed, used,
+                calls[start], inclusiveCycles[start]);
+    }
+
+    /**
+     * Prints an operation with its label rather than the address the label resolves to.
+     */
+    private static String describe(ProgramElement element) {
+        if (element instanceof OperationProvider operationProvider) {
+            return (operationProvider.opCode() + " " + operationProvider.operand()).trim();
+        }
+        return element.toString();
+    }
+}
@@ -6,6 +6,13 @@ import io.vavr.control.Option;
 import net.nightwhistler.ByteUtils;
 
 import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
 
 import static io.vavr.control.Option.none;
 import static io.vavr.control.Option.some;
@@ -14,12 +21,41 @@ import static net.nightwhistler.tddasm.mos65xx.OpCode.JMP;
 import static net.nightwhistler.tddasm.mos65xx.OpCode.JSR;
 import static net.nightwhistler.tddasm.mos65xx.Operand.address;
 
-public record Program(Operand.TwoByteAddress startAddress, List<ProgramElement> elements) {
+/**
+ * A list of ProgramElements, and the address the first one goes to.
+ *
+ * Programs are immutable. Where every element ends up, the labels and
+ * the compiled bytes are worked out the first time they are needed, and
+ * kept from then on. That is also why this isn't a record: it behaves
+ * like one, but a record can't hold on to anything it didn't get in its
+ * constructor.
+ */
+public final class Program {
+
+    private final Operand.TwoByteAddress startAddress;
+    private final List<ProgramElement> elements;
+
+    //Worked out when first needed, these are the same for every thread that does it
+    private volatile Layout layout;
+    private volatile byte[] compiled;
+
+    public Program(Operand.TwoByteAddress startAddress, List<ProgramElement> elements) {
+        this.startAddress = startAddress;
+        this.elements = elements;
+    }
 
     public Program(List<ProgramElement> elements) {
         this(address(0xC000), elements);
     }
 
+    public Operand.TwoByteAddress startAddress() {
+        return startAddress;
+    }
+
+    public List<ProgramElement> elements() {
+        return elements;
+    }
+
     public Program withBASICStarter() {
         var basicElement = new Data(bytes(
                 0x0C,0x08,0x40,0x00,0x9E,0x20,0x32,0x30,0x36,0x32,0x00,0x00,0x00)
@@ -30,8 +66,8 @@ public record Program(Operand.TwoByteAddress startAddress, List<ProgramElement>
     }
 
     public Option<Operand.TwoByteAddress> resolveLabelAbsolute(String label) {
-        int index = elements.indexOf(new Label(label));
-        if ( index == -1 ) {
+        Integer index = layout().labels.get(label);
+        if ( index == null ) {
             return none();
         } else {
             return some(addressOfElement(index));
@@ -74,26 +110,22 @@ public record Program(Operand.TwoByteAddress startAddress, List<ProgramElement>
 
     }
 
-    private List<Tuple2<Operand.TwoByteAddress, ProgramElement>> offsets() {
-        if (elements.isEmpty()) {
-            return List.empty();
-        }
-
-        var headElement = elements.head();
-        return elements.tail().foldLeft(List.of(new Tuple2<>(startAddress, headElement)),
-                (folded, e) -> {
-                    var lastElement = folded.last();
-                    var offset = lastElement._1.plus(lastElement._2.length());
-                    return folded.append(new Tuple2<>(offset, e));
-                });
+    List<Tuple2<Operand.TwoByteAddress, ProgramElement>> offsets() {
+        return layout().offsets();
     }
 
     public Operand.TwoByteAddress addressOfElement(int elementIndex) {
-        return offsets().get(elementIndex)._1;
+        return address(layout().addresses[elementIndex]);
     }
 
     public Option<Operand.TwoByteAddress> addressOfElement(ProgramElement programElement) {
-        return offsets().find(o -> o._2.equals(programElement)).map(Tuple2::_1);
+        var layout = layout();
+        for (int i = 0; i < layout.elements.length; i++) {
+            if (layout.elements[i].equals(programElement)) {
+                return some(address(layout.addresses[i]));
+            }
+        }
+        return none();
     }
 
     /**
@@ -102,13 +134,15 @@ public record Program(Operand.TwoByteAddress startAddress, List<ProgramElement>
      * @return
      */
     public List<ProgramElement> elementsForLocation(Operand.TwoByteAddress location) {
-        return elementsForLocation(location, offsets());
-    }
-
-    private List<ProgramElement> elementsForLocation(Operand.TwoByteAddress location,
-                                                     List<Tuple2<Operand.TwoByteAddress, ProgramElement>> offsets ) {
-        return offsets.filter(t -> t._1.equals(location))
-                .map(Tuple2::_2);
+        var layout = layout();
+        int address = location.toInt();
+        List<ProgramElement> result = List.empty();
+        for (int i = layout.elements.length - 1; i >= 0; i--) {
+            if (layout.addresses[i] == address) {
+                result = result.prepend(layout.elements[i]);
+            }
+        }
+        return result;
     }
 
     public void printASM(PrintWriter printWriter, boolean includeAddresses) {
@@ -136,76 +170,81 @@ public record Program(Operand.TwoByteAddress startAddress, List<ProgramElement>
 
     }
 
-    private static boolean shouldAddLabel(Program input, Operand.TwoByteAddress address, List<Tuple2<Operand.TwoByteAddress, ProgramElement>> offsets) {
-        var elementsForLocation = input.elementsForLocation(address, offsets);
-
-        if (elementsForLocation.isEmpty()) {
-            return false; //Jump outside the program
-        }
-
-        return elementsForLocation.filter(e -> e instanceof Label).isEmpty();
-    }
-
-    private static final List<OpCode> relativeJumps =
+    private static final Set<OpCode> relativeJumps = EnumSet.copyOf(
             List.of(OpCode.values())
                     .filter(o -> ! o.isIllegal())
                     .flatMap(o -> o.addressingModeMappings())
                     .filter(m -> m.addressingMode() == AddressingMode.Relative)
-                    .map(m -> m.opCode());
+                    .map(m -> m.opCode())
+                    .toJavaList());
 
     private static Program generateLabels(Program input) {
-        Program withLabels = input;
+        var layout = input.layout();
+        return generateLabels(input.startAddress, layout.elements, layout.addresses, layout.elements.length);
+    }
+
+    /**
+     * Adds a Label in front of every address in the program that is the target of a JSR, JMP or branch,
+     * unless there is a Label there already. Targets get their names in the order they are first jumped to.
+     *
+     * This is done in two passes: the first one names the targets, the second one copies the elements
+     * with the new Labels in between.
+     */
+    private static Program generateLabels(Operand.TwoByteAddress startAddress, ProgramElement[] elements,
+                                          int[] addresses, int count) {
+        var occupied = new BitSet(MemoryBus.SIZE);
+        var labelled = new BitSet(MemoryBus.SIZE);
+        for (int i = 0; i < count; i++) {
+            occupied.set(addresses[i]);
+            if (elements[i] instanceof Label) {
+                labelled.set(addresses[i]);
+            }
+        }
+
         int labelCounter = 0;
         int subRoutineCounter = 0;
+        Map<Integer, String> newLabels = new HashMap<>();
 
-        var offsets = input.offsets();
-
-        for (var offset: offsets) {
-            String lastLabel = null;
+        for (int i = 0; i < count; i++) {
+            if (elements[i] instanceof OperationProvider op) {
+                int target;
+                boolean subRoutine = false;
 
-            if (offset._2 instanceof OperationProvider op) {
                 if (op.opCode() == JSR && op.operand() instanceof Operand.TwoByteAddress address) {
-                    if (shouldAddLabel(withLabels, address, offsets)) {
-                        lastLabel = "subroutine_" + subRoutineCounter++;
-                        withLabels = withLabels.addLabel(
-                                address,
-                                lastLabel,
-                                offsets
-                                );
-                        offsets = withLabels.offsets();
-                    }
+                    target = absoluteTarget(address);
+                    subRoutine = true;
                 } else if (relativeJumps.contains(op.opCode()) && op.operand() instanceof Operand.OneByteAddress address) {
-                    Operand.TwoByteAddress dest = offset._1.plus(address.lowByte());
-                    if (shouldAddLabel(withLabels, dest, offsets)) {
-                        lastLabel = "jump_dest_" + labelCounter++;
-                        withLabels = withLabels.addLabel(
-                                dest,
-                                lastLabel,
-                                offsets
-                        );
-                        offsets = withLabels.offsets();
-                    }
+                    target = (addresses[i] + address.lowByte()) & 0xFFFF;
                 } else if (op.opCode() == JMP && op.operand() instanceof Operand.TwoByteAddress address) {
-                    if (shouldAddLabel(withLabels, address, offsets)) {
-                        lastLabel = "jump_dest_" + labelCounter++;
-                        withLabels = withLabels.addLabel(
-                                address,
-                                lastLabel,
-                                offsets
-                        );
-                        offsets = withLabels.offsets();
-                    }
+                    target = absoluteTarget(address);
+                } else {
+                    continue;
+                }
+
+                //Jumps outside the program, or to somewhere that has a Label already, don't get one
+                if (target != -1 && occupied.get(target) && !labelled.get(target)) {
+                    labelled.set(target);
+                    newLabels.put(target, subRoutine ? "subroutine_" + subRoutineCounter++ : "jump_dest_" + labelCounter++);
                 }
+            }
+        }
 
-//                if (lastLabel != null) {
-//                    withLabels = new Program(withLabels.startAddress,
-//                            withLabels.elements().replace(op, new OperationProvider(op.opCode(), new Operand.LabelOperand(lastLabel, op.operand().addressingMode()))
-//                            ));
-//                }
+        var withLabels = new ArrayList<ProgramElement>(count + newLabels.size());
+        for (int i = 0; i < count; i++) {
+            //The Label goes in front of the first element at its address
+            String label = newLabels.remove(addresses[i]);
+            if (label != null) {
+                withLabels.add(new Label(label));
             }
+            withLabels.add(elements[i]);
         }
 
-        return withLabels;
+        return new Program(startAddress, List.ofAll(withLabels));
+    }
+
+    //Indirect jumps go to whatever is stored at the address, so they don't get a Label
+    private static int absoluteTarget(Operand.TwoByteAddress address) {
+        return address.addressingMode() == AddressingMode.AbsoluteAddress ? address.toInt() : -1;
     }
 
     public Program generateLabels() {
@@ -235,17 +274,24 @@ public record Program(Operand.TwoByteAddress startAddress, List<ProgramElement>
      * @return
      */
     public byte[] compile() {
-        int length = elements.foldLeft(0, (count, e) -> count + e.length());
-        byte[] result = new byte[length];
+        byte[] result = compiled;
+        if (result == null) {
+            result = compiled = compileElements();
+        }
+        return result.clone();
+    }
 
-        var offsets = offsets();
+    private byte[] compileElements() {
+        var layout = layout();
+        byte[] result = new byte[layout.length];
 
-        for ( int i=0; i < elements.length(); i++ ) {
+        int offsetInternal = 0;
+        for ( int i=0; i < layout.elements.length; i++ ) {
 
-            Operand.TwoByteAddress absoluteOffset = offsets.get(i)._1;
+            Operand.TwoByteAddress absoluteOffset = address(layout.addresses[i]);
             byte[] elementData;
 
-            ProgramElement element = elements.get(i);
+            ProgramElement element = layout.elements[i];
             if ( element instanceof OperationProvider operationProvider) {
                 //All relative values are calculated with the offset _after_ the instruction
                 Operation op = operationProvider.provide(this, absoluteOffset.plus(operationProvider.length()));
@@ -256,8 +302,8 @@ public record Program(Operand.TwoByteAddress startAddress, List<ProgramElement>
                 elementData = new byte[0];
             }
 
-            int offsetInternal = absoluteOffset.toInt() - startAddress.toInt();
             System.arraycopy(elementData, 0, result, offsetInternal, elementData.length);
+            offsetInternal += element.length();
         }
 
         return result;
@@ -265,40 +311,115 @@ public record Program(Operand.TwoByteAddress startAddress, List<ProgramElement>
 
     public static Program fromBinary(byte[] binary) {
         int startAddress = ByteUtils.littleEndianBytesToInt(binary[0], binary[1]);
-        List<ProgramElement> operations = List.empty();
+
+        //No element is shorter than a byte, so this is enough room for all of them
+        ProgramElement[] elements = new ProgramElement[binary.length - 2];
+        int[] addresses = new int[elements.length];
+        int count = 0;
 
         int counter = 2;
+        int dataStart = -1;
 
         while (counter < binary.length) {
+            int address = (startAddress + counter - 2) & 0xFFFF;
             byte opCodeByte = binary[counter++];
-            var maybeMapping = OpCode.findByByteValue(opCodeByte);
+            var entry = OpCodeTable.lookup(opCodeByte);
 
-            if (maybeMapping.isDefined()) {
-                var mapping = maybeMapping.get();
+            if (entry != null) {
+                if (dataStart != -1) {
+                    elements[count - 1] = new Data(Arrays.copyOfRange(binary, dataStart, counter - 1));
+                    dataStart = -1;
+                }
 
-                int length = mapping.addressingMode().size();
+                int length = entry.length() - 1;
                 byte[] bytes = new byte[length];
                 System.arraycopy(binary, counter, bytes, 0, bytes.length);
                 counter += length;
 
-                operations = operations.append(new OperationProvider(mapping.opCode(), mapping.addressingMode().toOperand(bytes)));
-            } else {
-                if (!operations.isEmpty() && operations.last() instanceof Data lastData) {
-                    byte[] newData = new byte[lastData.bytes().length +1];
-                    System.arraycopy(lastData.bytes(), 0, newData, 0, lastData.length());
-                    newData[lastData.length()] = opCodeByte;
-                    operations = operations.slice(0, operations.length() -1).append(new Data(newData));
-                } else {
-                    operations = operations.append(new Data(new byte[]{opCodeByte}));
-                }
+                elements[count] = new OperationProvider(entry.opCode(), entry.addressingMode().toOperand(bytes));
+                addresses[count++] = address;
+            } else if (dataStart == -1) {
+                //Bytes that aren't instructions are gathered into one Data element
+                dataStart = counter - 1;
+                addresses[count++] = address;
             }
         }
 
-        return generateLabels(
-                new ProgramBuilder()
-                .include(operations)
-                .buildProgram(address(startAddress)
-                ));
+        if (dataStart != -1) {
+            elements[count - 1] = new Data(Arrays.copyOfRange(binary, dataStart, counter));
+        }
+
+        return generateLabels(address(startAddress), elements, addresses, count);
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        return other instanceof Program program
+                && startAddress.equals(program.startAddress)
+                && elements.equals(program.elements);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * startAddress.hashCode() + elements.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return "Program[startAddress=" + startAddress + ", elements=" + elements + "]";
+    }
+
+    private Layout layout() {
+        Layout result = layout;
+        if (result == null) {
+            result = layout = new Layout(startAddress, elements);
+        }
+        return result;
     }
 
+    /**
+     * The elements in an array, the address of each of them, and the index of the first Label with each name.
+     */
+    private static final class Layout {
+        private final ProgramElement[] elements;
+        private final int[] addresses;
+        private final Map<String, Integer> labels = new HashMap<>();
+        private final int length;
+
+        //The elements with their addresses, built the first time they're asked for
+        private volatile List<Tuple2<Operand.TwoByteAddress, ProgramElement>> offsets;
+
+        private Layout(Operand.TwoByteAddress startAddress, List<ProgramElement> programElements) {
+            elements = new ProgramElement[programElements.size()];
+            addresses = new int[elements.length];
+
+            int address = startAddress.toInt();
+            int index = 0;
+            int totalLength = 0;
+            for (ProgramElement element : programElements) {
+                elements[index] = element;
+                addresses[index] = address;
+                if (element instanceof Label label) {
+                    labels.putIfAbsent(label.name(), index);
+                }
+
+                address = (address + element.length()) & 0xFFFF;
+                totalLength += element.length();
+                index++;
+            }
+            length = totalLength;
+        }
+
+        private List<Tuple2<Operand.TwoByteAddress, ProgramElement>> offsets() {
+            var result = offsets;
+            if (result == null) {
+                result = List.empty();
+                for (int i = elements.length - 1; i >= 0; i--) {
+                    result = result.prepend(new Tuple2<>(address(addresses[i]), elements[i]));
+                }
+                offsets = result;
+            }
+            return result;
+        }
+    }
 }
@@ -1,6 +1,7 @@
 package net.nightwhistler.tddasm.mos65xx;
 
 import io.vavr.collection.List;
+import io.vavr.collection.Vector;
 import net.nightwhistler.tddasm.c64.screen.ScreenCode;
 
 import java.nio.charset.Charset;
@@ -15,9 +16,10 @@ import static net.nightwhistler.tddasm.mos65xx.Operand.implied;
 import static net.nightwhistler.tddasm.mos65xx.Operand.noValue;
 
 public class ProgramBuilder {
-    private List<ProgramElement> programElements = List.empty();
+    //A Vector, so adding an element doesn't copy all the ones before it
+    private Vector<ProgramElement> programElements = Vector.empty();
 
-    private ProgramBuilder(List<ProgramElement> elements) {
+    private ProgramBuilder(Vector<ProgramElement> elements) {
         this.programElements = elements;
     }
 
@@ -267,7 +269,7 @@ public class ProgramBuilder {
         return withOperation(OpCode.JSR, operand);
     }
 
-    public ProgramBuilder eor(Operand.TwoByteAddress operand) {
+    public ProgramBuilder eor(Operand operand) {
         return withOperation(OpCode.EOR, operand);
     }
 
@@ -287,6 +289,14 @@ public class ProgramBuilder {
         return withOperation(OpCode.BNE, new Operand.LabelOperand(label, Relative));
     }
 
+    public ProgramBuilder bcc(String label) {
+        return withOperation(OpCode.BCC, new Operand.LabelOperand(label, Relative));
+    }
+
+    public ProgramBuilder bcs(String label) {
+        return withOperation(OpCode.BCS, new Operand.LabelOperand(label, Relative));
+    }
+
     public ProgramBuilder inc(Operand operand) {
         return withOperation(OpCode.INC, operand);
     }
@@ -330,7 +340,7 @@ public class ProgramBuilder {
     }
 
     public List<ProgramElement> buildElements() {
-        return programElements;
+        return programElements.toList();
     }
 
     public Program buildProgram() {
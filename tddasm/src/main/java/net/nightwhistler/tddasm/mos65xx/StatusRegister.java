@@ -2,48 +2,50 @@ package net.nightwhistler.tddasm.mos65xx;
 
 import static net.nightwhistler.ByteUtils.toInt;
 
+/**
+ * The processor status flags.
+ *
+ * Nearly every instruction updates the negative and zero flags, but most
+ * of those updates are overwritten before anything reads them. So instead
+ * of working the flags out every time, we keep the value they are based on
+ * and only look at it when a flag is actually read. The same goes for the
+ * overflow flag, which only depends on whether the sign changed.
+ */
 public class StatusRegister {
 
     StatusRegister() {}
 
     private StatusRegister(StatusRegister other) {
         this.carryFlag = other.carryFlag;
-        this.zeroFlag = other.zeroFlag;
+        this.negativeZeroResult = other.negativeZeroResult;
         this.interruptDisableFlag = other.interruptDisableFlag;
         this.decimalModeFlag = other.decimalModeFlag;
         this.breakCommandFlag = other.breakCommandFlag;
-        this.overFlowFlag = other.overFlowFlag;
-        this.negativeFlag = other.negativeFlag;
+        this.overflowResult = other.overflowResult;
     }
 
     private boolean carryFlag;
-    private boolean zeroFlag;
     private boolean interruptDisableFlag;
     private boolean decimalModeFlag;
 
     private boolean breakCommandFlag;
-    private boolean overFlowFlag;
-    private boolean negativeFlag;
 
-    public byte toByte() {
-        int[] asArray = new int[] {
-                toInt(carryFlag),  //0
-                toInt(zeroFlag),   //1
-                toInt(interruptDisableFlag),  //2
-                toInt(decimalModeFlag), //3
-                toInt(breakCommandFlag), //4
-                1,  //Unused, so always 1  - 5
-                toInt(overFlowFlag),  //6
-                toInt(negativeFlag)   //7
-        };
-
-        byte value = 0;
+    //Zero is set when the low byte is 0, negative when bit 7 or bit 8 is set.
+    //Bit 8 is only used when both flags are set explicitly, which no single byte can express.
+    private int negativeZeroResult = 1;
 
-        for (int i=0; i < 8; i++) {
-           value = (byte) (value | (asArray[i] << i));
-        }
+    //Overflow is set when bit 7 is set
+    private int overflowResult;
 
-        return value;
+    public byte toByte() {
+        return (byte) (toInt(carryFlag)
+                | toInt(isZeroFlagSet()) << 1
+                | toInt(interruptDisableFlag) << 2
+                | toInt(decimalModeFlag) << 3
+                | toInt(breakCommandFlag) << 4
+                | 1 << 5 //Unused, so always 1
+                | toInt(isOverFlowFlagSet()) << 6
+                | toInt(isNegativeFlagSet()) << 7);
     }
 
     public StatusRegister copy() {
@@ -52,12 +54,25 @@ public class StatusRegister {
 
     public void setFrom(byte value) {
         carryFlag = (value & 0b1) > 0;
-        zeroFlag = (value & 0b10) > 0;
         interruptDisableFlag = (value & 0b100) > 0;
         decimalModeFlag = (value & 0b1000) > 0;
         breakCommandFlag = (value & 0b10000) > 0;
-        overFlowFlag = (value & 0b1000000) > 0;
-        negativeFlag = (value & 0b10000000) > 0;
+        overflowResult = (value & 0b1000000) << 1;
+        setNegativeAndZero((value & 0b10000000) > 0, (value & 0b10) > 0);
+    }
+
+    /**
+     * Sets the negative and zero flags for the result of an operation.
+     */
+    void setResultFlags(byte result) {
+        this.negativeZeroResult = result & 0xFF;
+    }
+
+    /**
+     * Sets the overflow flag if the sign of the accumulator changed.
+     */
+    void setOverflowFlags(byte oldValue, byte newValue) {
+        this.overflowResult = oldValue ^ newValue;
     }
 
     public void setCarryFlag(boolean carryFlag) {
@@ -65,7 +80,7 @@ public class StatusRegister {
     }
 
     public void setZeroFlag(boolean zeroFlag) {
-        this.zeroFlag = zeroFlag;
+        setNegativeAndZero(isNegativeFlagSet(), zeroFlag);
     }
 
     public void setInterruptDisableFlag(boolean interruptDisableFlag) {
@@ -81,11 +96,15 @@ public class StatusRegister {
     }
 
     public void setOverFlowFlag(boolean overFlowFlag) {
-        this.overFlowFlag = overFlowFlag;
+        this.overflowResult = overFlowFlag ? 0x80 : 0;
     }
 
     public void setNegativeFlag(boolean negativeFlag) {
-        this.negativeFlag = negativeFlag;
+        setNegativeAndZero(negativeFlag, isZeroFlagSet());
+    }
+
+    private void setNegativeAndZero(boolean negativeFlag, boolean zeroFlag) {
+        this.negativeZeroResult = (negativeFlag ? 0x100 : 0) | (zeroFlag ? 0 : 1);
     }
 
     public boolean isCarryFlagSet() {
@@ -93,7 +112,7 @@ public class StatusRegister {
     }
 
     public boolean isZeroFlagSet() {
-        return zeroFlag;
+        return (negativeZeroResult & 0xFF) == 0;
     }
 
     public boolean isInterruptDisableFlagSet() {
@@ -109,23 +128,23 @@ public class StatusRegister {
     }
 
     public boolean isOverFlowFlagSet() {
-        return overFlowFlag;
+        return (overflowResult & 0x80) != 0;
     }
 
     public boolean isNegativeFlagSet() {
-        return negativeFlag;
+        return (negativeZeroResult & 0x180) != 0;
     }
 
     @Override
     public String toString() {
         return "StatusRegister{" +
                 "carryFlag=" + carryFlag +
-                ", zeroFlag=" + zeroFlag +
+                ", zeroFlag=" + isZeroFlagSet() +
                 ", interruptDisableFlag=" + interruptDisableFlag +
                 ", decimalModeFlag=" + decimalModeFlag +
                 ", breakCommandFlag=" + breakCommandFlag +
-                ", overFlowFlag=" + overFlowFlag +
-                ", negativeFlag=" + negativeFlag +
+                ", overFlowFlag=" + isOverFlowFlagSet() +
+                ", negativeFlag=" + isNegativeFlagSet() +
                 '}';
     }
 }
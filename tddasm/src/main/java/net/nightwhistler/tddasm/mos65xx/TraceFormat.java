@@ -0,0 +1,82 @@
+package net.nightwhistler.tddasm.mos65xx;
+
+/**
+ * The layout of trace files, shared by TraceWriter and TraceReplayer.
+ *
+ * A trace file starts with the magic number and version, followed by blocks.
+ * Every block has a header, then a payload that is compressed with Deflate:
+ * <pre>
+ * byte  type         KEYFRAME, RESET or EVENTS
+ * long  firstStep    the number of instructions recorded before this block
+ * int   steps        the number of instructions in this block
+ * int   length       the payload length before compression
+ * int   compressed   the payload length in the file
+ * </pre>
+ *
+ * A keyframe holds the complete state of the Processor: program counter,
+ * A, X, Y, SP, P, operation count, cycle count and all 64K of memory,
+ * followed by the number of registered JavaRoutines as a short, and the
+ * address and name of each of them. There is one at the start of the
+ * trace, one every keyframe interval and one at the end.
+ *
+ * A RESET block is a keyframe too, written when memory or registers were
+ * replaced outside of an instruction, for example by load or restore.
+ * Keyframes can be skipped while replaying, because the events before them
+ * lead up to the same state, but a RESET has to be applied.
+ *
+ * Events blocks hold records, each starting with a tag byte. Everything
+ * is stored as the difference with the state before it, so a typical
+ * instruction takes a few bytes before compression:
+ * <ul>
+ *     <li>Instruction, tag below $80: the opcode and operand bytes, then the
+ *     address if it isn't where the previous instruction ended, the program
+ *     counter afterwards if the instruction jumped, the registers that
+ *     changed, and the operation and cycle count increments as varints.
+ *     The tag has a bit for each register that changed, TARGET and ADDRESS.</li>
+ *     <li>WRITE: the distance to the previous write address as a zigzag
+ *     varint, the old value and the new value.</li>
+ *     <li>JAVA_ROUTINE: the address, the name, and the state afterwards.</li>
+ *     <li>INTERRUPT: the program counter before, and the state afterwards.</li>
+ * </ul>
+ * The state after a JavaRoutine or interrupt is a register mask, the
+ * changed registers, the program counter, and the operation and cycle
+ * count increments.
+ */
+final class TraceFormat {
+
+    static final int MAGIC = 0x54444454; //"TDDT"
+    static final short VERSION = 2;
+    static final int FILE_HEADER_SIZE = 4 + 2;
+
+    static final byte KEYFRAME = 1;
+    static final byte EVENTS = 2;
+    static final byte RESET = 3;
+    static final int BLOCK_HEADER_SIZE = 1 + 8 + 4 + 4 + 4;
+
+    //The size of a keyframe without its JavaRoutines
+    static final int KEYFRAME_SIZE = 2 + 5 + 8 + 8 + MemoryBus.SIZE;
+
+    //Instruction tag bits
+    static final int ACCUMULATOR = 0x01;
+    static final int X_REGISTER = 0x02;
+    static final int Y_REGISTER = 0x04;
+    static final int STACK_POINTER = 0x08;
+    static final int STATUS = 0x10;
+    static final int TARGET = 0x20;
+    static final int ADDRESS = 0x40;
+
+    //Other record tags
+    static final int WRITE = 0x80;
+    static final int JAVA_ROUTINE = 0x81;
+    static final int INTERRUPT = 0x82;
+
+    private TraceFormat() {}
+
+    static int zigzag(int value) {
+        return (value << 1) ^ (value >> 31);
+    }
+
+    static int unzigzag(int value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+}
@@ -0,0 +1,322 @@
+package net.nightwhistler.tddasm.mos65xx;
+
+import io.vavr.collection.List;
+import io.vavr.control.Option;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+
+import static java.lang.Byte.toUnsignedInt;
+
+/**
+ * Records every instruction a Processor executes, and every memory write, for assertions afterwards.
+ *
+ * Instead of keeping an event object per step, the recorder stores each
+ * value in its own column: one for the program counter, one for the
+ * opcode, one for the accumulator and so on. Columns are stored in chunks
+ * of 64K steps, so recording never copies what was recorded before. A
+ * step takes 18 bytes and a memory write 12 bytes, and queries scan just
+ * the columns they need.
+ *
+ * By default chunks live on the heap. A recorder created with spillingTo()
+ * maps its chunks from a file instead, so very long runs are paged out by
+ * the operating system instead of filling up the heap.
+ *
+ * <pre>
+ * var trace = new TraceRecorder();
+ * processor.addExecutionObserver(trace);
+ * processor.run(program.startAddress());
+ *
+ * assertEquals(8000, trace.count(OpCode.STA));
+ * </pre>
+ *
+ * Steps are numbered from 0 in the order they were executed. Register
+ * values are the ones after the step. A memory write belongs to the step
+ * that was executing when it happened, writes from outside an instruction,
+ * like a JavaRoutine or pokeValue, belong to the next step.
+ */
+public final class TraceRecorder implements ExecutionObserver, AutoCloseable {
+
+    /**
+     * The registers after a step.
+     *
+     * @param address the address of the instruction of the step
+     */
+    public record Registers(int address, byte accumulator, byte xRegister, byte yRegister,
+                            int stackPointer, byte statusRegister) {}
+
+    /**
+     * A write to memory.
+     *
+     * @param step the step that made the write
+     */
+    public record Write(long step, int address, byte oldValue, byte newValue) {}
+
+    static final int CHUNK_SHIFT = 16;
+    static final int CHUNK_SIZE = 1 << CHUNK_SHIFT;
+
+    //Column offsets in a step chunk, in bytes
+    private static final int PC = 0;
+    private static final int OPCODE = PC + 2 * CHUNK_SIZE;
+    private static final int OPERAND = OPCODE + CHUNK_SIZE;
+    private static final int ACCUMULATOR = OPERAND + 2 * CHUNK_SIZE;
+    private static final int X_REGISTER = ACCUMULATOR + CHUNK_SIZE;
+    private static final int Y_REGISTER = X_REGISTER + CHUNK_SIZE;
+    private static final int STACK_POINTER = Y_REGISTER + CHUNK_SIZE;
+    private static final int STATUS = STACK_POINTER + CHUNK_SIZE;
+    private static final int CYCLE = STATUS + CHUNK_SIZE;
+    private static final int STEP_CHUNK_BYTES = CYCLE + 8 * CHUNK_SIZE;
+
+    //Column offsets in a write chunk, in bytes
+    private static final int WRITE_STEP = 0;
+    private static final int WRITE_ADDRESS = WRITE_STEP + 8 * CHUNK_SIZE;
+    private static final int OLD_VALUE = WRITE_ADDRESS + 2 * CHUNK_SIZE;
+    private static final int NEW_VALUE = OLD_VALUE + CHUNK_SIZE;
+    private static final int WRITE_CHUNK_BYTES = NEW_VALUE + CHUNK_SIZE;
+
+    private final java.util.List<ByteBuffer> stepChunks = new ArrayList<>();
+    private final java.util.List<ByteBuffer> writeChunks = new ArrayList<>();
+
+    private long steps = 0;
+    private long writes = 0;
+
+    //Null when chunks are on the heap
+    private final FileChannel spillFile;
+    private long spillFileSize = 0;
+
+    public TraceRecorder() {
+        this.spillFile = null;
+    }
+
+    private TraceRecorder(FileChannel spillFile) {
+        this.spillFile = spillFile;
+    }
+
+    /**
+     * Creates a recorder that keeps its chunks in a memory-mapped file.
+     *
+     * The file is overwritten. Close the recorder to release it.
+     */
+    public static TraceRecorder spillingTo(Path file) {
+        try {
+            return new TraceRecorder(FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING));
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not open trace file " + file, e);
+        }
+    }
+
+    @Override
+    public void instructionExecuted(Processor processor, int address, byte opCode, int operand) {
+        int index = (int) steps & (CHUNK_SIZE - 1);
+        if (index == 0) {
+            stepChunks.add(allocate(STEP_CHUNK_BYTES));
+        }
+
+        ByteBuffer chunk = stepChunks.get(stepChunks.size() - 1);
+        chunk.putShort(PC + 2 * index, (short) address);
+        chunk.put(OPCODE + index, opCode);
+        chunk.putShort(OPERAND + 2 * index, (short) operand);
+        chunk.put(ACCUMULATOR + index, processor.getAccumulatorValue());
+        chunk.put(X_REGISTER + index, processor.getXRegisterValue());
+        chunk.put(Y_REGISTER + index, processor.getYRegisterValue());
+        chunk.put(STACK_POINTER + index, (byte) processor.getStackPointer());
+        chunk.put(STATUS + index, processor.getStatusRegisterValue());
+        chunk.putLong(CYCLE + 8 * index, processor.getCycleCount());
+
+        steps++;
+    }
+
+    @Override
+    public void memoryWritten(Processor processor, int address, byte oldValue, byte newValue) {
+        int index = (int) writes & (CHUNK_SIZE - 1);
+        if (index == 0) {
+            writeChunks.add(allocate(WRITE_CHUNK_BYTES));
+        }
+
+        ByteBuffer chunk = writeChunks.get(writeChunks.size() - 1);
+        chunk.putLong(WRITE_STEP + 8 * index, steps);
+        chunk.putShort(WRITE_ADDRESS + 2 * index, (short) address);
+        chunk.put(OLD_VALUE + index, oldValue);
+        chunk.put(NEW_VALUE + index, newValue);
+
+        writes++;
+    }
+
+    public long steps() {
+        return steps;
+    }
+
+    public long writes() {
+        return writes;
+    }
+
+    public int programCounterAt(long step) {
+        return Short.toUnsignedInt(stepChunk(step).getShort(PC + 2 * index(step)));
+    }
+
+    public OpCode opCodeAt(long step) {
+        return OpCodeTable.lookup(opCodeByteAt(step)).opCode();
+    }
+
+    public byte opCodeByteAt(long step) {
+        return stepChunk(step).get(OPCODE + index(step));
+    }
+
+    public int operandAt(long step) {
+        return Short.toUnsignedInt(stepChunk(step).getShort(OPERAND + 2 * index(step)));
+    }
+
+    /**
+     * @return the cycle count of the Processor after the step
+     */
+    public long cycleAt(long step) {
+        return stepChunk(step).getLong(CYCLE + 8 * index(step));
+    }
+
+    public Registers registersAt(long step) {
+        ByteBuffer chunk = stepChunk(step);
+        int index = index(step);
+
+        return new Registers(programCounterAt(step), chunk.get(ACCUMULATOR + index), chunk.get(X_REGISTER + index),
+                chunk.get(Y_REGISTER + index), toUnsignedInt(chunk.get(STACK_POINTER + index)), chunk.get(STATUS + index));
+    }
+
+    /**
+     * Counts how often instructions with an OpCode were executed, in any addressing mode.
+     */
+    public long count(OpCode opCode) {
+        boolean[] matches = new boolean[256];
+        for (int code = 0; code < 256; code++) {
+            var entry = OpCodeTable.lookup((byte) code);
+            matches[code] = entry != null && entry.opCode() == opCode;
+        }
+
+        long count = 0;
+        for (long step = 0; step < steps; step += CHUNK_SIZE) {
+            ByteBuffer chunk = stepChunk(step);
+            int length = (int) Math.min(CHUNK_SIZE, steps - step);
+            for (int i = 0; i < length; i++) {
+                if (matches[toUnsignedInt(chunk.get(OPCODE + i))]) {
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Counts how often the instruction at an address was executed.
+     */
+    public long countAt(int address) {
+        short wanted = (short) address;
+        long count = 0;
+        for (long step = 0; step < steps; step += CHUNK_SIZE) {
+            ByteBuffer chunk = stepChunk(step);
+            int length = (int) Math.min(CHUNK_SIZE, steps - step);
+            for (int i = 0; i < length; i++) {
+                if (chunk.getShort(PC + 2 * i) == wanted) {
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    public Write writeAt(long write) {
+        if (write < 0 || write >= writes) {
+            throw new IndexOutOfBoundsException("No write " + write + ", there are " + writes);
+        }
+
+        ByteBuffer chunk = writeChunks.get((int) (write >>> CHUNK_SHIFT));
+        int index = (int) write & (CHUNK_SIZE - 1);
+        return new Write(chunk.getLong(WRITE_STEP + 8 * index),
+                Short.toUnsignedInt(chunk.getShort(WRITE_ADDRESS + 2 * index)),
+                chunk.get(OLD_VALUE + index), chunk.get(NEW_VALUE + index));
+    }
+
+    /**
+     * The last write to an address, searching backwards from the end.
+     */
+    public Option<Write> lastWriteTo(int address) {
+        short wanted = (short) address;
+        for (long write = writes - 1; write >= 0; write--) {
+            ByteBuffer chunk = writeChunks.get((int) (write >>> CHUNK_SHIFT));
+            if (chunk.getShort(WRITE_ADDRESS + 2 * ((int) write & (CHUNK_SIZE - 1))) == wanted) {
+                return Option.some(writeAt(write));
+            }
+        }
+        return Option.none();
+    }
+
+    /**
+     * All writes to a range of addresses, including both ends, in the order they happened.
+     */
+    public List<Write> writesTo(int from, int to) {
+        List<Write> result = List.empty();
+        for (long write = writes - 1; write >= 0; write--) {
+            ByteBuffer chunk = writeChunks.get((int) (write >>> CHUNK_SHIFT));
+            int address = Short.toUnsignedInt(chunk.getShort(WRITE_ADDRESS + 2 * ((int) write & (CHUNK_SIZE - 1))));
+            if (address >= from && address <= to) {
+                result = result.prepend(writeAt(write));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Throws away everything that was recorded.
+     */
+    public void clear() {
+        stepChunks.clear();
+        writeChunks.clear();
+        steps = 0;
+        writes = 0;
+        spillFileSize = 0;
+    }
+
+    /**
+     * Closes the spill file, if there is one. Nothing can be recorded or queried after this.
+     */
+    @Override
+    public void close() {
+        clear();
+        if (spillFile != null) {
+            try {
+                spillFile.close();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    private ByteBuffer allocate(int size) {
+        if (spillFile == null) {
+            return ByteBuffer.allocate(size);
+        }
+
+        try {
+            ByteBuffer buffer = spillFile.map(FileChannel.MapMode.READ_WRITE, spillFileSize, size);
+            spillFileSize += size;
+            return buffer;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not grow trace file", e);
+        }
+    }
+
+    private ByteBuffer stepChunk(long step) {
+        if (step < 0 || step >= steps) {
+            throw new IndexOutOfBoundsException("No step " + step + ", there are " + steps);
+        }
+        return stepChunks.get((int) (step >>> CHUNK_SHIFT));
+    }
+
+    private static int index(long step) {
+        return (int) step & (CHUNK_SIZE - 1);
+    }
+}
@@ -0,0 +1,397 @@
+package net.nightwhistler.tddasm.mos65xx;
+
+import io.vavr.collection.List;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import static java.lang.Byte.toUnsignedInt;
+import static net.nightwhistler.tddasm.mos65xx.Operand.address;
+import static net.nightwhistler.tddasm.mos65xx.TraceFormat.*;
+
+/**
+ * Reads a trace file written by a TraceWriter.
+ *
+ * Steps are numbered from 0, like in the TraceRecorder. The state at step n
+ * is the state after n instructions were executed. To rebuild it, the
+ * replayer starts from the last keyframe before n and applies the recorded
+ * changes from there, so seeking never replays more than one keyframe
+ * interval.
+ *
+ * <pre>
+ * try (var replayer = TraceReplayer.open(Path.of("run.trace"))) {
+ *     Processor processor = replayer.processorAt(1_000_000);
+ *     ...
+ * }
+ * </pre>
+ */
+public final class TraceReplayer implements AutoCloseable {
+
+    /**
+     * Receives the records of a trace. A record belongs to the step whose
+     * instruction comes after it, or to the step of the instruction itself.
+     */
+    public interface Visitor {
+        default void instructionExecuted(long step, int address, byte opCode, int operand) {}
+
+        default void memoryWritten(long step, int address, byte oldValue, byte newValue) {}
+
+        default void javaRoutineExecuted(long step, int address, String name) {}
+
+        default void interruptRequested(long step, int address) {}
+
+        /**
+         * Memory and registers were replaced outside of an instruction, for example by load or restore.
+         */
+        default void stateReplaced(long step) {}
+    }
+
+    private record Block(byte type, long firstStep, int steps, long position, int length, int compressedLength) {}
+
+    private final FileChannel channel;
+    private final List<Block> blocks;
+    private final List<Block> keyframes;
+
+    private TraceReplayer(FileChannel channel, List<Block> blocks) {
+        this.channel = channel;
+        this.blocks = blocks;
+        this.keyframes = blocks.filter(block -> block.type() == KEYFRAME || block.type() == RESET);
+    }
+
+    /**
+     * Opens a trace file and reads its block headers.
+     */
+    public static TraceReplayer open(Path file) {
+        try {
+            var channel = FileChannel.open(file, StandardOpenOption.READ);
+
+            var header = read(channel, 0, FILE_HEADER_SIZE);
+            if (header.getInt() != MAGIC || header.getShort() != VERSION) {
+                channel.close();
+                throw new IllegalArgumentException("Not a trace file: " + file);
+            }
+
+            List<Block> blocks = List.empty();
+            long position = FILE_HEADER_SIZE;
+            while (position + BLOCK_HEADER_SIZE <= channel.size()) {
+                var blockHeader = read(channel, position, BLOCK_HEADER_SIZE);
+                var block = new Block(blockHeader.get(), blockHeader.getLong(), blockHeader.getInt(),
+                        position + BLOCK_HEADER_SIZE, blockHeader.getInt(), blockHeader.getInt());
+                blocks = blocks.prepend(block);
+                position = block.position() + block.compressedLength();
+            }
+
+            return new TraceReplayer(channel, blocks.reverse());
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not read trace file " + file, e);
+        }
+    }
+
+    /**
+     * @return the number of instructions in the trace
+     */
+    public long steps() {
+        return keyframes.last().firstStep();
+    }
+
+    public int keyframes() {
+        return keyframes.size();
+    }
+
+    /**
+     * Creates a Processor in the state it was in at a step.
+     *
+     * Memory mapped to devices is restored as RAM with the values it had.
+     * The Processor has the kernal routines registered, so it can continue
+     * from there.
+     *
+     * @throws IllegalStateException if the recorded Processor had other JavaRoutines.
+     * Use processorAt(step, processor) with a Processor that has them registered.
+     */
+    public Processor processorAt(long step) {
+        return processorAt(step, new Processor());
+    }
+
+    /**
+     * Puts a Processor in the state the recorded one was in at a step.
+     *
+     * JavaRoutines are code, so they aren't in the trace. Register the ones
+     * the program needs on the Processor before passing it in.
+     *
+     * @return the Processor
+     * @throws IllegalStateException if the Processor has no JavaRoutine at an address where
+     * the recorded one had one
+     */
+    public Processor processorAt(long step, Processor processor) {
+        var state = seek(step);
+
+        var missing = state.routines.entrySet().stream()
+                .filter(routine -> !processor.hasJavaRoutineAt(routine.getKey()))
+                .map(routine -> routine.getValue() + " at " + address(routine.getKey()))
+                .toList();
+        if (!missing.isEmpty()) {
+            throw new IllegalStateException("The trace needs JavaRoutines the Processor doesn't have: "
+                    + String.join(", ", missing));
+        }
+
+        processor.writeMemory(state.memory, 0, 0, MemoryBus.SIZE);
+        processor.setState(state.programCounter, state.accumulator, state.xRegister, state.yRegister,
+                state.stackPointer, state.status, state.operationCount, state.cycleCount);
+        return processor;
+    }
+
+    /**
+     * Visits the records of the steps from one step up to, but not including, another.
+     */
+    public void replay(long fromStep, long toStep, Visitor visitor) {
+        if (fromStep > toStep) {
+            throw new IllegalArgumentException("Can't replay backwards from " + fromStep + " to " + toStep);
+        }
+
+        var state = seek(fromStep);
+        state.play(toStep, visitor);
+    }
+
+    @Override
+    public void close() {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private State seek(long step) {
+        if (step < 0 || step > steps()) {
+            throw new IndexOutOfBoundsException("No step " + step + ", the trace has " + steps());
+        }
+
+        var keyframe = keyframes.findLast(block -> block.firstStep() <= step).get();
+        var state = new State(blocks.dropWhile(block -> block != keyframe));
+        state.play(step, null);
+        return state;
+    }
+
+    private ByteBuffer payload(Block block) {
+        try {
+            var compressed = read(channel, block.position(), block.compressedLength());
+
+            var inflater = new Inflater();
+            inflater.setInput(compressed);
+            byte[] data = new byte[block.length()];
+            int length = 0;
+            while (length < data.length && !inflater.finished()) {
+                length += inflater.inflate(data, length, data.length - length);
+            }
+            inflater.end();
+
+            return ByteBuffer.wrap(data);
+        } catch (DataFormatException e) {
+            throw new IllegalStateException("Corrupt trace block at " + block.position(), e);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static ByteBuffer read(FileChannel channel, long position, int length) throws IOException {
+        var buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Trace file ends in the middle of a block");
+            }
+        }
+        return buffer.flip();
+    }
+
+    /**
+     * The state of the Processor while reading through the trace.
+     */
+    private final class State {
+        private int programCounter;
+        private byte accumulator;
+        private byte xRegister;
+        private byte yRegister;
+        private int stackPointer;
+        private byte status;
+        private long operationCount;
+        private long cycleCount;
+        private final byte[] memory = new byte[MemoryBus.SIZE];
+        private int lastWriteAddress = 0;
+
+        //The names of the JavaRoutines that were registered, by address
+        private final Map<Integer, String> routines = new TreeMap<>();
+
+        private long step;
+        private List<Block> remaining;
+        private ByteBuffer events = ByteBuffer.allocate(0);
+
+        private State(List<Block> fromKeyframe) {
+            load(fromKeyframe.head());
+            step = fromKeyframe.head().firstStep();
+            remaining = fromKeyframe.tail();
+        }
+
+        private void load(Block block) {
+            var keyframe = payload(block);
+            programCounter = Short.toUnsignedInt(keyframe.getShort());
+            accumulator = keyframe.get();
+            xRegister = keyframe.get();
+            yRegister = keyframe.get();
+            stackPointer = toUnsignedInt(keyframe.get());
+            status = keyframe.get();
+            operationCount = keyframe.getLong();
+            cycleCount = keyframe.getLong();
+            keyframe.get(memory);
+
+            routines.clear();
+            int count = Short.toUnsignedInt(keyframe.getShort());
+            for (int i = 0; i < count; i++) {
+                int address = Short.toUnsignedInt(keyframe.getShort());
+                byte[] name = new byte[Short.toUnsignedInt(keyframe.getShort())];
+                keyframe.get(name);
+                routines.put(address, new String(name, StandardCharsets.UTF_8));
+            }
+        }
+
+        /**
+         * Applies records until the state is the one at a step.
+         *
+         * @param visitor receives the records, or null
+         */
+        private void play(long toStep, Visitor visitor) {
+            while (step < toStep) {
+                if (!events.hasRemaining()) {
+                    nextEvents(visitor);
+                }
+
+                int tag = toUnsignedInt(events.get());
+                switch (tag) {
+                    case WRITE -> {
+                        int address = (lastWriteAddress + unzigzag(getVarInt())) & 0xFFFF;
+                        byte oldValue = events.get();
+                        byte newValue = events.get();
+                        memory[address] = newValue;
+                        lastWriteAddress = address;
+                        if (visitor != null) {
+                            visitor.memoryWritten(step, address, oldValue, newValue);
+                        }
+                    }
+                    case JAVA_ROUTINE -> {
+                        int address = getShort();
+                        byte[] name = new byte[getVarInt()];
+                        events.get(name);
+                        getState();
+                        //Registered after the last keyframe
+                        routines.putIfAbsent(address, new String(name, StandardCharsets.UTF_8));
+                        if (visitor != null) {
+                            visitor.javaRoutineExecuted(step, address, new String(name, StandardCharsets.UTF_8));
+                        }
+                    }
+                    case INTERRUPT -> {
+                        int address = getShort();
+                        getState();
+                        if (visitor != null) {
+                            visitor.interruptRequested(step, address);
+                        }
+                    }
+                    default -> {
+                        byte opCode = events.get();
+                        int length = OpCodeTable.lookup(opCode).length();
+                        int operand = length > 1 ? toUnsignedInt(events.get()) : 0;
+                        if (length > 2) {
+                            operand |= toUnsignedInt(events.get()) << 8;
+                        }
+
+                        int address = (tag & ADDRESS) != 0 ? getShort() : programCounter;
+                        programCounter = (tag & TARGET) != 0 ? getShort() : (address + length) & 0xFFFF;
+                        getRegisters(tag);
+                        getCounters();
+
+                        if (visitor != null) {
+                            visitor.instructionExecuted(step, address, opCode, operand);
+                        }
+                        step++;
+                    }
+                }
+            }
+        }
+
+        private void nextEvents(Visitor visitor) {
+            while (!remaining.isEmpty() && remaining.head().type() != EVENTS) {
+                //Write addresses start over after every keyframe, so seeking can start from any of them
+                lastWriteAddress = 0;
+                if (remaining.head().type() == RESET) {
+                    load(remaining.head());
+                    if (visitor != null) {
+                        visitor.stateReplaced(step);
+                    }
+                }
+                remaining = remaining.tail();
+            }
+
+            if (remaining.isEmpty()) {
+                throw new IllegalStateException("Trace ends at step " + step);
+            }
+            events = payload(remaining.head());
+            remaining = remaining.tail();
+        }
+
+        private void getState() {
+            getRegisters(toUnsignedInt(events.get()));
+            programCounter = getShort();
+            getCounters();
+        }
+
+        private void getRegisters(int mask) {
+            if ((mask & ACCUMULATOR) != 0) {
+                accumulator = events.get();
+            }
+            if ((mask & X_REGISTER) != 0) {
+                xRegister = events.get();
+            }
+            if ((mask & Y_REGISTER) != 0) {
+                yRegister = events.get();
+            }
+            if ((mask & STACK_POINTER) != 0) {
+                stackPointer = toUnsignedInt(events.get());
+            }
+            if ((mask & STATUS) != 0) {
+                status = events.get();
+            }
+        }
+
+        private void getCounters() {
+            operationCount += getVarLong();
+            cycleCount += getVarLong();
+        }
+
+        private int getShort() {
+            return Short.toUnsignedInt(events.getShort());
+        }
+
+        private int getVarInt() {
+            return (int) getVarLong();
+        }
+
+        private long getVarLong() {
+            long value = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = events.get();
+                value |= (long) (b & 0x7F) << shift;
+                shift += 7;
+            } while (b < 0);
+            return value;
+        }
+    }
+}
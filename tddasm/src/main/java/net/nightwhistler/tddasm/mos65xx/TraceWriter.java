@@ -0,0 +1,407 @@
+package net.nightwhistler.tddasm.mos65xx;
+
+import io.vavr.Tuple2;
+import io.vavr.collection.List;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+
+import static net.nightwhistler.tddasm.mos65xx.TraceFormat.*;
+
+/**
+ * Records a run of a Processor into a trace file, so it can be replayed with a TraceReplayer.
+ *
+ * The trace holds the state of the Processor when recording starts, every
+ * instruction, every memory write, and every JavaRoutine and interrupt. When
+ * memory or registers are replaced in one go, by load or restore, the whole
+ * state is recorded again. See TraceFormat for the layout.
+ *
+ * Recording only appends a few bytes to an array for every step. Full
+ * blocks are compressed and written to the file on a background thread.
+ * When that thread falls behind by more than a few blocks, the Processor
+ * waits for it.
+ *
+ * <pre>
+ * try (var trace = TraceWriter.record(processor, Path.of("run.trace"))) {
+ *     processor.run(program.startAddress());
+ * }
+ * </pre>
+ */
+public final class TraceWriter implements ExecutionObserver, AutoCloseable {
+
+    public static final int DEFAULT_KEYFRAME_INTERVAL = 1 << 20;
+
+    //Uncompressed size at which a block is handed to the background thread
+    private static final int BLOCK_SIZE = 1 << 18;
+
+    private static final int MAX_PENDING_BLOCKS = 4;
+
+    private final Processor processor;
+    private final FileChannel channel;
+    private final int keyframeInterval;
+
+    private final ExecutorService writer = Executors.newSingleThreadExecutor(runnable -> {
+        var thread = new Thread(runnable, "tddasm-trace-writer");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final Semaphore pendingBlocks = new Semaphore(MAX_PENDING_BLOCKS);
+    private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+    private volatile IOException failure;
+
+    //The block being filled
+    private byte[] block = new byte[BLOCK_SIZE + 64];
+    private int position = 0;
+    private long blockFirstStep = 0;
+
+    private long steps = 0;
+
+    //The state the next record is relative to
+    private int programCounter;
+    private byte accumulator;
+    private byte xRegister;
+    private byte yRegister;
+    private int stackPointer;
+    private byte status;
+    private long operationCount;
+    private long cycleCount;
+    private int lastWriteAddress = 0;
+
+    private boolean closed = false;
+
+    private TraceWriter(Processor processor, FileChannel channel, int keyframeInterval) {
+        this.processor = processor;
+        this.channel = channel;
+        this.keyframeInterval = keyframeInterval;
+    }
+
+    /**
+     * Starts recording a Processor into a file, with a keyframe every million instructions.
+     */
+    public static TraceWriter record(Processor processor, Path file) {
+        return record(processor, file, DEFAULT_KEYFRAME_INTERVAL);
+    }
+
+    /**
+     * Starts recording a Processor into a file.
+     *
+     * The file is overwritten. Recording stops when the TraceWriter is closed.
+     *
+     * @param keyframeInterval the number of instructions between keyframes. Smaller
+     *                         intervals make seeking faster and the file bigger.
+     */
+    public static TraceWriter record(Processor processor, Path file, int keyframeInterval) {
+        if (keyframeInterval < 1) {
+            throw new IllegalArgumentException("Keyframe interval must be positive: " + keyframeInterval);
+        }
+
+        FileChannel channel;
+        try {
+            channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+            channel.write(ByteBuffer.allocate(FILE_HEADER_SIZE).putInt(MAGIC).putShort(VERSION).flip());
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not create trace file " + file, e);
+        }
+
+        var traceWriter = new TraceWriter(processor, channel, keyframeInterval);
+        traceWriter.writeKeyframe(KEYFRAME);
+        processor.addExecutionObserver(traceWriter);
+        return traceWriter;
+    }
+
+    @Override
+    public void instructionExecuted(Processor processor, int address, byte opCode, int operand) {
+        ensureCapacity(40);
+        int length = OpCodeTable.lookup(opCode).length();
+        int next = (address + length) & 0xFFFF;
+        int after = processor.getProgramCounter();
+
+        int tagPosition = position++;
+        int tag = 0;
+
+        block[position++] = opCode;
+        if (length > 1) {
+            block[position++] = (byte) operand;
+        }
+        if (length > 2) {
+            block[position++] = (byte) (operand >>> 8);
+        }
+        if (address != programCounter) {
+            tag |= ADDRESS;
+            putShort(address);
+        }
+        if (after != next) {
+            tag |= TARGET;
+            putShort(after);
+        }
+        tag |= putChangedRegisters(processor);
+        block[tagPosition] = (byte) tag;
+        putCounters(processor);
+
+        programCounter = after;
+        steps++;
+
+        if (steps % keyframeInterval == 0) {
+            writeKeyframe(KEYFRAME);
+        } else if (position >= BLOCK_SIZE) {
+            shipEvents();
+        }
+    }
+
+    @Override
+    public void memoryWritten(Processor processor, int address, byte oldValue, byte newValue) {
+        ensureCapacity(8);
+        block[position++] = (byte) WRITE;
+        putVarInt(zigzag(address - lastWriteAddress));
+        block[position++] = oldValue;
+        block[position++] = newValue;
+        lastWriteAddress = address;
+    }
+
+    @Override
+    public void javaRoutineExecuted(Processor processor, int address, JavaRoutine javaRoutine) {
+        byte[] name = javaRoutine.getClass().getSimpleName().getBytes(StandardCharsets.UTF_8);
+        ensureCapacity(40 + name.length);
+        block[position++] = (byte) JAVA_ROUTINE;
+        putShort(address);
+        putVarInt(name.length);
+        System.arraycopy(name, 0, block, position, name.length);
+        position += name.length;
+        putState(processor);
+    }
+
+    @Override
+    public void stateReplaced(Processor processor) {
+        writeKeyframe(RESET);
+    }
+
+    @Override
+    public void interruptRequested(Processor processor, int address) {
+        ensureCapacity(40);
+        block[position++] = (byte) INTERRUPT;
+        putShort(address);
+        putState(processor);
+    }
+
+    /**
+     * @return the number of instructions recorded so far
+     */
+    public long steps() {
+        return steps;
+    }
+
+    /**
+     * Stops recording, writes the final keyframe and waits until everything is in the file.
+     */
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        processor.removeExecutionObserver(this);
+        writeKeyframe(KEYFRAME);
+
+        writer.shutdown();
+        try {
+            writer.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+            channel.close();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            failure = e;
+        }
+        deflater.end();
+
+        if (failure != null) {
+            throw new UncheckedIOException("Could not write trace", failure);
+        }
+    }
+
+    /**
+     * Writes the full state of the Processor, after the events so far.
+     *
+     * @param type KEYFRAME, or RESET when the state didn't come from the events before it
+     */
+    private void writeKeyframe(byte type) {
+        shipEvents();
+
+        var routines = List.ofAll(processor.javaRoutines().entrySet()).map(routine -> new Tuple2<>(
+                routine.getKey().toInt(), routine.getValue().getClass().getSimpleName().getBytes(StandardCharsets.UTF_8)));
+
+        byte[] keyframe = new byte[KEYFRAME_SIZE + 2 + routines.map(routine -> 4 + routine._2.length).sum().intValue()];
+        var buffer = ByteBuffer.wrap(keyframe)
+                .putShort((short) processor.getProgramCounter())
+                .put(processor.getAccumulatorValue())
+                .put(processor.getXRegisterValue())
+                .put(processor.getYRegisterValue())
+                .put((byte) processor.getStackPointer())
+                .put(processor.getStatusRegisterValue())
+                .putLong(processor.getOperationCount())
+                .putLong(processor.getCycleCount());
+        byte[] memory = new byte[MemoryBus.SIZE];
+        processor.peekMemory(memory);
+        buffer.put(memory);
+
+        buffer.putShort((short) routines.size());
+        for (var routine : routines) {
+            buffer.putShort(routine._1.shortValue()).putShort((short) routine._2.length).put(routine._2);
+        }
+
+        ship(type, steps, 0, keyframe, keyframe.length);
+
+        programCounter = processor.getProgramCounter();
+        accumulator = processor.getAccumulatorValue();
+        xRegister = processor.getXRegisterValue();
+        yRegister = processor.getYRegisterValue();
+        stackPointer = processor.getStackPointer();
+        status = processor.getStatusRegisterValue();
+        operationCount = processor.getOperationCount();
+        cycleCount = processor.getCycleCount();
+        lastWriteAddress = 0;
+    }
+
+    private void shipEvents() {
+        if (position > 0) {
+            ship(EVENTS, blockFirstStep, (int) (steps - blockFirstStep), block, position);
+            block = new byte[block.length];
+            position = 0;
+        }
+        blockFirstStep = steps;
+    }
+
+    /**
+     * Hands a block to the background thread, which compresses it and writes it to the file.
+     */
+    private void ship(byte type, long firstStep, int blockSteps, byte[] data, int length) {
+        pendingBlocks.acquireUninterruptibly();
+        writer.execute(() -> {
+            try {
+                if (failure == null) {
+                    writeBlock(type, firstStep, blockSteps, data, length);
+                }
+            } catch (IOException e) {
+                failure = e;
+            } finally {
+                pendingBlocks.release();
+            }
+        });
+    }
+
+    private void writeBlock(byte type, long firstStep, int blockSteps, byte[] data, int length) throws IOException {
+        deflater.reset();
+        deflater.setInput(data, 0, length);
+        deflater.finish();
+
+        byte[] compressed = new byte[length + length / 8 + 64];
+        int compressedLength = 0;
+        while (!deflater.finished()) {
+            if (compressedLength == compressed.length) {
+                compressed = Arrays.copyOf(compressed, compressed.length * 2);
+            }
+            compressedLength += deflater.deflate(compressed, compressedLength, compressed.length - compressedLength);
+        }
+
+        var buffer = ByteBuffer.allocate(BLOCK_HEADER_SIZE + compressedLength)
+                .put(type)
+                .putLong(firstStep)
+                .putInt(blockSteps)
+                .putInt(length)
+                .putInt(compressedLength)
+                .put(compressed, 0, compressedLength)
+                .flip();
+
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    /**
+     * Writes the registers that changed since the last record, and returns the tag bits for them.
+     */
+    private int putChangedRegisters(Processor processor) {
+        int changed = 0;
+        byte a = processor.getAccumulatorValue();
+        byte x = processor.getXRegisterValue();
+        byte y = processor.getYRegisterValue();
+        int sp = processor.getStackPointer();
+        byte p = processor.getStatusRegisterValue();
+
+        if (a != accumulator) {
+            changed |= ACCUMULATOR;
+            block[position++] = a;
+            accumulator = a;
+        }
+        if (x != xRegister) {
+            changed |= X_REGISTER;
+            block[position++] = x;
+            xRegister = x;
+        }
+        if (y != yRegister) {
+            changed |= Y_REGISTER;
+            block[position++] = y;
+            yRegister = y;
+        }
+        if (sp != stackPointer) {
+            changed |= STACK_POINTER;
+            block[position++] = (byte) sp;
+            stackPointer = sp;
+        }
+        if (p != status) {
+            changed |= STATUS;
+            block[position++] = p;
+            status = p;
+        }
+        return changed;
+    }
+
+    private void putCounters(Processor processor) {
+        putVarLong(processor.getOperationCount() - operationCount);
+        putVarLong(processor.getCycleCount() - cycleCount);
+        operationCount = processor.getOperationCount();
+        cycleCount = processor.getCycleCount();
+    }
+
+    private void putState(Processor processor) {
+        int maskPosition = position++;
+        block[maskPosition] = (byte) putChangedRegisters(processor);
+        programCounter = processor.getProgramCounter();
+        putShort(programCounter);
+        putCounters(processor);
+    }
+
+    private void putShort(int value) {
+        block[position++] = (byte) (value >>> 8);
+        block[position++] = (byte) value;
+    }
+
+    private void putVarInt(int value) {
+        putVarLong(value & 0xFFFFFFFFL);
+    }
+
+    private void putVarLong(long value) {
+        while ((value & ~0x7FL) != 0) {
+            block[position++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        block[position++] = (byte) value;
+    }
+
+    private void ensureCapacity(int needed) {
+        if (position + needed > block.length) {
+            block = Arrays.copyOf(block, Math.max(block.length * 2, position + needed));
+        }
+    }
+}
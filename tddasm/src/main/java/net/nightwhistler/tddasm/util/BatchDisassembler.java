@@ -0,0 +1,334 @@
+package net.nightwhistler.tddasm.util;
+
+import io.vavr.collection.List;
+import net.nightwhistler.tddasm.mos65xx.Label;
+import net.nightwhistler.tddasm.mos65xx.OpCode;
+import net.nightwhistler.tddasm.mos65xx.OperationProvider;
+import net.nightwhistler.tddasm.mos65xx.Program;
+import net.nightwhistler.tddasm.mos65xx.ProgramElement;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.UncheckedIOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
+
+/**
+ * Disassembles a lot of .prg files at once.
+ *
+ * Every file gets a listing, like printASM writes it, and a JSON summary
+ * with its entry point, size, subroutines and how often each opcode is
+ * used. Files are disassembled in parallel, and each one is written out
+ * as soon as it's done, so only the files that are being worked on are
+ * in memory. A file that can't be read or disassembled is reported, and
+ * the rest of the batch goes on. So is a file whose output would end up
+ * in the same place as that of a file before it.
+ *
+ * <pre>
+ * java --enable-preview -cp tddasm/target/classes:vavr.jar \
+ *     net.nightwhistler.tddasm.util.BatchDisassembler [-threads N] -out DIR FILE_OR_DIR...
+ * </pre>
+ */
+public class BatchDisassembler {
+
+    //A load address and 64 KB of memory is the most a .prg file can hold
+    static final int MAX_FILE_SIZE = 2 + 0x10000;
+
+    //The BASIC token for SYS
+    private static final byte SYS = (byte) 0x9E;
+
+    private static final int BASIC_START = 0x0801;
+
+    /**
+     * A .prg file, and the name its output gets in the output directory.
+     */
+    public record Input(Path file, Path name) {}
+
+    /**
+     * A file that was disassembled.
+     */
+    public record Summary(Input input, int size, int entryPoint, List<Subroutine> subroutines,
+                          Map<OpCode, Integer> opCodes) {}
+
+    public record Subroutine(String name, int address) {}
+
+    /**
+     * A file that wasn't.
+     */
+    public record Failure(Input input, String reason) {}
+
+    public record Result(int disassembled, List<Failure> failures) {}
+
+    private final Path outputDirectory;
+
+    public BatchDisassembler(Path outputDirectory) {
+        this.outputDirectory = outputDirectory;
+    }
+
+    public static void main(String[] args) throws IOException {
+        int threads = Runtime.getRuntime().availableProcessors();
+        Path out = null;
+        List<Path> paths = List.empty();
+
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "-threads" -> threads = Integer.parseInt(args[++i]);
+                case "-out" -> out = Path.of(args[++i]);
+                default -> paths = paths.append(Path.of(args[i]));
+            }
+        }
+        if (out == null || paths.isEmpty()) {
+            System.err.println("Usage: BatchDisassembler [-threads N] -out DIR FILE_OR_DIR...");
+            System.exit(1);
+        }
+
+        long start = System.nanoTime();
+        var result = new BatchDisassembler(out).run(inputs(paths), threads);
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        for (Failure failure : result.failures()) {
+            System.err.println(failure.input().file() + ": " + failure.reason());
+        }
+        System.out.printf("Disassembled %d files in %.1fs, %d failed%n",
+                result.disassembled(), seconds, result.failures().size());
+    }
+
+    /**
+     * Finds the .prg files to disassemble. Files are taken as they are, and are reported
+     * if they aren't .prg files. Directories are searched for .prg files, which keep
+     * their path relative to the directory.
+     */
+    public static List<Input> inputs(List<Path> paths) throws IOException {
+        List<Input> inputs = List.empty();
+        for (Path path : paths) {
+            if (Files.isDirectory(path)) {
+                try (Stream<Path> files = Files.walk(path)) {
+                    inputs = inputs.appendAll(files
+                            .filter(Files::isRegularFile)
+                            .filter(BatchDisassembler::isPrg)
+                            .sorted()
+                            .map(file -> new Input(file, path.relativize(file)))
+                            .toList());
+                }
+            } else {
+                inputs = inputs.append(new Input(path, path.getFileName()));
+            }
+        }
+        return inputs;
+    }
+
+    /**
+     * Disassembles all inputs on a pool of the given number of threads, and waits for them to be written.
+     */
+    public Result run(List<Input> inputs, int threads) {
+        var pool = new ForkJoinPool(threads);
+        try {
+            var tasks = new ArrayList<Callable<Failure>>(inputs.size());
+            //Ignoring case, because on some file systems GAME.asm and game.asm are the same file
+            var outputs = new HashMap<String, Input>();
+            for (Input input : inputs) {
+                var first = outputs.putIfAbsent(outputName(input).toString().toLowerCase(), input);
+                if (first != null) {
+                    var failure = new Failure(input, "Same output as " + first.file());
+                    tasks.add(() -> failure);
+                } else {
+                    tasks.add(() -> disassemble(input));
+                }
+            }
+
+            int disassembled = 0;
+            List<Failure> failures = List.empty();
+            for (Future<Failure> task : pool.invokeAll(tasks)) {
+                var failure = task.get();
+                if (failure == null) {
+                    disassembled++;
+                } else {
+                    failures = failures.prepend(failure);
+                }
+            }
+            return new Result(disassembled, failures.reverse());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while disassembling", e);
+        } catch (ExecutionException e) {
+            //disassemble() catches everything a file can go wrong with, so this is a bug
+            throw new IllegalStateException(e.getCause());
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Disassembles one file, and writes its listing and summary.
+     *
+     * @return null if all went well, or why it didn't
+     */
+    Failure disassemble(Input input) {
+        try {
+            if (!isPrg(input.file())) {
+                return new Failure(input, "Not a .prg file");
+            }
+
+            long size = Files.size(input.file());
+            if (size < 2 || size > MAX_FILE_SIZE) {
+                return new Failure(input, "Not a .prg file, it has " + size + " bytes");
+            }
+
+            byte[] binary = Files.readAllBytes(input.file());
+            Program program = Program.fromBinary(binary);
+            var summary = summarize(input, binary, program);
+
+            write(input, program, summary);
+            return null;
+        } catch (IOException | UncheckedIOException e) {
+            return new Failure(input, e.toString());
+        } catch (RuntimeException e) {
+            //Mostly an instruction cut off at the end of the file
+            return new Failure(input, "Can't disassemble: " + e);
+        }
+    }
+
+    static Summary summarize(Input input, byte[] binary, Program program) {
+        Map<OpCode, Integer> opCodes = new EnumMap<>(OpCode.class);
+        List<Subroutine> subroutines = List.empty();
+
+        int index = 0;
+        for (ProgramElement element : program.elements()) {
+            if (element instanceof OperationProvider operation) {
+                opCodes.merge(operation.opCode(), 1, Integer::sum);
+            } else if (element instanceof Label label && label.name().startsWith("subroutine_")) {
+                subroutines = subroutines.prepend(new Subroutine(label.name(), program.addressOfElement(index).toInt()));
+            }
+            index++;
+        }
+
+        return new Summary(input, binary.length - 2, entryPoint(binary), subroutines.reverse(), opCodes);
+    }
+
+    /**
+     * Where a program starts: the address in its SYS line if it starts with a BASIC line
+     * like the one Program.withBASICStarter adds, and its load address if it doesn't.
+     */
+    static int entryPoint(byte[] binary) {
+        int loadAddress = Byte.toUnsignedInt(binary[0]) | Byte.toUnsignedInt(binary[1]) << 8;
+
+        //2 bytes link to the next line, 2 bytes line number, then the tokens
+        int token = 2 + 4;
+        if (loadAddress == BASIC_START && binary.length > token && binary[token] == SYS) {
+            int counter = token + 1;
+            while (counter < binary.length && binary[counter] == ' ') {
+                counter++;
+            }
+
+            int address = 0;
+            int digits = 0;
+            while (counter < binary.length && binary[counter] >= '0' && binary[counter] <= '9' && digits < 5) {
+                address = address * 10 + (binary[counter++] - '0');
+                digits++;
+            }
+            if (digits > 0 && address <= 0xFFFF) {
+                return address;
+            }
+        }
+        return loadAddress;
+    }
+
+    private static boolean isPrg(Path file) {
+        return file.getFileName().toString().toLowerCase().endsWith(".prg");
+    }
+
+    /**
+     * The name of an input without its extension, which its .asm and .json files get.
+     */
+    private static Path outputName(Input input) {
+        String name = input.name().getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        String baseName = dot > 0 ? name.substring(0, dot) : name;
+
+        Path parent = input.name().getParent();
+        return parent == null ? Path.of(baseName) : parent.resolve(baseName);
+    }
+
+    /**
+     * Writes the listing and summary to temporary files first, and only moves them
+     * into place when both are complete, so a failure doesn't leave half of them behind.
+     */
+    private void write(Input input, Program program, Summary summary) throws IOException {
+        Path output = outputDirectory.resolve(outputName(input));
+        Path directory = output.getParent();
+        Files.createDirectories(directory);
+
+        String baseName = output.getFileName().toString();
+        Path listing = Files.createTempFile(directory, baseName, ".asm.tmp");
+        Path json = Files.createTempFile(directory, baseName, ".json.tmp");
+        try {
+            writeListing(program, listing);
+            writeSummary(summary, json);
+
+            move(listing, directory.resolve(baseName + ".asm"));
+            move(json, directory.resolve(baseName + ".json"));
+        } finally {
+            Files.deleteIfExists(listing);
+            Files.deleteIfExists(json);
+        }
+    }
+
+    private static void move(Path source, Path target) throws IOException {
+        try {
+            Files.move(source, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private static void writeListing(Program program, Path file) throws IOException {
+        try (var writer = new PrintWriter(Files.newBufferedWriter(file))) {
+            program.printASM(writer, true);
+        }
+    }
+
+    private static void writeSummary(Summary summary, Path file) throws IOException {
+        try (var writer = new PrintWriter(Files.newBufferedWriter(file))) {
+            writer.println("{");
+            writer.println("  \"file\": " + quote(summary.input().name().toString()) + ",");
+            writer.println("  \"size\": " + summary.size() + ",");
+            writer.println("  \"entryPoint\": " + summary.entryPoint() + ",");
+            writer.println("  \"subroutines\": {" + summary.subroutines()
+                    .map(subroutine -> quote(subroutine.name()) + ": " + subroutine.address())
+                    .mkString(", ") + "},");
+            writer.println("  \"opCodes\": {" + List.ofAll(summary.opCodes().entrySet())
+                    .map(entry -> quote(entry.getKey().name()) + ": " + entry.getValue())
+                    .mkString(", ") + "}");
+            writer.println("}");
+        }
+    }
+
+    private static String quote(String value) {
+        var quoted = new StringBuilder("\"");
+        for (char c : value.toCharArray()) {
+            switch (c) {
+                case '"' -> quoted.append("\\\"");
+                case '\\' -> quoted.append("\\\\");
+                default -> {
+                    if (c < 0x20) {
+                        quoted.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        quoted.append(c);
+                    }
+                }
+            }
+        }
+        return quoted.append('"').toString();
+    }
+}
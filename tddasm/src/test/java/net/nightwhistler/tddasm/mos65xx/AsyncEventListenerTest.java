@@ -0,0 +1,160 @@
+package net.nightwhistler.tddasm.mos65xx;
+
+import org.junit.jupiter.api.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static net.nightwhistler.tddasm.mos65xx.Operand.address;
+import static net.nightwhistler.tddasm.mos65xx.Operand.value;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class AsyncEventListenerTest {
+
+    private final Program program = new ProgramBuilder()
+            .ldx(value(0x00))
+            .label("loop")
+            .txa()
+            .sta(address(0x2000).xIndexed())
+            .inx()
+            .bne("loop")
+            .buildProgram();
+
+    @Test
+    public void testEventsAreDeliveredInOrder() {
+        java.util.List<ProcessorEvent> expected = new ArrayList<>();
+        var synchronous = new Processor();
+        synchronous.registerEventListener(expected::add);
+        synchronous.load(program);
+        synchronous.run(program.startAddress());
+
+        java.util.List<ProcessorEvent> received = new CopyOnWriteArrayList<>();
+        var processor = new Processor();
+        try (var async = AsyncEventListener.builder(events -> events.forEach(received::add))
+                .capacity(64)
+                .batchSize(10)
+                .start()) {
+            processor.registerEventListener(async);
+            processor.load(program);
+            processor.run(program.startAddress());
+
+            async.flush();
+            assertEquals(0, async.droppedEvents());
+        }
+
+        //StatusRegister doesn't implement equals, so compare the text
+        assertEquals(expected.toString(), received.toString());
+    }
+
+    @Test
+    public void testTypedAsyncListener() {
+        java.util.List<ProcessorEvent.MemoryLocationChanged> received = new CopyOnWriteArrayList<>();
+        var processor = new Processor();
+
+        try (var async = AsyncEventListener.<ProcessorEvent.MemoryLocationChanged>builder(events -> events.forEach(received::add)).start()) {
+            processor.registerEventListener(ProcessorEvent.MemoryLocationChanged.class, async);
+            processor.load(program);
+            processor.run(program.startAddress());
+        }
+
+        assertEquals(256, received.size());
+        assertEquals(new ProcessorEvent.MemoryLocationChanged(address(0x20FF), (byte) 0, (byte) 0xFF), received.get(255));
+    }
+
+    @Test
+    public void testDropWhenFull() {
+        assertDroppedEventsAreCounted(AsyncEventListener.Backpressure.DROP);
+    }
+
+    @Test
+    public void testSampleWhenFull() {
+        assertDroppedEventsAreCounted(AsyncEventListener.Backpressure.SAMPLE);
+    }
+
+    private void assertDroppedEventsAreCounted(AsyncEventListener.Backpressure backpressure) {
+        java.util.List<ProcessorEvent> received = new CopyOnWriteArrayList<>();
+        var processor = new Processor();
+        int[] sent = {0};
+        processor.registerEventListener(e -> sent[0]++);
+
+        var async = AsyncEventListener.builder(events -> {
+                    events.forEach(received::add);
+                    sleep(); //A slow listener
+                })
+                .capacity(16)
+                .backpressure(backpressure)
+                .start();
+
+        processor.registerEventListener(async);
+        processor.load(program);
+        processor.run(program.startAddress());
+        async.close();
+
+        assertTrue(async.droppedEvents() > 0, "Expected events to be dropped");
+        assertEquals(sent[0], received.size() + async.droppedEvents());
+    }
+
+    @Test
+    public void testFailingListener() {
+        var processor = new Processor();
+        var async = AsyncEventListener.builder(events -> {
+                    throw new IllegalArgumentException("Broken");
+                })
+                .capacity(4)
+                .start();
+
+        processor.registerEventListener(async);
+        processor.load(program);
+
+        //The Processor isn't blocked by a listener that failed
+        processor.run(program.startAddress());
+
+        var exception = assertThrows(IllegalStateException.class, async::close);
+        assertEquals("Broken", exception.getCause().getMessage());
+    }
+
+    @Test
+    public void testIdleConsumerSleeps() throws InterruptedException {
+        var threads = new CopyOnWriteArrayList<Thread>();
+        java.util.List<ProcessorEvent> received = new CopyOnWriteArrayList<>();
+        var processor = new Processor();
+        int[] sent = {0};
+        processor.registerEventListener(e -> sent[0]++);
+
+        try (var async = AsyncEventListener.builder(events -> events.forEach(received::add))
+                .threadFactory(runnable -> {
+                    var thread = new Thread(runnable);
+                    thread.setDaemon(true);
+                    threads.add(thread);
+                    return thread;
+                })
+                .start()) {
+            processor.registerEventListener(async);
+            processor.load(program);
+
+            var threadBean = ManagementFactory.getThreadMXBean();
+            long consumer = threads.get(0).getId();
+            Thread.sleep(100);
+            long cpuBefore = threadBean.getThreadCpuTime(consumer);
+            Thread.sleep(500);
+            long idleCpu = threadBean.getThreadCpuTime(consumer) - cpuBefore;
+            assertTrue(idleCpu < 20_000_000, "Idle consumer used " + idleCpu / 1000 + " microseconds of CPU");
+
+            //Sending an event wakes it up
+            processor.run(program.startAddress());
+            async.flush();
+            assertEquals(sent[0], received.size());
+        }
+    }
+
+    private static void sleep() {
+        try {
+            Thread.sleep(1);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,221 @@
+package net.nightwhistler.tddasm.mos65xx;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+
+import static net.nightwhistler.tddasm.mos65xx.Operand.address;
+import static net.nightwhistler.tddasm.mos65xx.Operand.value;
+import static net.nightwhistler.tddasm.mos65xx.Operand.zeroPage;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class BlockEngineTest {
+
+    //Nested loops with a subroutine, stack use and most kinds of flag updates
+    private final Program mixedProgram = new ProgramBuilder()
+            .ldy(value(0x00))
+            .label("outer")
+            .ldx(value(0x20))
+            .label("inner")
+            .txa()
+            .clc()
+            .adc(zeroPage(0x10))
+            .sta(zeroPage(0x10))
+            .asl()
+            .rol(zeroPage(0x11))
+            .php()
+            .sbc(value(0x03))
+            .plp()
+            .jsr("store")
+            .dex()
+            .bne("inner")
+            .iny()
+            .cpy(value(0x40))
+            .bne("outer")
+            .brk()
+            .label("store")
+            .sta(address(0x2000).yIndexed())
+            .inc(address(0x2100).xIndexed())
+            .lsr(zeroPage(0x11))
+            .ror()
+            .rts()
+            .buildProgram();
+
+    //The INC changes the operand of the LDA, so each pass loads a higher value
+    private final Program selfModifyingProgram = new ProgramBuilder()
+            .ldx(value(0xF0))
+            .label("loop")
+            .lda(value(0x00)) //The operand is at $C003
+            .inc(address(0xC003))
+            .sta(address(0x3000).xIndexed())
+            .dex()
+            .bne("loop")
+            .buildProgram();
+
+    @Test
+    public void testCompiledMatchesInterpreter() {
+        var interpreted = runWithRecompilation(false, mixedProgram, Integer.MAX_VALUE);
+        var compiled = runWithRecompilation(true, mixedProgram, Integer.MAX_VALUE);
+
+        assertSameState(interpreted, compiled);
+        assertTrue(compiled.blockEngine().compiledBlocks() > 0, "Expected hot blocks to be compiled");
+    }
+
+    @Test
+    public void testCompiledStopsAtSameOperation() {
+        for (int maxOperationCount : new int[]{0, 1, 7, 100, 1001, 5000}) {
+            var interpreted = runWithRecompilation(false, mixedProgram, maxOperationCount);
+            var compiled = runWithRecompilation(true, mixedProgram, maxOperationCount);
+
+            assertSameState(interpreted, compiled);
+        }
+    }
+
+    @Test
+    public void testCompiledStopsAtSameCycle() {
+        for (long cycleBudget : new long[]{0, 1, 10, 333, 4000, 20001}) {
+            var interpreted = new Processor();
+            interpreted.setRecompilationEnabled(false);
+            interpreted.load(mixedProgram);
+            interpreted.runForCycles(mixedProgram.startAddress(), cycleBudget);
+
+            var compiled = new Processor();
+            compiled.blockEngine().setCompileThreshold(1);
+            compiled.load(mixedProgram);
+            compiled.runForCycles(mixedProgram.startAddress(), cycleBudget);
+
+            assertSameState(interpreted, compiled);
+        }
+    }
+
+    @Test
+    public void testCompiledBlocksGoStraightOnToTheNext() {
+        var interpreted = runWithRecompilation(false, mixedProgram, Integer.MAX_VALUE);
+        var compiled = runWithRecompilation(true, mixedProgram, Integer.MAX_VALUE);
+
+        assertSameState(interpreted, compiled);
+        //Far more blocks run than there are, so most of them are reached through a link
+        assertTrue(compiled.blockEngine().chainedBlocks() > 100 * compiled.blockEngine().compiledBlocks(),
+                "Expected blocks to be chained");
+    }
+
+    @Test
+    public void testSelfModifyingCodeIsRecompiled() {
+        var interpreted = runWithRecompilation(false, selfModifyingProgram, Integer.MAX_VALUE);
+        var compiled = runWithRecompilation(true, selfModifyingProgram, Integer.MAX_VALUE);
+
+        assertSameState(interpreted, compiled);
+        assertEquals((byte) 0xF0, compiled.peekValue(0xC003));
+        assertTrue(compiled.blockEngine().invalidatedBlocks() > 0, "Expected blocks to be thrown away");
+    }
+
+    @Test
+    public void testListenersSeeEveryOperation() {
+        var compiled = runWithRecompilation(true, mixedProgram, 3000);
+        var interpreted = runWithRecompilation(false, mixedProgram, 3000);
+        assertTrue(compiled.blockEngine().compiledBlocks() > 0);
+
+        //Once a listener is registered, compiled blocks are no longer used
+        java.util.List<ProcessorEvent> compiledEvents = new ArrayList<>();
+        java.util.List<ProcessorEvent> interpretedEvents = new ArrayList<>();
+        compiled.registerEventListener(event -> {
+            if (!(event instanceof ProcessorEvent.RegisterStateChangedEvent)) {
+                compiledEvents.add(event);
+            }
+        });
+        interpreted.registerEventListener(event -> {
+            if (!(event instanceof ProcessorEvent.RegisterStateChangedEvent)) {
+                interpretedEvents.add(event);
+            }
+        });
+
+        compiled.run();
+        interpreted.run();
+
+        assertEquals(interpretedEvents, compiledEvents);
+        assertSameState(interpreted, compiled);
+    }
+
+    @Test
+    public void testBlocksAreUsedWithListenersForOtherEvents() {
+        var processor = new Processor();
+        processor.blockEngine().setCompileThreshold(1);
+        java.util.List<ProcessorEvent> events = new ArrayList<>();
+        processor.registerEventListener(ProcessorEvent.JavaRoutineExecuted.class, events::add);
+        processor.registerEventListener(ProcessorEvent.InterruptRequest.class, events::add);
+
+        processor.load(mixedProgram);
+        processor.run(mixedProgram.startAddress(), Integer.MAX_VALUE);
+
+        assertSameState(runWithRecompilation(false, mixedProgram, Integer.MAX_VALUE), processor);
+        assertTrue(processor.blockEngine().compiledBlocks() > 0, "Expected hot blocks to be compiled");
+    }
+
+    @Test
+    public void testJavaRoutineInsideCompiledBlock() {
+        var interpreted = runWithRecompilation(false, selfModifyingProgram, 50);
+        var compiled = runWithRecompilation(true, selfModifyingProgram, 50);
+        assertTrue(compiled.blockEngine().compiledBlocks() > 0);
+
+        var interpretedCalls = registerStoreStub(interpreted);
+        var compiledCalls = registerStoreStub(compiled);
+
+        interpreted.run();
+        compiled.run();
+
+        assertTrue(compiled.blockEngine().invalidatedBlocks() > 0, "Expected the loop to be thrown away");
+        assertEquals(interpretedCalls, compiledCalls);
+        assertSameState(interpreted, compiled);
+    }
+
+    /**
+     * Replaces the STA at $C007, which is in the middle of the compiled loop.
+     *
+     * @return the value of the X register for every call
+     */
+    private static java.util.List<Byte> registerStoreStub(Processor processor) {
+        java.util.List<Byte> calls = new ArrayList<>();
+        processor.registerJavaRoutine(new JavaRoutine() {
+            @Override
+            public Operand.TwoByteAddress location() {
+                return address(0xC007);
+            }
+
+            @Override
+            public int size() {
+                return 3;
+            }
+
+            @Override
+            public void execute(Processor p) {
+                calls.add(p.getXRegisterValue());
+            }
+        });
+        return calls;
+    }
+
+    private static Processor runWithRecompilation(boolean enabled, Program program, int maxOperationCount) {
+        var processor = new Processor();
+        processor.setRecompilationEnabled(enabled);
+        processor.blockEngine().setCompileThreshold(1);
+        processor.load(program);
+        processor.run(program.startAddress(), maxOperationCount);
+        return processor;
+    }
+
+    private static void assertSameState(Processor expected, Processor actual) {
+        assertEquals(expected.getAccumulatorValue(), actual.getAccumulatorValue());
+        assertEquals(expected.getXRegisterValue(), actual.getXRegisterValue());
+        assertEquals(expected.getYRegisterValue(), actual.getYRegisterValue());
+        assertEquals(expected.isCarryFlagSet(), actual.isCarryFlagSet());
+        assertEquals(expected.isZeroFlagSet(), actual.isZeroFlagSet());
+        assertEquals(expected.isNegativeFlagSet(), actual.isNegativeFlagSet());
+        assertEquals(expected.isOverflowFlagSet(), actual.isOverflowFlagSet());
+        assertEquals(expected.isBreakCommandFlagSet(), actual.isBreakCommandFlagSet());
+        assertEquals(expected.getOperationCount(), actual.getOperationCount());
+        assertEquals(expected.getCycleCount(), actual.getCycleCount());
+        assertArrayEquals(expected.readMemory(0x0000, 0xFFFF), actual.readMemory(0x0000, 0xFFFF));
+    }
+}
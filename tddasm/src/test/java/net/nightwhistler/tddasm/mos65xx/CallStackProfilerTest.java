@@ -0,0 +1,150 @@
+package net.nightwhistler.tddasm.mos65xx;
+
+import io.vavr.collection.List;
+import net.nightwhistler.tddasm.c64.kernal.ChrOut;
+import org.junit.jupiter.api.Test;
+
+import java.io.StringWriter;
+import java.util.regex.Pattern;
+
+import static net.nightwhistler.tddasm.c64.kernal.ChrOut.CHROUT_ADDRESS;
+import static net.nightwhistler.tddasm.mos65xx.Operand.address;
+import static net.nightwhistler.tddasm.mos65xx.Operand.value;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class CallStackProfilerTest {
+
+    private final Program program = new ProgramBuilder()
+            .label("main")
+            .ldy(value(3))
+            .label("loop")
+            .jsr("plot")
+            .dey()
+            .bne("loop")
+            .jsr("drop")
+            .lda(value('*'))
+            .jsr(CHROUT_ADDRESS)
+            .brk()
+            .label("plot")
+            .jsr("adhadl")
+            .lda(value(0x01))
+            .sta(address(0x2000))
+            .rts()
+            .label("adhadl")
+            .lda(value(0x02))
+            .sta(address(0x2001))
+            .rts()
+            //Returns straight to main, by dropping the return address into drop
+            .label("drop")
+            .jsr("inner")
+            .rts()
+            .label("inner")
+            .pla()
+            .pla()
+            .rts()
+            .buildProgram();
+
+    @Test
+    public void testCyclesPerStack() {
+        var profiler = run();
+
+        assertEquals(3 * (2 + 4 + 6), cyclesOf(profiler, "main", "plot", "adhadl"));
+        //JSR, LDA #, STA absolute and RTS
+        assertEquals(3 * (6 + 2 + 4 + 6), cyclesOf(profiler, "main", "plot"));
+        assertEquals(3 * (6 + 2 + 4 + 6) + 3 * (2 + 4 + 6), profiler.inclusiveCycles("plot"));
+
+        //The RTS in inner leaves both frames. ChrOut is called through the jump table at $FFD2.
+        assertTrue(profiler.stacks().exists(stack -> stack.frames().equals(List.of("main", "$ffd2"))));
+        assertEquals(1, profiler.stacks().find(stack -> stack.frames().equals(List.of("main", "drop"))).get().instructions());
+    }
+
+    @Test
+    public void testCollapsedStacks() {
+        var profiler = run();
+
+        var output = new StringWriter();
+        profiler.writeCollapsedStacks(output);
+
+        var lines = List.of(output.toString().split("\n"));
+        assertTrue(lines.contains("main;plot;adhadl 36"), output.toString());
+        assertTrue(lines.contains("main;plot 54"), output.toString());
+        assertTrue(lines.exists(line -> line.startsWith("main;drop;inner ")), output.toString());
+
+        long total = lines.map(line -> Long.parseLong(line.substring(line.lastIndexOf(' ') + 1))).sum().longValue();
+        assertEquals(profiler.inclusiveCycles("main"), total);
+    }
+
+    @Test
+    public void testChromeTrace() {
+        var profiler = run();
+
+        var output = new StringWriter();
+        profiler.writeChromeTrace(output);
+        String trace = output.toString();
+
+        assertTrue(trace.startsWith("{\"traceEvents\":["));
+        assertEquals(count(trace, "\"ph\":\"B\""), count(trace, "\"ph\":\"E\""));
+        assertEquals(3, count(trace, "\"name\":\"adhadl\",\"ph\":\"B\""));
+
+        //Timestamps never go backwards
+        var timestamps = Pattern.compile("\"ts\":(\\d+)").matcher(trace);
+        long last = 0;
+        while (timestamps.find()) {
+            long timestamp = Long.parseLong(timestamps.group(1));
+            assertTrue(timestamp >= last);
+            last = timestamp;
+        }
+    }
+
+    @Test
+    public void testManyCallStacks() {
+        //Calls 150 routines twice, each of which calls the same leaf routine
+        var builder = new ProgramBuilder().label("main");
+        for (int pass = 0; pass < 2; pass++) {
+            for (int i = 0; i < 150; i++) {
+                builder = builder.jsr("r" + i);
+            }
+        }
+        builder = builder.brk();
+        for (int i = 0; i < 150; i++) {
+            builder = builder.label("r" + i).jsr("leaf").rts();
+        }
+        var many = builder.label("leaf").rts().buildProgram();
+
+        var processor = new Processor();
+        processor.load(many);
+        try (var profiler = CallStackProfiler.attach(processor)) {
+            processor.run(many.startAddress());
+
+            //main, the BRK, 150 routines and a leaf under each of them
+            assertEquals(1 + 1 + 150 + 150, profiler.stacks().size());
+            assertTrue(profiler.stacks().exists(stack -> stack.frames().last().startsWith("interrupt ")));
+            //The RTS in leaf, and the JSR and RTS in r0
+            assertEquals(2 * 6, cyclesOf(profiler, "main", "r149", "leaf"));
+            assertEquals(2 * (6 + 6), cyclesOf(profiler, "main", "r0"));
+        }
+    }
+
+    private CallStackProfiler run() {
+        var processor = new Processor();
+        processor.registerJavaRoutine(new ChrOut());
+        processor.load(program);
+
+        try (var profiler = CallStackProfiler.attach(processor)) {
+            processor.run(program.startAddress());
+            return profiler;
+        }
+    }
+
+    private static long cyclesOf(CallStackProfiler profiler, String... frames) {
+        return profiler.stacks()
+                .find(stack -> stack.frames().equals(List.of(frames)))
+                .map(CallStackProfiler.Stack::cycles)
+                .getOrElse(0L);
+    }
+
+    private static int count(String text, String part) {
+        return text.split(Pattern.quote(part), -1).length - 1;
+    }
+}
@@ -0,0 +1,131 @@
+package net.nightwhistler.tddasm.mos65xx;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.StringWriter;
+import java.nio.file.Path;
+import java.util.stream.IntStream;
+
+import static net.nightwhistler.tddasm.mos65xx.Operand.address;
+import static net.nightwhistler.tddasm.mos65xx.Operand.value;
+import static net.nightwhistler.tddasm.mos65xx.Operand.zeroPage;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class CoverageTest {
+
+    //Stores 1 at $2000 when $FB is zero, and 2 when it isn't
+    private final Program program = new ProgramBuilder()
+            .lda(zeroPage(0xFB))
+            .beq("zero")
+            .label("not_zero")
+            .lda(value(0x02))
+            .sta(address(0x2000))
+            .brk()
+            .label("zero")
+            .lda(value(0x01))
+            .sta(address(0x2000))
+            .brk()
+            .buildProgram();
+
+    @Test
+    public void testSingleRun() {
+        var coverage = run((byte) 0);
+
+        var labels = coverage.labels(program);
+        assertEquals(3, labels.size());
+
+        var start = labels.get(0);
+        assertEquals(2, start.instructions());
+        assertEquals(2, start.coveredInstructions());
+        assertEquals(2, start.branches());
+        assertEquals(1, start.coveredBranches());
+
+        var notZero = labels.get(1);
+        assertEquals("not_zero", notZero.name());
+        assertEquals(3, notZero.missedInstructions());
+
+        var zero = labels.get(2);
+        assertEquals(3, zero.coveredInstructions());
+
+        int beq = program.startAddress().toInt() + 2;
+        assertTrue(coverage.isTaken(beq));
+        assertFalse(coverage.isNotTaken(beq));
+    }
+
+    @Test
+    public void testBranchToTheNextInstruction() {
+        var zeroOffset = new ProgramBuilder()
+                .lda(zeroPage(0xFB))
+                .beq("next")
+                .label("next")
+                .brk()
+                .buildProgram();
+
+        int beq = zeroOffset.startAddress().toInt() + 2;
+        for (byte value : new byte[]{0, 1}) {
+            var processor = new Processor();
+            processor.load(zeroOffset);
+            processor.pokeValue(0xFB, value);
+
+            try (var coverage = Coverage.attach(processor)) {
+                processor.run(zeroOffset.startAddress());
+                assertEquals(value == 0, coverage.isTaken(beq));
+                assertEquals(value != 0, coverage.isNotTaken(beq));
+            }
+        }
+    }
+
+    @Test
+    public void testMergeParallelRuns() {
+        var total = new Coverage();
+        IntStream.range(0, 16).parallel().forEach(i -> total.merge(run((byte) (i % 2))));
+
+        var elements = total.elements(program).filter(Coverage.ElementCoverage::isInstruction);
+        assertTrue(elements.forAll(Coverage.ElementCoverage::executed));
+        assertEquals(2, elements.map(Coverage.ElementCoverage::coveredBranches).sum().intValue());
+    }
+
+    @Test
+    public void testSaveAndMerge(@TempDir Path directory) {
+        Path file = directory.resolve("coverage.bin");
+        run((byte) 1).writeTo(file);
+
+        var coverage = run((byte) 0);
+        coverage.merge(Coverage.readFrom(file));
+
+        assertTrue(coverage.labels(program).forAll(label -> label.missedInstructions() == 0));
+    }
+
+    @Test
+    public void testReports() {
+        var coverage = run((byte) 5);
+
+        var xml = new StringWriter();
+        coverage.writeXml(program, "test", xml);
+        String report = xml.toString();
+        assertTrue(report.contains("<method name=\"not_zero\" desc=\"$c004\" line=\"4\">"), report);
+        //Totals: 5 of the 8 instructions, and 1 of the 2 branches
+        assertTrue(report.endsWith("  <counter type=\"INSTRUCTION\" missed=\"3\" covered=\"5\"/>\n"
+                + "  <counter type=\"BRANCH\" missed=\"1\" covered=\"1\"/>\n</report>\n"), report);
+        //The BEQ is on the third line of the listing
+        assertTrue(report.contains("<line nr=\"3\" mi=\"0\" ci=\"1\" mb=\"1\" cb=\"1\"/>"), report);
+
+        var html = new StringWriter();
+        coverage.writeHtml(program, "test", html);
+        assertTrue(html.toString().contains("<span class=\"nc\">$c00a   LDA #$1</span>"), html.toString());
+    }
+
+    private Coverage run(byte value) {
+        var processor = new Processor();
+        processor.load(program);
+        processor.pokeValue(0xFB, value);
+
+        try (var coverage = Coverage.attach(processor)) {
+            processor.run(program.startAddress());
+            return coverage;
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package net.nightwhistler.tddasm.mos65xx;
+
+import io.vavr.collection.List;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+
+import static net.nightwhistler.tddasm.mos65xx.OpCode.LDA;
+import static net.nightwhistler.tddasm.mos65xx.OpCode.STA;
+import static net.nightwhistler.tddasm.mos65xx.Operand.address;
+import static net.nightwhistler.tddasm.mos65xx.Operand.value;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class EventFilterTest {
+
+    @Test
+    public void testOpCodesMatchEveryAddressingMode() {
+        var sta = EventFilter.opCodes(STA);
+
+        //STA $FB, STA $2000 and STA $2000,Y
+        assertTrue(sta.matches(0xC000, 0x85));
+        assertTrue(sta.matches(0xC000, 0x8D));
+        assertTrue(sta.matches(0xC000, 0x99));
+        //LDA #$00
+        assertFalse(sta.matches(0xC000, 0xA9));
+        //Events without an instruction only have their address checked
+        assertTrue(sta.matches(0xC000, EventFilter.NO_OPCODE));
+    }
+
+    @Test
+    public void testCombiningFilters() {
+        var both = EventFilter.addresses(0x2000, 0x20FF).and(EventFilter.opCodes(STA));
+        assertTrue(both.matches(0x2010, 0x8D));
+        assertFalse(both.matches(0x2100, 0x8D));
+        assertFalse(both.matches(0x2010, 0xA9));
+
+        var either = EventFilter.union(List.of(EventFilter.address(0x2000), EventFilter.address(0x3000)));
+        assertTrue(either.matches(0x2000, 0xA9));
+        assertTrue(either.matches(0x3000, 0xA9));
+        assertFalse(either.matches(0x2001, 0xA9));
+
+        assertThrows(IllegalArgumentException.class, () -> EventFilter.addresses(0x3000, 0x2000));
+    }
+
+    @Test
+    public void testFilteredListenerGetsTheSameEvents() {
+        //Clears $2000-$27FF, 8 pages of 256 bytes
+        Program program = new ProgramBuilder()
+                .lda(value(0x00))
+                .ldx(value(0x08))
+                .ldy(value(0x00))
+                .label("loop")
+                .sta(address(0x2000).yIndexed())
+                .iny()
+                .bne("loop")
+                //Next page: the high byte of the STA address
+                .inc(address(0xC008))
+                .dex()
+                .bne("loop")
+                .brk()
+                .buildProgram(address(0xC000));
+
+        var processor = new Processor();
+        var everything = new ArrayList<ProcessorEvent.OperationPerformed>();
+        var stores = new ArrayList<ProcessorEvent.OperationPerformed>();
+        var lastPage = new ArrayList<ProcessorEvent.MemoryLocationChanged>();
+
+        processor.registerEventListener(ProcessorEvent.OperationPerformed.class, everything::add);
+        processor.registerEventListener(ProcessorEvent.OperationPerformed.class,
+                EventFilter.opCodes(STA, LDA).and(EventFilter.addressMask(0xFFF0, 0xC000)), stores::add);
+        processor.registerEventListener(ProcessorEvent.MemoryLocationChanged.class,
+                EventFilter.addresses(address(0x2700), address(0x27FF)), lastPage::add);
+
+        processor.load(program);
+        processor.run(program.startAddress());
+
+        assertEquals(everything.stream()
+                .filter(o -> o.operation().opCode() == STA || o.operation().opCode() == LDA).toList(), stores);
+        assertEquals(1 + 0x800, stores.size());
+        assertEquals(0x100, lastPage.size());
+        assertEquals(address(0x27FF), lastPage.get(lastPage.size() - 1).atLocation());
+    }
+}
@@ -0,0 +1,110 @@
+package net.nightwhistler.tddasm.mos65xx;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class MemoryBusTest {
+
+    @Test
+    public void testReadWrite() {
+        var memory = new MemoryBus();
+        memory.write(0x1234, (byte) 0x56);
+
+        assertEquals((byte) 0x56, memory.read(0x1234));
+        assertEquals(0, memory.read(0x1235));
+    }
+
+    @Test
+    public void testRangesAcrossPages() {
+        var memory = new MemoryBus();
+        byte[] data = new byte[600];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) i;
+        }
+
+        memory.write(0x10F0, data, 0, data.length);
+
+        byte[] result = new byte[data.length];
+        memory.read(0x10F0, result, 0, result.length);
+        assertArrayEquals(data, result);
+
+        assertThrows(IndexOutOfBoundsException.class, () -> memory.write(0xFFF0, data, 0, data.length));
+    }
+
+    @Test
+    public void testSharedPagesAreCopiedOnWrite() {
+        var memory = new MemoryBus();
+        memory.write(0x2000, (byte) 0x01);
+
+        var shared = memory.sharePages();
+        memory.write(0x2000, (byte) 0x02);
+
+        //The shared page still has the old value
+        assertEquals(0x01, shared.pages()[0x20][0x00]);
+        assertEquals(0x02, memory.read(0x2000));
+
+        var other = new MemoryBus();
+        other.restorePage(0x20, shared);
+        other.write(0x2001, (byte) 0x03);
+
+        assertEquals(0x01, other.read(0x2000));
+        assertEquals(0, shared.pages()[0x20][0x01]);
+    }
+
+    @Test
+    public void testDevicePages() {
+        var memory = new MemoryBus();
+        var device = new RecordingDevice();
+        memory.mapDevice(0xD0, 0xD3, device);
+
+        memory.write(0xD020, (byte) 0x06);
+        assertEquals(0x06, device.lastWritten);
+        assertEquals(0xD020, device.lastAddress);
+
+        assertEquals((byte) 0xD1, memory.read(0xD100));
+        assertEquals(1, device.reads);
+
+        //Neighbouring pages are still RAM
+        memory.write(0xD400, (byte) 0x01);
+        assertEquals(0x01, memory.read(0xD400));
+        assertEquals(1, device.reads);
+
+        memory.mapRam(0xD0, 0xD3);
+        assertEquals(0, memory.read(0xD020));
+    }
+
+    @Test
+    public void testRomIgnoresWrites() {
+        var memory = new MemoryBus();
+        memory.mapRom(0xE0, new byte[]{0x01, 0x02, 0x03});
+
+        memory.write(0xE000, (byte) 0x10);
+        memory.write(0xE001, new byte[]{0x20, 0x30}, 0, 2);
+
+        assertEquals(0x01, memory.read(0xE000));
+        assertEquals(0x02, memory.read(0xE001));
+        assertEquals(0x03, memory.read(0xE002));
+        assertEquals(0x00, memory.read(0xE003));
+    }
+
+    private static class RecordingDevice implements MemoryDevice {
+        int reads;
+        int lastAddress;
+        byte lastWritten;
+
+        @Override
+        public byte read(int address) {
+            reads++;
+            return (byte) (address >>> 8);
+        }
+
+        @Override
+        public void write(int address, byte value) {
+            lastAddress = address;
+            lastWritten = value;
+        }
+    }
+}
@@ -51,6 +51,26 @@ class OpCodeTest {
                 OpCode.findByByteValue(codeJMP));
     }
 
+    @Test
+    public void testTableMatchesMappings() {
+        for (int i=0x00; i <= 0xFF; i++) {
+            var entry = OpCodeTable.lookup((byte) i);
+            List<OpCode> codes = findCodesForByte(i);
+
+            if (codes.isEmpty()) {
+                assertNull(entry, "No entry expected for " + Integer.toHexString(i));
+            } else {
+                assertEquals(codes.head(), entry.opCode());
+                assertEquals(entry.addressingMode().size() + 1, entry.length());
+                assertTrue(entry.cycles() >= 2, "Every instruction takes at least 2 cycles");
+            }
+        }
+
+        assertEquals(4, OpCodeTable.lookup(LDA, AddressingMode.AbsoluteAddress).cycles());
+        assertEquals(7, OpCodeTable.lookup(OpCode.BRK, AddressingMode.Implied).cycles());
+        assertNull(OpCodeTable.lookup(JMP, AddressingMode.Value));
+    }
+
     @Test
     public void testNoUnimplementedCodes() {
         Processor processor = new Processor();
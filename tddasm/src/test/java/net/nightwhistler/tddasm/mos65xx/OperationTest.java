@@ -18,4 +18,22 @@ class OperationTest {
         assertEquals(new Operand.TwoByteAddress(AddressingMode.AbsoluteAddress, (byte) 0x33, (byte) 0x55),
                 operation.operand());
     }
+
+    @Test
+    public void testIndirectIndexedRoundTrip() {
+        Operation adc = Operation.fromBytes(bytes(0x71, 0xFB));
+        assertEquals(OpCode.ADC, adc.opCode());
+        assertEquals(AddressingMode.IndirectIndexedY, adc.addressingMode());
+        assertArrayEquals(bytes(0x71, 0xFB), adc.bytes());
+
+        Operation lda = Operation.fromBytes(bytes(0xA9, 0x10));
+        assertEquals(new Operand.ByteValue((byte) 0x10), lda.operand());
+    }
+
+    @Test
+    public void testCycles() {
+        assertEquals(2, Operation.operation(OpCode.LDA, Operand.value(0x01)).cycles());
+        assertEquals(4, Operation.operation(OpCode.LDA, Operand.address(0xC000).xIndexed()).cycles());
+        assertEquals(6, Operation.operation(OpCode.JSR, Operand.address(0xC000)).cycles());
+    }
 }
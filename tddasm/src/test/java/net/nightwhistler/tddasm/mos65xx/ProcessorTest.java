@@ -7,8 +7,12 @@ import org.mockito.junit.jupiter.MockitoExtension;
 import java.util.ArrayList;
 
 import static net.nightwhistler.tddasm.mos65xx.OpCode.ADC;
+import static net.nightwhistler.tddasm.mos65xx.OpCode.ASL;
 import static net.nightwhistler.tddasm.mos65xx.OpCode.BRK;
 import static net.nightwhistler.tddasm.mos65xx.OpCode.CLC;
+import static net.nightwhistler.tddasm.mos65xx.OpCode.CMP;
+import static net.nightwhistler.tddasm.mos65xx.OpCode.CPX;
+import static net.nightwhistler.tddasm.mos65xx.OpCode.CPY;
 import static net.nightwhistler.tddasm.mos65xx.OpCode.INC;
 import static net.nightwhistler.tddasm.mos65xx.OpCode.INY;
 import static net.nightwhistler.tddasm.mos65xx.OpCode.JMP;
@@ -16,10 +20,14 @@ import static net.nightwhistler.tddasm.mos65xx.OpCode.JSR;
 import static net.nightwhistler.tddasm.mos65xx.OpCode.LDA;
 import static net.nightwhistler.tddasm.mos65xx.OpCode.LDX;
 import static net.nightwhistler.tddasm.mos65xx.OpCode.LDY;
+import static net.nightwhistler.tddasm.mos65xx.OpCode.LSR;
+import static net.nightwhistler.tddasm.mos65xx.OpCode.ROL;
+import static net.nightwhistler.tddasm.mos65xx.OpCode.ROR;
 import static net.nightwhistler.tddasm.mos65xx.OpCode.RTS;
 import static net.nightwhistler.tddasm.mos65xx.OpCode.SBC;
 import static net.nightwhistler.tddasm.mos65xx.OpCode.SEC;
 import static net.nightwhistler.tddasm.mos65xx.OpCode.STA;
+import static net.nightwhistler.tddasm.mos65xx.Operand.accumulator;
 import static net.nightwhistler.tddasm.mos65xx.Operand.address;
 import static net.nightwhistler.tddasm.mos65xx.Operand.label;
 import static net.nightwhistler.tddasm.mos65xx.Operand.noValue;
@@ -28,6 +36,7 @@ import static net.nightwhistler.tddasm.mos65xx.Operand.zeroPage;
 import static net.nightwhistler.tddasm.mos65xx.Operation.operation;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.times;
@@ -193,6 +202,348 @@ class ProcessorTest {
 
     }
 
+    @Test
+    public void testLoopWithoutListeners() {
+        var processor = new Processor();
+
+        //Fill $3000-$300F with the values 15 down to 0
+        Program fillProg = new ProgramBuilder()
+                .ldx(value(0x10))
+                .label("loop")
+                .dex()
+                .txa()
+                .sta(address(0x3000).xIndexed())
+                .bne("loop")
+                .buildProgram();
+
+        processor.load(fillProg);
+        processor.run(fillProg.startAddress());
+
+        for (int i = 0; i < 0x10; i++) {
+            assertEquals((byte) i, processor.peekValue(0x3000 + i));
+        }
+
+        assertEquals(0, processor.getXRegisterValue());
+        assertTrue(processor.isZeroFlagSet());
+    }
+
+    @Test
+    public void testSelfModifyingCode() {
+        var processor = new Processor();
+
+        //The INC changes the operand of the LDA, so each pass loads a higher value
+        Program selfModifying = new ProgramBuilder()
+                .ldx(value(0x03))
+                .label("loop")
+                .lda(value(0x00)) //The operand is at $C003
+                .inc(address(0xC003))
+                .dex()
+                .bne("loop")
+                .buildProgram();
+
+        processor.load(selfModifying);
+        processor.run(selfModifying.startAddress());
+
+        assertEquals(2, processor.getAccumulatorValue());
+        assertEquals(3, processor.peekValue(0xC003));
+
+        var statistics = processor.getDecodeCacheStatistics();
+        assertEquals(3, statistics.invalidations());
+        assertTrue(statistics.hits() > 0, "The loop should be served from the cache");
+    }
+
+    @Test
+    public void testCycleCounting() {
+        var processor = new Processor();
+
+        Program program = new ProgramBuilder()
+                .ldx(value(0x01))               //2
+                .lda(address(0x10FF).xIndexed()) //4, +1 for crossing into $1100
+                .lda(address(0x1000).xIndexed()) //4
+                .sta(address(0x10FF).xIndexed()) //5, stores always take the extra cycle
+                .dex()                          //2
+                .beq("done")                    //2, +1 for the taken branch
+                .nop()
+                .label("done")
+                .brk()
+                .buildProgram();
+
+        processor.load(program);
+        processor.run(program.startAddress(), 5);
+
+        assertEquals(6, processor.getOperationCount());
+        assertEquals(2 + 5 + 4 + 5 + 2 + 3, processor.getCycleCount());
+    }
+
+    @Test
+    public void testInterruptsCostSevenCyclesAndOneOperation() {
+        var processor = new Processor();
+
+        Program program = new ProgramBuilder()
+                .cli()
+                .brk()
+                .buildProgram();
+
+        processor.load(program);
+        processor.setProgramCounter(program.startAddress());
+        processor.step();
+
+        //BRK
+        long operations = processor.getOperationCount();
+        long cycles = processor.getCycleCount();
+        processor.step();
+        assertEquals(operations + 1, processor.getOperationCount());
+        assertEquals(cycles + 7, processor.getCycleCount());
+
+        //IRQ, with interrupts enabled again
+        processor.setProgramCounter(program.startAddress());
+        processor.step();
+        operations = processor.getOperationCount();
+        cycles = processor.getCycleCount();
+        processor.requestInterrupt();
+        assertEquals(operations + 1, processor.getOperationCount());
+        assertEquals(cycles + 7, processor.getCycleCount());
+
+        //NMI, which goes through even though the IRQ disabled interrupts
+        operations = processor.getOperationCount();
+        cycles = processor.getCycleCount();
+        processor.nonMaskableInterrupt();
+        assertEquals(operations + 1, processor.getOperationCount());
+        assertEquals(cycles + 7, processor.getCycleCount());
+    }
+
+    @Test
+    public void testRunForCycles() {
+        var processor = new Processor();
+
+        Program program = new ProgramBuilder()
+                .label("loop")
+                .inx()        //2
+                .jmp("loop")  //3
+                .buildProgram();
+
+        processor.load(program);
+        processor.runForCycles(program.startAddress(), 50);
+
+        assertEquals(50, processor.getCycleCount());
+        assertEquals(20, processor.getOperationCount());
+        assertEquals(10, processor.getXRegisterValue());
+
+        //The last JMP starts within the budget, so the run goes 1 cycle over
+        processor.runForCycles(49);
+        assertEquals(100, processor.getCycleCount());
+        assertEquals(20, processor.getXRegisterValue());
+    }
+
+    @Test
+    public void testSnapshotRestore() {
+        var processor = new Processor();
+
+        Program program = new ProgramBuilder()
+                .ldx(value(0x10))
+                .label("loop")
+                .txa()
+                .sta(address(0x3000).xIndexed())
+                .pha()
+                .dex()
+                .bne("loop")
+                .buildProgram();
+
+        processor.load(program);
+        var snapshot = processor.snapshot();
+
+        processor.run(program.startAddress());
+        assertEquals((byte) 0x10, processor.peekValue(0x3010));
+        long operationCount = processor.getOperationCount();
+        long cycleCount = processor.getCycleCount();
+
+        processor.registerJavaRoutine(address(0xC002), new JavaRoutine() {
+            @Override
+            public Operand.TwoByteAddress location() {
+                return address(0xC002);
+            }
+
+            @Override
+            public int size() {
+                return 0;
+            }
+
+            @Override
+            public void execute(Processor processor) {
+                throw new IllegalStateException("Should be gone after restore");
+            }
+        });
+
+        processor.restore(snapshot);
+        assertEquals(0, processor.peekValue(0x3010));
+        assertEquals(0, processor.getOperationCount());
+        assertEquals(0, processor.getCycleCount());
+        assertFalse(processor.isBreakCommandFlagSet());
+
+        //Running again from the restored state gives exactly the same result
+        processor.run(program.startAddress());
+        assertEquals((byte) 0x10, processor.peekValue(0x3010));
+        assertEquals(operationCount, processor.getOperationCount());
+        assertEquals(cycleCount, processor.getCycleCount());
+    }
+
+    @Test
+    public void testRegisterJavaRoutineWhileRunning() {
+        var processor = new Processor();
+
+        //Without a JavaRoutine, $2100 is a BRK that would end the run
+        Program program = new ProgramBuilder()
+                .jsr(address(0x2000))
+                .ldx(value(0x20))
+                .label("loop")
+                .jsr(address(0x2100))
+                .dex()
+                .bne("loop")
+                .buildProgram();
+
+        processor.registerJavaRoutine(address(0x2000), new JavaRoutine() {
+            @Override
+            public Operand.TwoByteAddress location() {
+                return address(0x2000);
+            }
+
+            @Override
+            public int size() {
+                return 0;
+            }
+
+            @Override
+            public void execute(Processor processor) {
+                processor.registerJavaRoutine(address(0x2100), new JavaRoutine() {
+                    @Override
+                    public Operand.TwoByteAddress location() {
+                        return address(0x2100);
+                    }
+
+                    @Override
+                    public int size() {
+                        return 0;
+                    }
+
+                    @Override
+                    public void execute(Processor processor) {
+                        processor.pokeValue(0x3000, (byte) (processor.peekValue(0x3000) + 1));
+                    }
+
+                    @Override
+                    public Operation endWith() {
+                        return operation(RTS);
+                    }
+                });
+            }
+
+            @Override
+            public Operation endWith() {
+                return operation(RTS);
+            }
+        });
+
+        processor.load(program);
+        processor.run(program.startAddress());
+
+        assertEquals(0x20, processor.peekValue(0x3000));
+    }
+
+    @Test
+    public void testRestoreIntoOtherProcessor() {
+        var original = new Processor();
+        original.pokeValue(0x2000, (byte) 0x42);
+        original.performOperation(operation(LDA, value(0x99)));
+        var snapshot = original.snapshot();
+
+        var other = new Processor();
+        other.pokeValue(0x4000, (byte) 0x01);
+        other.restore(snapshot);
+
+        assertEquals((byte) 0x42, other.peekValue(0x2000));
+        assertEquals(0, other.peekValue(0x4000));
+        assertEquals((byte) 0x99, other.getAccumulatorValue());
+        assertTrue(other.isNegativeFlagSet());
+    }
+
+    @Test
+    public void testFork() {
+        var template = new Processor();
+        template.pokeValue(0x2000, (byte) 0x01);
+        template.performOperation(operation(LDA, value(0x42)));
+
+        var fork = template.fork();
+        assertEquals((byte) 0x42, fork.getAccumulatorValue());
+        assertEquals(0x01, fork.peekValue(0x2000));
+
+        //Writes on either side stay on that side
+        fork.pokeValue(0x2000, (byte) 0x02);
+        template.pokeValue(0x2001, (byte) 0x03);
+
+        assertEquals(0x01, template.peekValue(0x2000));
+        assertEquals(0x02, fork.peekValue(0x2000));
+        assertEquals(0x00, fork.peekValue(0x2001));
+    }
+
+    @Test
+    public void testForksAreSmall() {
+        var template = new Processor();
+        template.pokeValue(0x2000, (byte) 0x01);
+        var forks = new Processor[1000];
+
+        var threads = (com.sun.management.ThreadMXBean) java.lang.management.ManagementFactory.getThreadMXBean();
+        long before = threads.getCurrentThreadAllocatedBytes();
+        for (int i = 0; i < forks.length; i++) {
+            forks[i] = template.fork();
+        }
+        long perFork = (threads.getCurrentThreadAllocatedBytes() - before) / forks.length;
+
+        //Everything a fork allocates, including the copies it throws away again, so 100k of them fit in 600 MB
+        assertTrue(perFork < 6000, "A fork allocates " + perFork + " bytes");
+    }
+
+    @Test
+    public void testDeviceReadsHappenDuringExecution() {
+        var processor = new Processor();
+
+        //A raster register that counts up on every read, like $D012
+        processor.mapDevice(address(0xD000), address(0xD3FF), new MemoryDevice() {
+            int raster = 0;
+            byte border = 0;
+
+            @Override
+            public byte read(int address) {
+                return address == 0xD012 ? (byte) raster++ : border;
+            }
+
+            @Override
+            public void write(int address, byte value) {
+                border = value;
+            }
+        });
+
+        Program program = new ProgramBuilder()
+                .label("wait")
+                .lda(address(0xD012))
+                .cmp(value(0x10))
+                .bne("wait")
+                .sta(address(0xD020))
+                .buildProgram();
+
+        processor.load(program);
+        processor.run(program.startAddress());
+
+        assertEquals(0x10, processor.getAccumulatorValue());
+        assertEquals(0x10, processor.peekValue(0xD020));
+    }
+
+    @Test
+    public void testMappingMustBePageAligned() {
+        var processor = new Processor();
+        assertThrows(IllegalArgumentException.class,
+                () -> processor.mapRom(address(0xE001), new byte[]{0x01}));
+    }
+
     @Test
     public void testPushPop() {
         Processor processor = new Processor();
@@ -221,6 +572,103 @@ class ProcessorTest {
         assertEquals(java.util.List.of(BRK), events);
     }
 
+    @Test
+    public void testTypedListenersOnlyReceiveTheirEvents() {
+        Processor processor = new Processor();
+        java.util.List<ProcessorEvent.JumpedTo> jumps = new ArrayList<>();
+        java.util.List<ProcessorEvent.MemoryLocationChanged> memoryEvents = new ArrayList<>();
+
+        processor.registerEventListener(ProcessorEvent.JumpedTo.class, jumps::add);
+        processor.registerEventListener(ProcessorEvent.MemoryLocationChanged.class, memoryEvents::add);
+
+        Program program = new ProgramBuilder()
+                .jsr("sub_routine")
+                .brk()
+                .label("sub_routine")
+                .lda(value(0x33))
+                .sta(address(0x2000))
+                .rts()
+                .buildProgram();
+
+        processor.load(program);
+        processor.run(program.startAddress());
+
+        //The JSR and the RTS
+        assertEquals(2, jumps.size());
+        assertEquals(io.vavr.collection.List.of(new Label("sub_routine")), jumps.get(0).labels());
+        assertEquals(io.vavr.collection.List.empty(), jumps.get(1).labels());
+        assertEquals(java.util.List.of(new ProcessorEvent.MemoryLocationChanged(address(0x2000), (byte) 0, (byte) 0x33)),
+                memoryEvents);
+    }
+
+    @Test
+    public void testJumpedToHasAllLabelsAtTheTarget() {
+        Processor processor = new Processor();
+        java.util.List<ProcessorEvent.JumpedTo> jumps = new ArrayList<>();
+        processor.registerEventListener(ProcessorEvent.JumpedTo.class, jumps::add);
+
+        Program program = new ProgramBuilder()
+                .jsr("entry")
+                .brk()
+                .label("entry")
+                .label("alias")
+                .rts()
+                .buildProgram();
+
+        processor.load(program);
+        var start = processor.snapshot();
+        processor.run(program.startAddress());
+
+        var expected = io.vavr.collection.List.of(new Label("entry"), new Label("alias"));
+        assertEquals(expected, jumps.get(0).labels());
+
+        //A snapshot of another Program brings its own labels back
+        processor.load(new ProgramBuilder().label("other").brk().buildProgram());
+        processor.restore(start);
+        jumps.clear();
+        processor.run(program.startAddress());
+        assertEquals(expected, jumps.get(0).labels());
+    }
+
+    @Test
+    public void testFilteredListeners() {
+        Processor processor = new Processor();
+        java.util.List<ProcessorEvent.MemoryLocationChanged> writes = new ArrayList<>();
+        java.util.List<ProcessorEvent.OperationPerformed> stores = new ArrayList<>();
+        java.util.List<ProcessorEvent.OperationPerformed> pageOne = new ArrayList<>();
+
+        processor.registerEventListener(ProcessorEvent.MemoryLocationChanged.class,
+                EventFilter.addresses(address(0x2010), address(0x201F)), writes::add);
+        processor.registerEventListener(ProcessorEvent.OperationPerformed.class,
+                EventFilter.opCodes(STA), stores::add);
+        processor.registerEventListener(ProcessorEvent.OperationPerformed.class,
+                EventFilter.addressMask(0xFF00, 0xC100).and(EventFilter.opCodes(INY, LDA)), pageOne::add);
+
+        Program program = new ProgramBuilder()
+                .ldy(value(0x00))
+                .label("loop")
+                .tya()
+                .sta(address(0x2000).yIndexed())
+                .iny()
+                .cpy(value(0x40))
+                .bne("loop")
+                .jmp(address(0xC100))
+                .buildProgram();
+
+        processor.load(program);
+        //INY, LDA #$01, INX
+        processor.pokeValue(0xC100, (byte) 0xC8);
+        processor.pokeValue(0xC101, (byte) 0xA9);
+        processor.pokeValue(0xC102, (byte) 0x01);
+        processor.pokeValue(0xC103, (byte) 0xE8);
+        processor.run(program.startAddress());
+
+        assertEquals(16, writes.size());
+        assertEquals(new ProcessorEvent.MemoryLocationChanged(address(0x2010), (byte) 0, (byte) 0x10), writes.get(0));
+        assertEquals(0x40, stores.size());
+        assertEquals(java.util.List.of(INY, LDA), pageOne.stream().map(e -> e.operation().opCode()).toList());
+    }
+
     @Test
     public void testSubroutine() {
         Processor processor = new Processor();
@@ -345,6 +793,88 @@ class ProcessorTest {
 
     }
 
+    @Test
+    public void testCompareSetsCarryWhenRegisterIsAtLeastAsLarge() {
+        Processor processor = new Processor();
+        processor.performOperation(operation(LDA, value(0x80)));
+        processor.performOperation(operation(CMP, value(0x01)));
+        assertTrue(processor.isCarryFlagSet(), "$80 is at least $01 unsigned");
+        assertFalse(processor.isZeroFlagSet());
+        assertFalse(processor.isNegativeFlagSet());
+
+        processor.performOperation(operation(LDX, value(0x10)));
+        processor.performOperation(operation(CPX, value(0x10)));
+        assertTrue(processor.isCarryFlagSet(), "carry flag should be set when equal");
+        assertTrue(processor.isZeroFlagSet());
+
+        processor.performOperation(operation(LDY, value(0x01)));
+        processor.performOperation(operation(CPY, value(0x80)));
+        assertFalse(processor.isCarryFlagSet(), "$01 is less than $80 unsigned");
+        assertTrue(processor.isNegativeFlagSet());
+
+        //Compares only change the flags
+        assertEquals((byte) 0x80, processor.getAccumulatorValue());
+        assertEquals(0x10, processor.getXRegisterValue());
+        assertEquals(0x01, processor.getYRegisterValue());
+    }
+
+    @Test
+    public void testShiftsWithHighBitSet() {
+        Processor processor = new Processor();
+        processor.performOperation(operation(LDA, value(0x81)));
+        processor.performOperation(operation(LSR, accumulator()));
+
+        assertEquals(0x40, processor.getAccumulatorValue());
+        assertTrue(processor.isCarryFlagSet(), "carry flag should be set");
+
+        processor.performOperation(operation(LDA, value(0x82)));
+        processor.performOperation(operation(ROR, accumulator()));
+
+        assertEquals((byte) 0xC1, processor.getAccumulatorValue());
+        assertFalse(processor.isCarryFlagSet(), "carry flag should not be set");
+
+        processor.performOperation(operation(LDA, value(0xC0)));
+        processor.performOperation(operation(ASL, accumulator()));
+
+        assertEquals((byte) 0x80, processor.getAccumulatorValue());
+        assertTrue(processor.isCarryFlagSet(), "carry flag should be set");
+
+        processor.performOperation(operation(ROL, accumulator()));
+
+        assertEquals(0x01, processor.getAccumulatorValue());
+        assertTrue(processor.isCarryFlagSet(), "carry flag should be set");
+    }
+
+    @Test
+    public void testShiftsOfNegativeBytesInMemory() {
+        Processor processor = new Processor();
+
+        //$C0 is negative as a Java byte: the carry comes from bit 7, not from the sign
+        processor.pokeValue(0x2000, (byte) 0xC0);
+        processor.performOperation(operation(ASL, address(0x2000)));
+        assertEquals((byte) 0x80, processor.peekValue(0x2000));
+        assertTrue(processor.isCarryFlagSet(), "carry flag should be set");
+
+        //With the carry set, ROL of $80 gives $01, and carry out again
+        processor.performOperation(operation(ROL, address(0x2000)));
+        assertEquals((byte) 0x01, processor.peekValue(0x2000));
+        assertTrue(processor.isCarryFlagSet(), "carry flag should be set");
+
+        //LSR shifts in a zero, not the sign bit
+        processor.performOperation(operation(CLC, noValue()));
+        processor.pokeValue(0x2000, (byte) 0xFF);
+        processor.performOperation(operation(LSR, address(0x2000)));
+        assertEquals((byte) 0x7F, processor.peekValue(0x2000));
+        assertTrue(processor.isCarryFlagSet(), "carry flag should be set");
+
+        //ROR shifts in the carry, and only the carry
+        processor.performOperation(operation(CLC, noValue()));
+        processor.pokeValue(0x2000, (byte) 0xFE);
+        processor.performOperation(operation(ROR, address(0x2000)));
+        assertEquals((byte) 0x7F, processor.peekValue(0x2000));
+        assertFalse(processor.isCarryFlagSet(), "carry flag should not be set");
+    }
+
     @Test
     public void testInc() {
         Processor processor = new Processor();
@@ -0,0 +1,141 @@
+package net.nightwhistler.tddasm.mos65xx;
+
+import io.vavr.collection.List;
+import net.nightwhistler.tddasm.c64.kernal.ChrOut;
+import org.junit.jupiter.api.Test;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+import static net.nightwhistler.tddasm.c64.kernal.ChrOut.CHROUT_ADDRESS;
+import static net.nightwhistler.tddasm.mos65xx.Operand.address;
+import static net.nightwhistler.tddasm.mos65xx.Operand.value;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ProfilerTest {
+
+    //Calls plot 10 times, and prints a character once
+    private final Program program = new ProgramBuilder()
+            .ldy(value(10))
+            .label("loop")
+            .jsr("plot")
+            .dey()
+            .bne("loop")
+            .lda(value('*'))
+            .jsr(CHROUT_ADDRESS)
+            .brk()
+            .label("plot")
+            .lda(value(0x01))
+            .sta(address(0x2000))
+            .rts()
+            .buildProgram();
+
+    @Test
+    public void testCountsPerLabel() {
+        var processor = newProcessor();
+        long cyclesBefore = processor.getCycleCount();
+
+        try (var profiler = Profiler.attach(processor)) {
+            processor.run(program.startAddress());
+
+            var plot = profiler.label(program, "plot").get();
+            assertEquals(10, plot.entries());
+            assertEquals(30, plot.executions());
+            //LDA #, STA absolute and RTS
+            assertEquals(10 * (2 + 4 + 6), plot.cycles());
+            assertEquals(12.0, plot.cyclesPerEntry());
+
+            var loop = profiler.label(program, "loop").get();
+            assertEquals(10, loop.entries());
+
+            assertEquals(processor.getCycleCount() - cyclesBefore, profiler.totalCycles());
+            //A JavaRoutine counts as a single execution, including the RTS it ends with
+            assertEquals(processor.getOperationCount(), profiler.totalExecutions());
+            assertEquals(1, profiler.executionsAt(CHROUT_ADDRESS.toInt()));
+        }
+    }
+
+    @Test
+    public void testHotSpotsAreSorted() {
+        var processor = newProcessor();
+
+        try (var profiler = Profiler.attach(processor)) {
+            processor.run(program.startAddress());
+
+            var labels = profiler.byLabel(program);
+            assertEquals(List.of("loop", "plot", "$c000"), labels.map(Profiler.HotSpot::name));
+            for (int i = 1; i < labels.size(); i++) {
+                assertTrue(labels.get(i - 1).cycles() >= labels.get(i).cycles());
+            }
+
+            var hottest = profiler.byElement(program).head();
+            assertTrue(hottest.name().startsWith("JSR plot"), hottest.name());
+            assertEquals(60, hottest.cycles());
+
+            var report = new StringWriter();
+            profiler.printReport(new PrintWriter(report), program, 3);
+            assertTrue(report.toString().contains("JSR plot"), report.toString());
+        }
+    }
+
+    @Test
+    public void testAttachToRunningProcessor() {
+        var processor = newProcessor();
+        processor.run(program.startAddress(), 5);
+
+        var profiler = Profiler.attach(processor);
+        long cyclesBefore = processor.getCycleCount();
+        processor.run();
+        profiler.close();
+
+        assertEquals(processor.getCycleCount() - cyclesBefore, profiler.totalCycles());
+        assertTrue(profiler.label(program, "plot").get().entries() < 10);
+
+        //Closed, so this isn't counted
+        long executions = profiler.totalExecutions();
+        processor.run(program.startAddress());
+        assertEquals(executions, profiler.totalExecutions());
+    }
+
+    @Test
+    public void testCyclesPerCallIncludeSubroutines() {
+        Program nested = new ProgramBuilder()
+                .jsr("outer")
+                .jsr("outer")
+                .brk()
+                .label("outer")
+                .lda(value(0x01))
+                .jsr("inner")
+                .rts()
+                .label("inner")
+                .sta(address(0x2000))
+                .rts()
+                .buildProgram();
+
+        var processor = new Processor();
+        processor.load(nested);
+
+        try (var profiler = Profiler.attach(processor)) {
+            processor.run(nested.startAddress());
+
+            var outer = profiler.label(nested, "outer").get();
+            assertEquals(2, outer.calls());
+            //LDA #, JSR and RTS
+            assertEquals(2 + 6 + 6, outer.cyclesPerEntry());
+            //Plus STA absolute and RTS in inner
+            assertEquals(2 + 6 + 6 + 4 + 6, outer.cyclesPerCall());
+
+            var inner = profiler.label(nested, "inner").get();
+            assertEquals(inner.cyclesPerEntry(), inner.cyclesPerCall());
+            assertEquals(2 * (4 + 6), profiler.inclusiveCyclesOf(inner.address().toInt()));
+        }
+    }
+
+    private Processor newProcessor() {
+        var processor = new Processor();
+        processor.registerJavaRoutine(new ChrOut());
+        processor.load(program);
+        return processor;
+    }
+}
@@ -66,6 +66,20 @@ class ProgramBuilderTest {
         assertArrayEquals(bytes(01, 02, 03, 65, 66, 67, 33), dataElement.bytes());
     }
 
+    @Test
+    public void testCarryBranchesAndEorOperands() {
+        Program program = new ProgramBuilder()
+                .label("start")
+                .eor(value(0xFF))
+                .eor(Operand.zeroPage(0xFB))
+                .bcc("start")
+                .bcs("start")
+                .buildProgram();
+
+        //EOR #$FF, EOR $FB, then branches back over 6 and 8 bytes
+        assertArrayEquals(bytes(0x49, 0xFF, 0x45, 0xFB, 0x90, -6, 0xB0, -8), program.compile());
+    }
+
     @Test
     public void testEveryOpCodeShouldHaveABuilderMethod() throws InvocationTargetException, IllegalAccessException {
         List<Method> methods = List.of(ProgramBuilder.class.getMethods());
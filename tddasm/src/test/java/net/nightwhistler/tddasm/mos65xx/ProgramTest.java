@@ -40,6 +40,14 @@ class ProgramTest {
         assertEquals(address(0x800B), testProgram.addressOfElement(7)); //jmp
     }
 
+    @Test
+    public void testOffsetsAreBuiltOnce() {
+        var offsets = testProgram.offsets();
+        assertSame(offsets, testProgram.offsets());
+        assertEquals(testProgram.elements(), offsets.map(offset -> offset._2));
+        assertEquals(address(0x8005), offsets.get(4)._1);
+    }
+
     @Test
     public void tesFindElements() {
         assertEquals(List.empty(), testProgram.elementsForLocation(address(0x4000)));
@@ -108,5 +116,72 @@ class ProgramTest {
 
     }
 
+    @Test
+    public void testCompiledBytesAreACopy() {
+        byte[] compiledProgram = testProgram.compile();
+        compiledProgram[0] = 0x00;
+
+        assertEquals((byte) 0xA9, testProgram.compile()[0]);
+    }
+
+    @Test
+    public void testLargeProgram() {
+        //Unrolled code with thousands of labels, each branching back to the one before
+        var builder = new ProgramBuilder().label("block_0");
+        for (int i = 1; i <= 5000; i++) {
+            builder = builder.label("block_" + i)
+                    .lda(value(i & 0xFF))
+                    .sta(address(0x2000 + i))
+                    .bne("block_" + (i - 1));
+        }
+        Program program = new Program(address(0x1000), builder.buildElements());
+
+        assertEquals(some(address(0x1000 + 4999 * 7)), program.resolveLabelAbsolute("block_5000"));
+        byte[] compiledProgram = program.compile();
+        assertEquals(5000 * 7, compiledProgram.length);
+        //The last BNE goes back to the start of the block before it
+        assertEquals((byte) -14, compiledProgram[compiledProgram.length - 1]);
+    }
 
+    @Test
+    public void testFromBinaryLabelsJumpTargets() {
+        byte[] binary = ByteUtils.bytes(
+                0x00, 0xC0,
+                0x20, 0x06, 0xC0, //jsr $c006
+                0x4C, 0x00, 0xC0, //jmp $c000
+                0x60              //rts
+        );
+
+        Program program = Program.fromBinary(binary);
+
+        assertEquals(List.of(
+                new Label("jump_dest_0"),
+                new OperationProvider(OpCode.JSR, address(0xC006)),
+                new OperationProvider(OpCode.JMP, address(0xC000)),
+                new Label("subroutine_0"),
+                new OperationProvider(OpCode.RTS, Operand.noValue())
+        ), program.elements());
+    }
+
+    @Test
+    public void testFromBinaryOfLargeProgram() {
+        var builder = new ProgramBuilder();
+        for (int i = 0; i < 5000; i++) {
+            builder = builder.jsr("routine_" + i);
+        }
+        for (int i = 0; i < 5000; i++) {
+            builder = builder.label("routine_" + i).rts();
+        }
+        Program original = builder.buildProgram();
+        byte[] compiled = original.compile();
+        byte[] binary = new byte[compiled.length + 2];
+        binary[0] = original.startAddress().lowByte();
+        binary[1] = original.startAddress().highByte();
+        System.arraycopy(compiled, 0, binary, 2, compiled.length);
+
+        Program program = Program.fromBinary(binary);
+
+        assertEquals(15000, program.elements().size());
+        assertEquals(some(address(0xC000 + 5000 * 3 + 4999)), program.resolveLabelAbsolute("subroutine_4999"));
+    }
 }
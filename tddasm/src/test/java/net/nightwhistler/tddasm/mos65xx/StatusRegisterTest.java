@@ -6,6 +6,46 @@ import static org.junit.jupiter.api.Assertions.*;
 
 class StatusRegisterTest {
 
+    @Test
+    public void testResultFlags() {
+        StatusRegister statusRegister = new StatusRegister();
+
+        statusRegister.setResultFlags((byte) 0x00);
+        assertTrue(statusRegister.isZeroFlagSet());
+        assertFalse(statusRegister.isNegativeFlagSet());
+
+        statusRegister.setResultFlags((byte) 0x80);
+        assertFalse(statusRegister.isZeroFlagSet());
+        assertTrue(statusRegister.isNegativeFlagSet());
+
+        //Not something a result can do, but PLP and RTI can
+        statusRegister.setZeroFlag(true);
+        assertTrue(statusRegister.isZeroFlagSet());
+        assertTrue(statusRegister.isNegativeFlagSet());
+        assertEquals(0b10100010, Byte.toUnsignedInt(statusRegister.toByte()));
+    }
+
+    @Test
+    public void testOverflowFlags() {
+        StatusRegister statusRegister = new StatusRegister();
+
+        statusRegister.setOverflowFlags((byte) 0x7F, (byte) 0x80);
+        assertTrue(statusRegister.isOverFlowFlagSet());
+
+        statusRegister.setOverflowFlags((byte) 0x01, (byte) 0x02);
+        assertFalse(statusRegister.isOverFlowFlagSet());
+    }
+
+    @Test
+    public void testRoundTrip() {
+        StatusRegister statusRegister = new StatusRegister();
+        for (int i = 0; i < 256; i++) {
+            statusRegister.setFrom((byte) i);
+            //Bit 5 is unused and always reads as 1
+            assertEquals(i | 0b100000, Byte.toUnsignedInt(statusRegister.toByte()));
+        }
+    }
+
     @Test
     public void testToByte() {
         StatusRegister statusRegister = new StatusRegister();
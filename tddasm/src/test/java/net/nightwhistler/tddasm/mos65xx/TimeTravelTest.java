@@ -0,0 +1,192 @@
+package net.nightwhistler.tddasm.mos65xx;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+
+import static net.nightwhistler.tddasm.mos65xx.Operand.address;
+import static net.nightwhistler.tddasm.mos65xx.Operand.value;
+import static net.nightwhistler.tddasm.mos65xx.Operand.zeroPage;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TimeTravelTest {
+
+    //Fills a page through a pointer in $FB/$FC, calling a subroutine for every byte
+    private final Program program = new ProgramBuilder()
+            .lda(value(0x00))
+            .sta(zeroPage(0xFB))
+            .lda(value(0x30))
+            .sta(zeroPage(0xFC))
+            .ldy(value(0x00))
+            .label("loop")
+            .jsr("store")
+            .iny()
+            .bne("loop")
+            .label("clobber")
+            .lda(value(0x40))
+            .sta(zeroPage(0xFC))
+            .ldx(value(0x00))
+            .label("delay")
+            .dex()
+            .bne("delay")
+            .brk()
+            .label("store")
+            .tya()
+            .sta(zeroPage(0xFB).indirectIndexedY())
+            .rts()
+            .buildProgram();
+
+    @Test
+    public void testStepBackUndoesEveryStep() {
+        var processor = newProcessor();
+        processor.enableTimeTravel();
+
+        java.util.List<State> states = new ArrayList<>();
+        states.add(State.of(processor));
+        while (!processor.isBreakCommandFlagSet()) {
+            processor.step();
+            states.add(State.of(processor));
+        }
+
+        for (int i = states.size() - 2; i >= 0; i--) {
+            assertTrue(processor.stepBack());
+            assertEquals(states.get(i), State.of(processor), "Step " + i);
+        }
+        assertFalse(processor.stepBack());
+    }
+
+    @Test
+    public void testFindWhoClobberedAPointer() {
+        var processor = newProcessor();
+        processor.enableTimeTravel();
+        processor.run(program.startAddress());
+        assertEquals(0x40, processor.peekValue(0xFC));
+
+        byte pointer = processor.peekValue(0xFC);
+        assertTrue(processor.runBackUntil(p -> p.peekValue(0xFC) != pointer));
+
+        int culprit = program.resolveLabelAbsolute("clobber").get().toInt() + 2;
+        assertEquals(culprit, processor.getProgramCounter());
+        assertEquals(0x30, processor.peekValue(0xFC));
+
+        //Going forward again gives the same result
+        processor.run();
+        assertEquals(0x40, processor.peekValue(0xFC));
+    }
+
+    @Test
+    public void testRunBackTo() {
+        var processor = newProcessor();
+        processor.enableTimeTravel();
+        processor.run(program.startAddress());
+
+        assertTrue(processor.runBackTo(program.resolveLabelAbsolute("store").get()));
+        assertEquals((byte) 0xFF, processor.getYRegisterValue());
+        assertEquals((byte) 0xFE, processor.peekValue(0x30FE));
+        assertEquals((byte) 0x00, processor.peekValue(0x30FF));
+
+        assertFalse(processor.runBackTo(address(0x1234)));
+        assertEquals(program.startAddress().toInt(), processor.getProgramCounter());
+    }
+
+    @Test
+    public void testGoBackFurtherThanTheUndoLog() {
+        var processor = newProcessor();
+        var template = processor.fork();
+
+        processor.enableTimeTravel(16, 100);
+        processor.run(program.startAddress());
+        long steps = processor.getOperationCount();
+
+        for (long target = steps - 1; target >= 0; target -= 37) {
+            while (processor.getOperationCount() > target) {
+                assertTrue(processor.stepBack());
+            }
+
+            var expected = template.fork();
+            expected.setProgramCounter(program.startAddress());
+            while (expected.getOperationCount() < target) {
+                expected.step();
+            }
+            assertEquals(State.of(expected), State.of(processor), "Step " + target);
+            assertArrayEquals(expected.readMemory(0x0000, 0xFFFF), processor.readMemory(0x0000, 0xFFFF));
+        }
+    }
+
+    @Test
+    public void testRunOutOfSnapshots() {
+        var processor = newProcessor();
+        processor.setProgramCounter(program.startAddress());
+        processor.enableTimeTravel(4, 4);
+        for (int i = 0; i < 400; i++) {
+            processor.step();
+        }
+
+        assertFalse(processor.runBackUntil(p -> false));
+        //The oldest of the 32 snapshots, taken every 4 steps, was taken before step 396 - 31 * 4
+        assertEquals(272, processor.getOperationCount());
+        assertFalse(processor.stepBack());
+    }
+
+    @Test
+    public void testListenersDontHearAboutStepsAgain() {
+        var processor = newProcessor();
+        java.util.List<ProcessorEvent.OperationPerformed> operations = new ArrayList<>();
+        int[] observed = new int[1];
+        processor.registerEventListener(ProcessorEvent.OperationPerformed.class, operations::add);
+        processor.addExecutionObserver((p, address, opCode, operand) -> observed[0]++);
+
+        processor.enableTimeTravel(16, 100);
+        processor.run(program.startAddress());
+        int heard = operations.size();
+        int seen = observed[0];
+
+        //Far enough back that stepping back executes forward from a snapshot
+        for (int i = 0; i < 50; i++) {
+            assertTrue(processor.stepBack());
+        }
+
+        assertEquals(heard, operations.size());
+        assertEquals(seen, observed[0]);
+    }
+
+    @Test
+    public void testLoadingStartsHistoryOver() {
+        var processor = newProcessor();
+        processor.enableTimeTravel();
+        processor.run(program.startAddress());
+
+        processor.load(program);
+        assertFalse(processor.stepBack());
+    }
+
+    @Test
+    public void testNotEnabled() {
+        var processor = newProcessor();
+        processor.step();
+
+        assertThrows(IllegalStateException.class, processor::stepBack);
+    }
+
+    private Processor newProcessor() {
+        var processor = new Processor();
+        processor.load(program);
+        return processor;
+    }
+
+    private record State(int programCounter, byte accumulator, byte xRegister, byte yRegister, int stackPointer,
+                         byte status, long operationCount, long cycleCount, byte pointerLow, byte pointerHigh,
+                         byte stackTop) {
+
+        static State of(Processor processor) {
+            return new State(processor.getProgramCounter(), processor.getAccumulatorValue(),
+                    processor.getXRegisterValue(), processor.getYRegisterValue(), processor.getStackPointer(),
+                    processor.getStatusRegisterValue(), processor.getOperationCount(), processor.getCycleCount(),
+                    processor.peekValue(0xFB), processor.peekValue(0xFC), processor.peekValue(0x01F3));
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package net.nightwhistler.tddasm.mos65xx;
+
+import io.vavr.control.Option;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+
+import static net.nightwhistler.tddasm.mos65xx.Operand.address;
+import static net.nightwhistler.tddasm.mos65xx.Operand.value;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TraceRecorderTest {
+
+    //Writes the pass number to $2000-$20FF, 100 times. That's more than one chunk of steps and writes.
+    private final Program program = new ProgramBuilder()
+            .ldy(value(0x00))
+            .label("outer")
+            .ldx(value(0x00))
+            .tya()
+            .label("inner")
+            .sta(address(0x2000).xIndexed())
+            .inx()
+            .bne("inner")
+            .iny()
+            .cpy(value(100))
+            .bne("outer")
+            .buildProgram();
+
+    //LDY, 100 passes of 773 steps and the BRK
+    private static final long STEPS = 1 + 100 * (2 + 256 * 3 + 3) + 1;
+
+    @Test
+    public void testRecording() {
+        var trace = record(new TraceRecorder());
+
+        assertEquals(STEPS, trace.steps());
+        assertTrue(trace.steps() > TraceRecorder.CHUNK_SIZE);
+        //Every STA, and the BRK pushing the program counter and status
+        assertEquals(100 * 256 + 3, trace.writes());
+
+        assertEquals(100 * 256, trace.count(OpCode.STA));
+        assertEquals(100, trace.count(OpCode.LDX));
+        assertEquals(100 * 256, trace.countAt(0xC005));
+
+        assertEquals(0xC005, trace.programCounterAt(3));
+        assertEquals(OpCode.STA, trace.opCodeAt(3));
+        assertEquals(0x2000, trace.operandAt(3));
+        assertEquals(OpCode.BRK, trace.opCodeAt(STEPS - 1));
+    }
+
+    @Test
+    public void testRegistersAt() {
+        var trace = record(new TraceRecorder());
+
+        //The INX after the first STA
+        var registers = trace.registersAt(4);
+        assertEquals(new TraceRecorder.Registers(0xC008, (byte) 0, (byte) 1, (byte) 0, 0xF3, (byte) 0b00100000),
+                registers);
+
+        assertEquals(2 + 2 + 2 + 5, trace.cycleAt(3));
+    }
+
+    @Test
+    public void testWrites() {
+        var trace = record(new TraceRecorder());
+
+        assertEquals(Option.some(new TraceRecorder.Write(1 + 99 * 773 + 2 + 255 * 3, 0x20FF, (byte) 98, (byte) 99)),
+                trace.lastWriteTo(0x20FF));
+        assertEquals(Option.none(), trace.lastWriteTo(0x2100));
+
+        var writes = trace.writesTo(0x2010, 0x2011);
+        assertEquals(200, writes.size());
+        assertEquals(new TraceRecorder.Write(3 + 16 * 3, 0x2010, (byte) 0, (byte) 0), writes.head());
+        assertEquals((byte) 99, writes.last().newValue());
+    }
+
+    @Test
+    public void testSpillToFile(@TempDir Path directory) {
+        try (var spilled = TraceRecorder.spillingTo(directory.resolve("trace.bin"))) {
+            var trace = record(spilled);
+            var onHeap = record(new TraceRecorder());
+
+            assertEquals(onHeap.steps(), trace.steps());
+            for (long step = 0; step < trace.steps(); step += 997) {
+                assertEquals(onHeap.registersAt(step), trace.registersAt(step));
+                assertEquals(onHeap.cycleAt(step), trace.cycleAt(step));
+            }
+            assertEquals(onHeap.writesTo(0x2080, 0x2080), trace.writesTo(0x2080, 0x2080));
+        }
+    }
+
+    @Test
+    public void testNoSuchStep() {
+        var trace = record(new TraceRecorder());
+        assertThrows(IndexOutOfBoundsException.class, () -> trace.registersAt(STEPS));
+        assertThrows(IndexOutOfBoundsException.class, () -> trace.writeAt(-1));
+    }
+
+    private TraceRecorder record(TraceRecorder trace) {
+        var processor = new Processor();
+        processor.load(program);
+        processor.addExecutionObserver(trace);
+        processor.run(program.startAddress());
+        return trace;
+    }
+}
@@ -0,0 +1,268 @@
+package net.nightwhistler.tddasm.mos65xx;
+
+import net.nightwhistler.tddasm.c64.kernal.ChrOut;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+
+import static net.nightwhistler.tddasm.c64.kernal.ChrOut.CHROUT_ADDRESS;
+import static net.nightwhistler.tddasm.mos65xx.Operand.address;
+import static net.nightwhistler.tddasm.mos65xx.Operand.value;
+import static net.nightwhistler.tddasm.mos65xx.Operand.zeroPage;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TraceReplayerTest {
+
+    //Prints a character 256 times, while counting in a 16 bit counter and filling a page, then waits a while
+    private final Program program = new ProgramBuilder()
+            .ldx(value(0x00))
+            .label("loop")
+            .txa()
+            .sta(address(0x3000).xIndexed())
+            .inc(zeroPage(0xFB))
+            .bne("skip")
+            .inc(zeroPage(0xFC))
+            .label("skip")
+            .lda(value('*'))
+            .jsr(CHROUT_ADDRESS)
+            .inx()
+            .bne("loop")
+            .ldy(value(0x10))
+            .label("outer")
+            .dex()
+            .bne("outer")
+            .dey()
+            .bne("outer")
+            .buildProgram();
+
+    @Test
+    public void testReplayMatchesRecording(@TempDir Path directory) {
+        Path file = directory.resolve("run.trace");
+
+        var processor = newProcessor();
+        var recorder = new TraceRecorder();
+        processor.addExecutionObserver(recorder);
+        try (var writer = TraceWriter.record(processor, file, 1000)) {
+            processor.run(program.startAddress());
+            assertEquals(recorder.steps(), writer.steps());
+        }
+
+        try (var replayer = TraceReplayer.open(file)) {
+            assertEquals(recorder.steps(), replayer.steps());
+            assertTrue(replayer.keyframes() > 3);
+
+            for (long step = 1; step < recorder.steps(); step += 777) {
+                var replayed = replayer.processorAt(step);
+                var registers = recorder.registersAt(step - 1);
+                assertEquals(registers.accumulator(), replayed.getAccumulatorValue());
+                assertEquals(registers.xRegister(), replayed.getXRegisterValue());
+                assertEquals(registers.yRegister(), replayed.getYRegisterValue());
+                assertEquals(registers.stackPointer(), replayed.getStackPointer());
+                assertEquals(registers.statusRegister(), replayed.getStatusRegisterValue());
+                assertEquals(recorder.cycleAt(step - 1), replayed.getCycleCount());
+            }
+
+            var end = replayer.processorAt(replayer.steps());
+            assertSameState(processor, end);
+        }
+    }
+
+    @Test
+    public void testContinueFromReplayedState(@TempDir Path directory) {
+        Path file = directory.resolve("run.trace");
+
+        var processor = newProcessor();
+        try (var writer = TraceWriter.record(processor, file, 500)) {
+            processor.run(program.startAddress());
+        }
+
+        try (var replayer = TraceReplayer.open(file)) {
+            //Somewhere in the delay loop. ChrOut keeps the cursor position in Java, so that can't be replayed.
+            var replayed = replayer.processorAt(5000);
+            replayed.run();
+
+            assertSameState(processor, replayed);
+        }
+    }
+
+    @Test
+    public void testVisitRecords(@TempDir Path directory) {
+        Path file = directory.resolve("run.trace");
+
+        var processor = newProcessor();
+        var recorder = new TraceRecorder();
+        processor.addExecutionObserver(recorder);
+        try (var writer = TraceWriter.record(processor, file, 1000)) {
+            processor.run(program.startAddress());
+        }
+
+        java.util.List<Long> instructions = new ArrayList<>();
+        java.util.List<TraceRecorder.Write> writes = new ArrayList<>();
+        java.util.List<String> javaRoutines = new ArrayList<>();
+        java.util.List<Integer> interrupts = new ArrayList<>();
+
+        try (var replayer = TraceReplayer.open(file)) {
+            replayer.replay(0, replayer.steps(), new TraceReplayer.Visitor() {
+                @Override
+                public void instructionExecuted(long step, int address, byte opCode, int operand) {
+                    assertEquals(recorder.programCounterAt(step), address);
+                    assertEquals(recorder.opCodeByteAt(step), opCode);
+                    assertEquals(recorder.operandAt(step), operand);
+                    instructions.add(step);
+                }
+
+                @Override
+                public void memoryWritten(long step, int address, byte oldValue, byte newValue) {
+                    writes.add(new TraceRecorder.Write(step, address, oldValue, newValue));
+                }
+
+                @Override
+                public void javaRoutineExecuted(long step, int address, String name) {
+                    javaRoutines.add(name);
+                }
+
+                @Override
+                public void interruptRequested(long step, int address) {
+                    interrupts.add(address);
+                }
+            });
+        }
+
+        assertEquals(recorder.steps(), instructions.size());
+        assertEquals(recorder.writesTo(0, 0xFFFF).toJavaList(), writes);
+        assertEquals(256, javaRoutines.size());
+        assertEquals("ChrOut", javaRoutines.get(0));
+
+        //The BRK at the end goes through the interrupt handling
+        assertEquals(1, interrupts.size());
+    }
+
+    @Test
+    public void testRestoreWhileRecording(@TempDir Path directory) {
+        Path file = directory.resolve("run.trace");
+
+        var processor = newProcessor();
+        var start = processor.snapshot();
+        long restoredAt;
+        try (var writer = TraceWriter.record(processor, file, 1000)) {
+            processor.run(program.startAddress());
+            restoredAt = writer.steps();
+
+            //Back to before the page was filled, and part of the way through it again
+            processor.restore(start);
+            for (int i = 0; i < 100; i++) {
+                processor.step();
+            }
+        }
+
+        int[] replaced = new int[1];
+        try (var replayer = TraceReplayer.open(file)) {
+            var expected = new Processor();
+            expected.restore(start);
+            assertSameState(expected, replayer.processorAt(restoredAt));
+            assertSameState(processor, replayer.processorAt(replayer.steps()));
+
+            replayer.replay(0, replayer.steps(), new TraceReplayer.Visitor() {
+                @Override
+                public void stateReplaced(long step) {
+                    assertEquals(restoredAt, step);
+                    replaced[0]++;
+                }
+            });
+        }
+        assertEquals(1, replaced[0]);
+    }
+
+    @Test
+    public void testProgramsWithTheirOwnJavaRoutines(@TempDir Path directory) {
+        Path file = directory.resolve("run.trace");
+        var counter = new JavaRoutine() {
+            @Override
+            public Operand.TwoByteAddress location() {
+                return address(0xC100);
+            }
+
+            @Override
+            public int size() {
+                return 1;
+            }
+
+            @Override
+            public void execute(Processor processor) {
+                processor.pokeValue(0x2000, (byte) (processor.peekValue(0x2000) + 1));
+            }
+        };
+        Program calls = new ProgramBuilder()
+                .jsr(counter.location())
+                .jsr(counter.location())
+                .jsr(counter.location())
+                .buildProgram();
+
+        var processor = new Processor();
+        processor.registerJavaRoutine(counter);
+        processor.load(calls);
+        try (var writer = TraceWriter.record(processor, file)) {
+            processor.run(calls.startAddress());
+        }
+
+        try (var replayer = TraceReplayer.open(file)) {
+            var exception = assertThrows(IllegalStateException.class, () -> replayer.processorAt(2));
+            assertTrue(exception.getMessage().contains("at $c100"), exception.getMessage());
+
+            var withCounter = new Processor();
+            withCounter.registerJavaRoutine(counter);
+            var replayed = replayer.processorAt(2, withCounter);
+            assertEquals(1, replayed.peekValue(0x2000));
+            replayed.run();
+            assertSameState(processor, replayed);
+        }
+    }
+
+    @Test
+    public void testTraceIsSmall(@TempDir Path directory) throws Exception {
+        Path file = directory.resolve("run.trace");
+
+        var processor = newProcessor();
+        try (var writer = TraceWriter.record(processor, file)) {
+            processor.run(program.startAddress());
+            processor.run(program.startAddress());
+            processor.run(program.startAddress());
+
+            //Less than 2 bytes per instruction, including the two keyframes
+            assertTrue(Files.size(file) < writer.steps() * 2);
+        }
+    }
+
+    @Test
+    public void testNotATraceFile(@TempDir Path directory) throws Exception {
+        Path file = directory.resolve("not.trace");
+        Files.write(file, new byte[]{1, 2, 3, 4, 5, 6, 7, 8});
+
+        assertThrows(IllegalArgumentException.class, () -> TraceReplayer.open(file));
+    }
+
+    private Processor newProcessor() {
+        var processor = new Processor();
+        processor.registerJavaRoutine(new ChrOut());
+        processor.load(program);
+        return processor;
+    }
+
+    private static void assertSameState(Processor expected, Processor actual) {
+        assertEquals(expected.getAccumulatorValue(), actual.getAccumulatorValue());
+        assertEquals(expected.getXRegisterValue(), actual.getXRegisterValue());
+        assertEquals(expected.getYRegisterValue(), actual.getYRegisterValue());
+        assertEquals(expected.getStackPointer(), actual.getStackPointer());
+        assertEquals(expected.getStatusRegisterValue(), actual.getStatusRegisterValue());
+        assertEquals(expected.getProgramCounter(), actual.getProgramCounter());
+        assertEquals(expected.getOperationCount(), actual.getOperationCount());
+        assertEquals(expected.getCycleCount(), actual.getCycleCount());
+        assertArrayEquals(expected.readMemory(0x0000, 0xFFFF), actual.readMemory(0x0000, 0xFFFF));
+    }
+}
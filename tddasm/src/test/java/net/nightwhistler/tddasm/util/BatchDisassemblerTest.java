@@ -0,0 +1,96 @@
+package net.nightwhistler.tddasm.util;
+
+import io.vavr.collection.List;
+import net.nightwhistler.tddasm.mos65xx.Program;
+import net.nightwhistler.tddasm.mos65xx.ProgramBuilder;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static net.nightwhistler.tddasm.mos65xx.Operand.address;
+import static net.nightwhistler.tddasm.mos65xx.Operand.value;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class BatchDisassemblerTest {
+
+    @TempDir
+    Path input;
+
+    @TempDir
+    Path output;
+
+    @Test
+    public void testBatchKeepsGoingPastBrokenFiles() throws IOException {
+        Program program = new ProgramBuilder()
+                .jsr("print")
+                .rts()
+                .label("print")
+                .lda(value(0x01))
+                .rts()
+                .buildProgram(address(0xC000));
+
+        write(program, input.resolve("program.prg"));
+        write(program.withBASICStarter(), input.resolve("games/basic.prg"));
+        Files.write(input.resolve("empty.prg"), new byte[]{0x00});
+        //A JSR without its address
+        Files.write(input.resolve("truncated.prg"), new byte[]{0x00, (byte) 0xC0, 0x20});
+
+        var inputs = BatchDisassembler.inputs(List.of(input));
+        var result = new BatchDisassembler(output).run(inputs, 2);
+
+        assertEquals(2, result.disassembled());
+        assertEquals(List.of(Path.of("empty.prg"), Path.of("truncated.prg")),
+                result.failures().map(failure -> failure.input().name()));
+
+        String summary = Files.readString(output.resolve("program.json"));
+        assertTrue(summary.contains("\"entryPoint\": 49152,"), summary);
+        assertTrue(summary.contains("\"subroutines\": {\"subroutine_0\": 49156},"), summary);
+        assertTrue(summary.contains("\"JSR\": 1, \"LDA\": 1, \"RTS\": 2"), summary);
+        assertTrue(Files.readString(output.resolve("program.asm")).contains("subroutine_0"));
+
+        //SYS 2062 in the BASIC line
+        String basicSummary = Files.readString(output.resolve("games/basic.json"));
+        assertTrue(basicSummary.contains("\"entryPoint\": 2062,"), basicSummary);
+        assertTrue(Files.exists(output.resolve("games/basic.asm")));
+    }
+
+    @Test
+    public void testFilesWithTheSameOutput() throws IOException {
+        Program program = new ProgramBuilder()
+                .lda(value(0x01))
+                .rts()
+                .buildProgram(address(0xC000));
+
+        write(program, input.resolve("one/game.prg"));
+        write(program, input.resolve("two/GAME.PRG"));
+        write(program, input.resolve("two/notes.txt"));
+
+        var inputs = BatchDisassembler.inputs(List.of(
+                input.resolve("one/game.prg"), input.resolve("two/GAME.PRG"), input.resolve("two/notes.txt")));
+        var result = new BatchDisassembler(output).run(inputs, 2);
+
+        assertEquals(1, result.disassembled());
+        assertEquals(List.of("Same output as " + input.resolve("one/game.prg"), "Not a .prg file"),
+                result.failures().map(BatchDisassembler.Failure::reason));
+        assertTrue(Files.exists(output.resolve("game.asm")));
+
+        //Running again replaces the output, and leaves no temporary files behind
+        new BatchDisassembler(output).run(inputs.take(1), 1);
+        try (var files = Files.list(output)) {
+            assertEquals(java.util.List.of("game.asm", "game.json"),
+                    files.map(file -> file.getFileName().toString()).sorted().toList());
+        }
+    }
+
+    private static void write(Program program, Path file) throws IOException {
+        Files.createDirectories(file.getParent());
+        try (OutputStream out = Files.newOutputStream(file)) {
+            ProgramWriter.writeProgram(program, out);
+        }
+    }
+}